@@ -213,10 +213,11 @@ public abstract class BasicDatabase implements Database {
 
     private void generateScript() {
         GenerateScriptDialog.Callback cb = new GenerateScriptDialog.Callback() {
-            public void invoke(int what, boolean fqtn, BrowserFrame other,
+            public void invoke(int what, boolean fqtn, boolean keyUpdates,
+                               boolean streaming, BrowserFrame other,
                                String sgname) {
                 sg = ScriptGenerator.getInstance(sgname);
-                generateScript2(what, fqtn, other);
+                generateScript2(what, fqtn, keyUpdates, streaming, other);
             }
         };
         String sgname;
@@ -228,7 +229,8 @@ public abstract class BasicDatabase implements Database {
         gsd.showCentered();
     }
 
-    private void generateScript2(int what, boolean fqtn, BrowserFrame other) {
+    private void generateScript2(int what, boolean fqtn, boolean keyUpdates,
+                                 boolean streaming, BrowserFrame other) {
         Collection<Table> thisTS, otherTS;
         try {
             thisTS = getSelectedTables();
@@ -240,7 +242,7 @@ public abstract class BasicDatabase implements Database {
             return;
         }
 
-        // Spawn a background thread for doing the hard work. It may take
+        // Use a background job for doing the hard work. It may take
         // quite a while, mostly because it may require a lot of data to be
         // loaded from the database.
         // TODO: progress dialog, or at least something that says work is in
@@ -248,22 +250,26 @@ public abstract class BasicDatabase implements Database {
         // complete or such), and gives the user a chance to abort the
         // operation.
 
-        Thread t = new Thread(new GenerateScript3(what, fqtn, thisTS, otherTS));
-        t.setPriority(Thread.MIN_PRIORITY);
-        t.setDaemon(true);
-        t.start();
+        Main.submitJob("generate script", JobScheduler.PRIORITY_LOW,
+                       new GenerateScript3(what, fqtn, keyUpdates,
+                                            streaming, thisTS, otherTS));
     }
 
     private class GenerateScript3 implements Runnable {
         private int what;
         private boolean fqtn;
+        private boolean keyUpdates;
+        private boolean streaming;
         private Collection<Table> thisTS;
         private Collection<Table> otherTS;
 
-        public GenerateScript3(int what, boolean fqtn, Collection<Table> thisTS,
-                                                       Collection<Table> otherTS) {
+        public GenerateScript3(int what, boolean fqtn, boolean keyUpdates,
+                               boolean streaming, Collection<Table> thisTS,
+                               Collection<Table> otherTS) {
             this.what = what;
             this.fqtn = fqtn;
+            this.keyUpdates = keyUpdates;
+            this.streaming = streaming;
             this.thisTS = thisTS;
             this.otherTS = otherTS;
         }
@@ -271,6 +277,7 @@ public abstract class BasicDatabase implements Database {
         public void run() {
             String title = null;
             StringBuffer script = new StringBuffer();
+            ArrayList<String> notes = new ArrayList<String>();
             try {
                 switch (what) {
                     case GenerateScriptDialog.DROP:
@@ -292,11 +299,21 @@ public abstract class BasicDatabase implements Database {
                         break;
                     case GenerateScriptDialog.UPDATE_FROM:
                         title = "Update Script";
-                        script.append(sg.diff(otherTS, thisTS, fqtn));
+                        if (streaming)
+                            script.append(sg.streamingDiff(otherTS, thisTS,
+                                                           fqtn, notes));
+                        else
+                            script.append(sg.diff(otherTS, thisTS, fqtn,
+                                                  keyUpdates));
                         break;
                     case GenerateScriptDialog.UPDATE_TO:
                         title = "Update Script";
-                        script.append(sg.diff(thisTS, otherTS, fqtn));
+                        if (streaming)
+                            script.append(sg.streamingDiff(thisTS, otherTS,
+                                                           fqtn, notes));
+                        else
+                            script.append(sg.diff(thisTS, otherTS, fqtn,
+                                                  keyUpdates));
                         break;
                 }
             } catch (NavigatorException e) {
@@ -304,6 +321,17 @@ public abstract class BasicDatabase implements Database {
                 return;
             }
 
+            if (!notes.isEmpty()) {
+                StringBuffer buf = new StringBuffer();
+                buf.append("Not all tables could be compared without "
+                            + "loading them:");
+                for (String note : notes) {
+                    buf.append("\n");
+                    buf.append(note);
+                }
+                MessageBox.show(buf.toString(), null);
+            }
+
             // The hard work is done; now, rejoin the AWT event thread
             // to present the result to the user.
             SwingUtilities.invokeLater(
@@ -210,11 +210,22 @@ public class FileDatabase extends BasicDatabase {
                     + "capable of executing queries.");
     }
 
+    public Object runQuery(String query, boolean asynchronous,
+                           boolean allowTable, int fetchSize)
+                                                    throws NavigatorException {
+        throw new NavigatorException("File Data Source is not "
+                    + "capable of executing queries.");
+    }
+
     public Object runQuery(String query, Object[] values) throws NavigatorException {
         throw new NavigatorException("File Data Source is not "
                     + "capable of executing queries.");
     }
 
+    public void cancelQuery(Thread thread) {
+        //
+    }
+
     public int runUpdate(String query) throws NavigatorException {
         throw new NavigatorException("File Data Source is not "
                     + "capable of executing updates.");
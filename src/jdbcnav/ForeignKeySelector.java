@@ -113,6 +113,11 @@ public class ForeignKeySelector extends MyFrame {
         setSize(d);
     }
 
+    public void dispose() {
+        model.close();
+        super.dispose();
+    }
+
     public void setCallback(Callback callback) {
         this.callback = callback;
     }
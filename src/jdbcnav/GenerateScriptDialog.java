@@ -54,6 +54,8 @@ public class GenerateScriptDialog extends MyFrame {
     private JRadioButton toRB;
     private JComboBox<BrowserFrame> otherCB;
     private JCheckBox fqtnCB;
+    private JCheckBox keyUpdatesCB;
+    private JCheckBox streamingCB;
     private JComboBox<String> metadriverCB;
 
     public GenerateScriptDialog(BrowserFrame bf, Callback cb, String sgname) {
@@ -104,6 +106,9 @@ public class GenerateScriptDialog extends MyFrame {
                                     fromRB.setEnabled(b);
                                     toRB.setEnabled(b);
                                     otherCB.setEnabled(b);
+                                    keyUpdatesCB.setEnabled(b
+                                            && !streamingCB.isSelected());
+                                    streamingCB.setEnabled(b);
                                 }
                             });
 
@@ -127,11 +132,33 @@ public class GenerateScriptDialog extends MyFrame {
         otherCB = new JComboBox<BrowserFrame>(bf.getOtherInstances());
         c.add(otherCB, gbc);
 
+        gbc.gridx = 1;
+        gbc.gridy = 6;
+        gbc.gridheight = 1;
+        gbc.gridwidth = 4;
+        keyUpdatesCB = new JCheckBox("Detect primary key changes");
+        c.add(keyUpdatesCB, gbc);
+
+        gbc.gridy++;
+        // Streaming compares the tables row by row, so it can't pair up
+        // deleted and inserted rows to find key changes
+        streamingCB = new JCheckBox("Compare tables without loading them");
+        c.add(streamingCB, gbc);
+        streamingCB.addChangeListener(new ChangeListener() {
+                                public void stateChanged(ChangeEvent e) {
+                                    keyUpdatesCB.setEnabled(
+                                            updateRB.isSelected()
+                                            && !streamingCB.isSelected());
+                                }
+                            });
+
         if (otherCB.getSelectedItem() == null) {
             rebuildRB.setSelected(true);
             fromRB.setEnabled(false);
             toRB.setEnabled(false);
             otherCB.setEnabled(false);
+            keyUpdatesCB.setEnabled(false);
+            streamingCB.setEnabled(false);
         } else
             updateRB.setSelected(true);
 
@@ -152,7 +179,7 @@ public class GenerateScriptDialog extends MyFrame {
         c.add(metadriverCB, gbc);
 
         gbc.gridx = 0;
-        gbc.gridy = 6;
+        gbc.gridy = 8;
         gbc.gridwidth = 5;
         gbc.weightx = 1;
         gbc.fill = MyGridBagConstraints.HORIZONTAL;
@@ -203,11 +230,15 @@ public class GenerateScriptDialog extends MyFrame {
         }
         String sgname = (String) metadriverCB.getSelectedItem();
         dispose();
-        cb.invoke(what, fqtnCB.isSelected(), other, sgname);
+        boolean streaming = streamingCB.isSelected();
+        cb.invoke(what, fqtnCB.isSelected(),
+                  keyUpdatesCB.isSelected() && !streaming, streaming,
+                  other, sgname);
     }
 
     public interface Callback {
-        public void invoke(int what, boolean fqtn, BrowserFrame other,
+        public void invoke(int what, boolean fqtn, boolean keyUpdates,
+                           boolean streaming, BrowserFrame other,
                            String sgname);
     }
 }
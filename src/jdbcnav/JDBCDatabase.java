@@ -32,6 +32,7 @@ import java.io.Reader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
 import java.sql.Blob;
 import java.sql.CallableStatement;
 import java.sql.Clob;
@@ -47,11 +48,15 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
@@ -89,8 +94,10 @@ import jdbcnav.model.DateTime;
 import jdbcnav.model.ForeignKey;
 import jdbcnav.model.Index;
 import jdbcnav.model.PrimaryKey;
+import jdbcnav.model.RowCursor;
 import jdbcnav.model.Table;
 import jdbcnav.model.TypeSpec;
+import jdbcnav.model.WindowedData;
 import jdbcnav.util.MiscUtils;
 import jdbcnav.util.MyGridBagConstraints;
 import jdbcnav.util.MyGridBagLayout;
@@ -110,6 +117,41 @@ public class JDBCDatabase extends BasicDatabase {
     private ArrayList<Table> editedTables = new ArrayList<Table>();
     private boolean caseSensitive = true;
 
+    // Fetch size for queries on this connection; 0 means use the default
+    // from the Preferences, or failing that, getDefaultFetchSize().
+    private int fetchSize;
+
+    // Pool of extra connections for read-only work: loading tables,
+    // searches, paging, and loading LOBs; see getQueryConnection(). 'con'
+    // itself is reserved for edits, commits, metadata, JavaScript, and
+    // queries the user typed (which must see the session state the user set
+    // up), so that a long load can't hold up a commit, and a commit's
+    // setAutoCommit(false) doesn't affect loads in progress.
+    // pooledConnections holds both the idle connections and the ones in
+    // use; openingConnections counts the ones being opened, which already
+    // take up a place in the pool. poolGeneration changes whenever the pool
+    // is closed, so that a connection opened meanwhile isn't added to it.
+    private ArrayList<Connection> pooledConnections =
+                                                new ArrayList<Connection>();
+    private ArrayList<Connection> idleConnections =
+                                                new ArrayList<Connection>();
+    private int openingConnections;
+    private int poolGeneration;
+    private boolean poolFailed;
+
+    // Cached PreparedStatements, per connection, keyed by SQL text; see
+    // prepareCached(). Only open connections have an entry here.
+    private Map<Connection, LinkedHashMap<String, PreparedStatement>>
+                statementCaches = new HashMap<Connection,
+                                    LinkedHashMap<String, PreparedStatement>>();
+    private long statementCacheHits;
+    private long statementCacheMisses;
+
+    // Statements being executed by runQuery() and runUpdate(), keyed by the
+    // thread executing them; see cancelQuery().
+    private Map<Thread, Statement> runningStatements =
+                                            new HashMap<Thread, Statement>();
+
 
     public static void open(Database.OpenCallback opencb) {
         LoginDialog.activate(opencb);
@@ -119,6 +161,7 @@ public class JDBCDatabase extends BasicDatabase {
         this.name = name;
         this.internalDriverName = driver;
         this.con = con;
+        createStatementCache(con);
         
         ResultSet rs = null;
         try {
@@ -188,17 +231,25 @@ public class JDBCDatabase extends BasicDatabase {
     }
 
     public void reconnect() {
+        closeConnectionPool();
         try {
+            closeStatementCache(con);
             try {
                 con.close();
             } catch (SQLException e) {}
             con = doConnect(jdbcDriver, url, username, password);
+            createStatementCache(con);
         } catch (SQLException e) {
             MessageBox.show("Could not reconnect to the database.", e);
         }
     }
 
     public void close() {
+        Main.log(3, "closing " + name + "; statement cache: "
+                    + statementCacheHits + " hits, "
+                    + statementCacheMisses + " misses");
+        closeConnectionPool();
+        closeStatementCache(con);
         try {
             con.close();
         } catch (SQLException e) {
@@ -211,6 +262,47 @@ public class JDBCDatabase extends BasicDatabase {
         return name;
     }
 
+    public String[] getCommands() {
+        String[] commands = super.getCommands();
+        String[] ours = new String[commands.length + 2];
+        System.arraycopy(commands, 0, ours, 0, commands.length);
+        ours[commands.length] = "-";
+        ours[commands.length + 1] = "Fetch Size...";
+        return ours;
+    }
+
+    public void executeCommand(int command) {
+        // Command numbers don't count the separators
+        int basicCommands = 0;
+        for (String cmd : super.getCommands())
+            if (!cmd.equals("-"))
+                basicCommands++;
+        if (command == basicCommands)
+            fetchSizeDialog();
+        else
+            super.executeCommand(command);
+    }
+
+    private void fetchSizeDialog() {
+        Object answer = JOptionPane.showInternalInputDialog(Main.getDesktop(),
+                "Fetch size for queries on this connection\n"
+                + "(0 = use the setting from the Preferences):",
+                "Fetch Size", JOptionPane.QUESTION_MESSAGE, null, null,
+                Integer.toString(fetchSize));
+        if (answer == null)
+            return;
+        try {
+            int n = Integer.parseInt(answer.toString().trim());
+            if (n < 0)
+                throw new NumberFormatException();
+            fetchSize = n;
+        } catch (NumberFormatException e) {
+            Toolkit.getDefaultToolkit().beep();
+            JOptionPane.showInternalMessageDialog(Main.getDesktop(),
+                    "The fetch size must be a non-negative integer.");
+        }
+    }
+
     public final String getInternalDriverName() {
         return internalDriverName;
     }
@@ -275,14 +367,10 @@ public class JDBCDatabase extends BasicDatabase {
         NavigatorException we = null;
         DiffCallback dcb = new DiffCallback();
 
-        // Pause any in-progress table loads before committing; without
-        // this precaution, MultiTableDiff.diff() could try to insert
-        // spurious rows (this will happen if rows are loaded into a table
-        // between the moment that the 'original' and the 'current' snapshots
-        // are made (also note that the moment the OriginalTable object is
-        // constructed is *not* the moment the snapshot is made; that object
-        // is merely a vehicle for a reference to the model's 'original'
-        // array)).
+        // Pause any in-progress table loads before committing, so that the
+        // models don't change while their changes are being worked out and
+        // applied; rows loaded halfway through a multi-table commit could
+        // otherwise be mistaken for inserts, or make us miss them.
 
         ArrayList<Table> pausedTables = new ArrayList<Table>();
         for (Table table : tables) {
@@ -293,21 +381,22 @@ public class JDBCDatabase extends BasicDatabase {
             }
         }
 
+        long startTime = System.nanoTime();
         try {
             autoCommit = con.getAutoCommit();
             con.setAutoCommit(false);
             if (tables.size() == 1) {
                 Table table = tables.iterator().next();
                 table.getModel().commit(dcb);
-            } else {
-                ArrayList<Table> oldtables = new ArrayList<Table>();
-                for (Table t : tables)
-                    oldtables.add(new OriginalTable(t));
-                MultiTableDiff.diff(dcb, oldtables, tables, false);
-            }
+            } else
+                MultiTableDiff.commit(dcb, tables);
+            dcb.flush();
             con.commit();
+            dcb.logStatistics(System.nanoTime() - startTime);
         } catch (SQLException e) {
             we = new NavigatorException(e);
+        } catch (NavigatorException e) {
+            we = e;
         } catch (Exception e) {
             we = new NavigatorException("An unexpected exception occurred!", e);
         }
@@ -340,37 +429,6 @@ public class JDBCDatabase extends BasicDatabase {
             t.getModel().postCommit();
     }
 
-    private class OriginalTable extends BasicTable {
-        private Data data;
-
-        public OriginalTable(Table table) {
-            super(table);
-            // If the following line throws a NullPointerException, I screwed
-            // up somewhere. The fact that we're here should imply that
-            // 'table' was edited, so it should have a model. Note that I'm
-            // NOT calling createModel(): if there is no model, I *want* to
-            // get an exception; creating a model on the fly would only mask
-            // a pretty serious error.
-            data = table.getModel().getOriginalData();
-        }
-
-        public ResultSetTableModel createModel() throws NavigatorException {
-            throw new NavigatorException("OriginalTable can't be edited!");
-        }
-
-        public boolean isEditable() {
-            return false;
-        }
-
-        public Database getDatabase() {
-            return JDBCDatabase.this;
-        }
-
-        public Data getData(boolean async) {
-            return data;
-        }
-    }
-
     protected class PartialTable extends BasicTable {
         private String query;
         private Object[] values;
@@ -503,8 +561,33 @@ public class JDBCDatabase extends BasicDatabase {
         private TreeMap<Table, PreparedStatement> insertStatements = new TreeMap<Table, PreparedStatement>();
         private TreeMap<Table, PreparedStatement> deleteStatements = new TreeMap<Table, PreparedStatement>();
 
+        // Changes are sent to the database in batches of up to batchSize
+        // rows. Only one statement has a batch pending at any time; it is
+        // flushed before any other statement is executed, so the changes
+        // reach the database in the order we are given them. We hang on to
+        // the batched rows so that errors can be reported against the row
+        // that caused them. If the batched statement came from
+        // prepareCached(), batchSql is its SQL, and it goes back to the
+        // cache once the batch has been executed.
+        private int batchSize;
+        private PreparedStatement batchStatement;
+        private String batchSql;
+        private String batchOperation;
+        private Table batchTable;
+        private String[] batchColumns;
+        private ArrayList<Object[]> batchRows = new ArrayList<Object[]>();
+        private int statements;
+        private int batches;
+
         public DiffCallback() {
-            //
+            batchSize = Preferences.getPreferences().getCommitBatchSize();
+            if (batchSize > 1)
+                try {
+                    if (!con.getMetaData().supportsBatchUpdates())
+                        batchSize = 1;
+                } catch (SQLException e) {
+                    batchSize = 1;
+                }
         }
 
         public void insertRow(Table table, Object[] row)
@@ -551,10 +634,10 @@ public class JDBCDatabase extends BasicDatabase {
                     Object o = nav2db(specs[i], row[i]);
                     setObject(insertStatement, n++, i, o, table);
                 }
-                insertStatement.executeUpdate();
             } catch (SQLException e) {
                 throw new NavigatorException(e);
             }
+            execute(insertStatement, null, "Insert into", table, names, row);
         }
 
         public void deleteRow(Table table, Object[] key)
@@ -575,9 +658,11 @@ public class JDBCDatabase extends BasicDatabase {
                     else
                         buf.append(" = ?");
                 }
+                flush();
+                String sql = buf.toString();
                 PreparedStatement s = null;
                 try {
-                    s = con.prepareStatement(buf.toString());
+                    s = prepareCached(con, sql);
                     TypeSpec[] specs = table.getTypeSpecs();
                     int p = 1;
                     for (int i = 0; i < key.length; i++)
@@ -585,14 +670,15 @@ public class JDBCDatabase extends BasicDatabase {
                             Object o = nav2db(specs[keyIndexes[i]], key[i]);
                             setObject(s, p++, i, o, table);
                         }
+                    statements++;
                     s.executeUpdate();
                 } catch (SQLException e) {
+                    closeStatement(s);
+                    s = null;
                     throw new NavigatorException(e);
                 } finally {
                     if (s != null)
-                        try {
-                            s.close();
-                        } catch (SQLException e) {}
+                        releaseCached(con, sql, s);
                 }
             } else {
                 PreparedStatement deleteStatement = deleteStatements.get(table);
@@ -620,10 +706,14 @@ public class JDBCDatabase extends BasicDatabase {
                         Object o = nav2db(specs[keyIndexes[i]], key[i]);
                         setObject(deleteStatement, i + 1, i, o, table);
                     }
-                    deleteStatement.executeUpdate();
                 } catch (SQLException e) {
                     throw new NavigatorException(e);
                 }
+                String[] keyNames = new String[key.length];
+                for (int i = 0; i < key.length; i++)
+                    keyNames[i] = names[keyIndexes[i]];
+                execute(deleteStatement, null, "Delete from", table, keyNames,
+                        key);
             }
         }
 
@@ -633,83 +723,226 @@ public class JDBCDatabase extends BasicDatabase {
             String[] isGenerated = table.getIsGenerated();
             int[] keyIndexes = table.getPKColumns();
             int columns = names.length;
+
+            // Only the changed columns are set, so that changing one value
+            // in a row of 1000 columns doesn't pump the 999 unchanged values
+            // across the wire; and null key values are matched using 'is
+            // null', to work around the Oracle bug in '= ?' with null values
+            // in where clauses. The statement's shape thus depends on which
+            // columns changed and which key values are null; there can be
+            // many shapes, so the statements go through prepareCached(),
+            // whose cache is bounded, rather than being kept until the end.
+            BitSet shape = new BitSet(columns + keyIndexes.length);
+            for (int i = 0; i < columns; i++) {
+                if ("YES".equals(isGenerated[i]))
+                    continue;
+                if (oldRow[i] == null ? newRow[i] != null
+                                    : !oldRow[i].equals(newRow[i]))
+                    shape.set(i);
+            }
+            for (int i = 0; i < keyIndexes.length; i++)
+                if (oldRow[keyIndexes[i]] == null)
+                    shape.set(columns + i);
+
+            int firstSet = shape.nextSetBit(0);
+            if (firstSet == -1 || firstSet >= columns)
+                // Only generated columns changed; nothing to do
+                return;
+
             StringBuffer buf = new StringBuffer();
             buf.append("update ");
             buf.append(table.getQualifiedName());
             buf.append(" set ");
             boolean first = true;
-            for (int i = 0; i < columns; i++) {
-                if ("YES".equals(isGenerated[i]))
-                    continue;
-                if (oldRow[i] == null ? newRow[i] != null
-                                    : !oldRow[i].equals(newRow[i])) {
-                    if (first)
-                        first = false;
-                    else
-                        buf.append(", ");
-                    buf.append(quote(names[i]));
-                    buf.append(" = ?");
-                }
+            for (int i = shape.nextSetBit(0); i != -1 && i < columns;
+                                        i = shape.nextSetBit(i + 1)) {
+                if (first)
+                    first = false;
+                else
+                    buf.append(", ");
+                buf.append(quote(names[i]));
+                buf.append(" = ?");
             }
             buf.append(" where ");
             for (int i = 0; i < keyIndexes.length; i++) {
                 if (i > 0)
                     buf.append(" and ");
                 buf.append(quote(names[keyIndexes[i]]));
-
-                // I'm doing the hack to work around the Oracle bug in '= ?'
-                // with null values in where clauses here. Unlike in deleteRow,
-                // the hack is unconditional here, since caching update
-                // statements is a bit trickier than I am in the mood for right
-                // now. (The problem is that, unlike in insertRow and
-                // deleteRow, you don't want to specify the same columns for
-                // each updated row... For example, if only one value was
-                // changed in a table row that contains 1000 values, you don't
-                // want to pump the 999 unchanged values across the wire.
-                // So, instead, I waste time building new statements for each
-                // update. This *might* actually perform *worse*...)
-
-                if (oldRow[keyIndexes[i]] == null)
+                if (shape.get(columns + i))
                     buf.append(" is null");
                 else
                     buf.append(" = ?");
             }
-            PreparedStatement s = null;
+            String sql = buf.toString();
+            PreparedStatement s;
+            if (batchStatement != null && sql.equals(batchSql))
+                s = batchStatement;
+            else {
+                flush();
+                try {
+                    s = prepareCached(con, sql);
+                } catch (SQLException e) {
+                    throw new NavigatorException(e);
+                }
+            }
+
+            TypeSpec[] specs = table.getTypeSpecs();
+            String[] keyNames = new String[keyIndexes.length];
+            Object[] key = new Object[keyIndexes.length];
             try {
-                s = con.prepareStatement(buf.toString());
-                TypeSpec[] specs = table.getTypeSpecs();
                 int p = 1;
-                for (int i = 0; i < columns; i++) {
-                    if ("YES".equals(isGenerated[i]))
-                        continue;
-                    if (oldRow[i] == null ? newRow[i] != null
-                                        : !oldRow[i].equals(newRow[i])) {
-                        Object o = nav2db(specs[i], newRow[i]);
-                        setObject(s, p++, i, o, table);
-                    }
+                for (int i = shape.nextSetBit(0); i != -1 && i < columns;
+                                            i = shape.nextSetBit(i + 1)) {
+                    Object o = nav2db(specs[i], newRow[i]);
+                    setObject(s, p++, i, o, table);
                 }
                 for (int i = 0; i < keyIndexes.length; i++) {
                     int idx = keyIndexes[i];
+                    keyNames[i] = names[idx];
+                    key[i] = oldRow[idx];
                     if (oldRow[idx] != null) {
                         Object o = nav2db(specs[idx], oldRow[idx]);
                         setObject(s, p++, idx, o, table);
                     }
                 }
-                s.executeUpdate();
             } catch (SQLException e) {
+                // A statement with a batch pending is closed by cleanup()
+                if (s != batchStatement)
+                    closeStatement(s);
                 throw new NavigatorException(e);
-            } finally {
-                if (s != null)
-                    try {
-                        s.close();
-                    } catch (SQLException e) {}
             }
+            execute(s, sql, "Update", table, keyNames, key);
         }
 
         public boolean continueAfterError() {
             return false;
         }
 
+        /**
+         * Executes a statement whose parameters have been set, or adds it to
+         * the pending batch. 'sql' is the statement's SQL if it came from
+         * prepareCached(), and null otherwise; cached statements are handed
+         * back once they have been executed. 'columns' and 'row' are only
+         * used to describe the row in error messages.
+         */
+        private void execute(PreparedStatement s, String sql,
+                             String operation, Table table, String[] columns,
+                             Object[] row) throws NavigatorException {
+            if (batchStatement != null && batchStatement != s)
+                flush();
+            statements++;
+            try {
+                if (batchSize <= 1) {
+                    s.executeUpdate();
+                    if (sql != null)
+                        releaseCached(con, sql, s);
+                    return;
+                }
+                s.addBatch();
+            } catch (SQLException e) {
+                if (sql != null) {
+                    if (batchStatement == s) {
+                        batchStatement = null;
+                        batchSql = null;
+                    }
+                    closeStatement(s);
+                }
+                throw rowFailed(operation, table, columns, row, e);
+            }
+            batchStatement = s;
+            batchSql = sql;
+            batchOperation = operation;
+            batchTable = table;
+            batchColumns = columns;
+            batchRows.add(row);
+            if (batchRows.size() >= batchSize)
+                flush();
+        }
+
+        /**
+         * Executes the pending batch, if any. This must be called after the
+         * last change, before committing.
+         */
+        public void flush() throws NavigatorException {
+            if (batchStatement == null)
+                return;
+            PreparedStatement s = batchStatement;
+            String sql = batchSql;
+            ArrayList<Object[]> rows = batchRows;
+            batchStatement = null;
+            batchSql = null;
+            batchRows = new ArrayList<Object[]>();
+            batches++;
+            boolean success = false;
+            try {
+                s.executeBatch();
+                success = true;
+            } catch (BatchUpdateException e) {
+                // Drivers either stop at the first failure, in which case
+                // we only get update counts for the rows before it, or they
+                // carry on and mark the failed rows as EXECUTE_FAILED.
+                int[] counts = e.getUpdateCounts();
+                int failed = -1;
+                if (counts != null) {
+                    if (counts.length < rows.size())
+                        failed = counts.length;
+                    else
+                        for (int i = 0; i < counts.length; i++)
+                            if (counts[i] == Statement.EXECUTE_FAILED) {
+                                failed = i;
+                                break;
+                            }
+                }
+                // The batch exception itself tends to be rather generic;
+                // the actual error is usually the next one in the chain.
+                SQLException cause = e.getNextException();
+                if (cause == null)
+                    cause = e;
+                if (failed == -1)
+                    throw new NavigatorException(batchOperation + " "
+                            + batchTable.getQualifiedName() + " failed.",
+                            cause);
+                throw rowFailed(batchOperation, batchTable, batchColumns,
+                                rows.get(failed), cause);
+            } catch (SQLException e) {
+                throw new NavigatorException(e);
+            } finally {
+                if (sql != null) {
+                    if (success)
+                        releaseCached(con, sql, s);
+                    else
+                        closeStatement(s);
+                }
+            }
+        }
+
+        private NavigatorException rowFailed(String operation, Table table,
+                                String[] columns, Object[] row, Throwable e) {
+            StringBuffer buf = new StringBuffer();
+            buf.append(operation);
+            buf.append(" ");
+            buf.append(table.getQualifiedName());
+            buf.append(" failed for row (");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0)
+                    buf.append(", ");
+                buf.append(columns[i]);
+                buf.append(" = ");
+                String v = String.valueOf(row[i]);
+                if (v.length() > 40)
+                    v = v.substring(0, 37) + "...";
+                buf.append(v);
+            }
+            buf.append(").");
+            return new NavigatorException(buf.toString(), e);
+        }
+
+        public void logStatistics(long nanos) {
+            Main.log(3, "commit: " + statements + " statements, "
+                        + batches + " batches, in "
+                        + (nanos / 1000000) + " ms");
+        }
+
         public void cleanup() {
             for (PreparedStatement pstmt : insertStatements.values())
                 try {
@@ -719,6 +952,9 @@ public class JDBCDatabase extends BasicDatabase {
                 try {
                     pstmt.close();
                 } catch (SQLException e) {}
+            // A batch is only left pending if the commit failed
+            if (batchSql != null)
+                closeStatement(batchStatement);
         }
     }
 
@@ -1385,22 +1621,31 @@ public class JDBCDatabase extends BasicDatabase {
         Object[] args = (Object[]) oa[1];
         if (args.length == 0)
             return 0;
+        Connection qcon = null;
         PreparedStatement stmt = null;
+        ResultSet rs = null;
         try {
-            stmt = con.prepareStatement(query);
+            qcon = getQueryConnection(false);
+            stmt = prepareCached(qcon, query);
             int idx = 1;
             for (Object o : args)
                 stmt.setObject(idx++, o);
-            ResultSet rs = stmt.executeQuery();
+            rs = stmt.executeQuery();
             rs.next();
             return rs.getInt(1);
         } catch (SQLException e) {
+            closeStatement(stmt);
+            stmt = null;
             throw new NavigatorException("Search Table failed", e);
         } finally {
-            if (stmt != null)
+            if (rs != null)
                 try {
-                    stmt.close();
+                    rs.close();
                 } catch (SQLException e) {}
+            if (stmt != null)
+                releaseCached(qcon, query, stmt);
+            if (qcon != null)
+                releaseQueryConnection(qcon);
         }
     }
     
@@ -1421,6 +1666,21 @@ public class JDBCDatabase extends BasicDatabase {
 
     private Object runQuery(String query, Object[] values, boolean asynchronous,
                            boolean allowTable) throws NavigatorException {
+        return runQuery(query, values, asynchronous, allowTable, 0, true);
+    }
+
+    /**
+     * Runs a query; 'pooled' says whether it may use a pooled connection.
+     * Queries we make up ourselves, to load tables, search them, and look
+     * up keys, only care about committed data, so they use the pool. Queries
+     * the user typed run on the main connection, like the updates they may
+     * be mixed with, so that they see the same session state: settings like
+     * ALTER SESSION or search_path, temporary tables, and rows that haven't
+     * been committed yet.
+     */
+    private Object runQuery(String query, Object[] values, boolean asynchronous,
+                           boolean allowTable, int fetchSize, boolean pooled)
+                                                    throws NavigatorException {
 
         Main.log(3, "JDBCDatabase.runQuery(\"" + query + "\", "
                             + (asynchronous ? "async" : "sync") + ")");
@@ -1575,20 +1835,43 @@ public class JDBCDatabase extends BasicDatabase {
             }
         }
 
+        if (fetchSize <= 0)
+            fetchSize = getFetchSize();
+
+        // Parameterized queries that we read ourselves (lookups, mostly)
+        // tend to be repeated, so those use the statement cache.
+        boolean cached = values != null && !asynchronous;
+        Connection qcon = null;
         Statement s = null;
         ResultSet rs = null;
         try {
             Main.log(3, "executing query...");
+            qcon = pooled ? getQueryConnection(asynchronous) : con;
             if (values == null) {
-                s = con.createStatement();
+                s = qcon.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                         ResultSet.CONCUR_READ_ONLY);
+                prepareQueryStatement(s, fetchSize);
+                if (!asynchronous)
+                    setQueryTimeout(s);
+                statementStarted(s);
                 rs = s.executeQuery(query);
             } else {
-                PreparedStatement ps = con.prepareStatement(query);
+                PreparedStatement ps;
+                if (cached)
+                    ps = prepareCached(qcon, query);
+                else
+                    ps = qcon.prepareStatement(query,
+                                               ResultSet.TYPE_FORWARD_ONLY,
+                                               ResultSet.CONCUR_READ_ONLY);
+                prepareQueryStatement(ps, fetchSize);
+                if (!asynchronous)
+                    setQueryTimeout(ps);
                 for (int i = 0; i < values.length; i++) {
                     Object v = values[i];
                     ps.setObject(i + 1, v);
                 }
                 s = ps;
+                statementStarted(s);
                 rs = ps.executeQuery();
             }
 
@@ -1690,13 +1973,18 @@ public class JDBCDatabase extends BasicDatabase {
                 Main.log(3, "creating background loader");
                 BackgroundLoadData bld =
                             new BackgroundLoadData(columnNames, typeSpecs);
-                Thread ldr = new Thread(
-                        new BackgroundLoader(bld, s, rs, table, columnNames));
-                ldr.setPriority(Thread.MIN_PRIORITY);
-                ldr.setDaemon(true);
-                ldr.start();
-
-                // Prevent 'finally' clause from closing Statement & ResultSet
+                // Loaders run for as long as there are rows, and they can be
+                // paused indefinitely, so they get a thread of their own
+                // rather than tying up a worker; the number of connections
+                // they can use is limited by the connection pool.
+                Main.startDetachedJob("query loader",
+                               JobScheduler.PRIORITY_LOW,
+                               new BackgroundLoader(bld, qcon, s, rs,
+                                                    table, columnNames));
+
+                // Prevent 'finally' clause from closing Statement & ResultSet,
+                // and from releasing the Connection
+                qcon = null;
                 s = null;
                 rs = null;
                 if (allowTable && table != null)
@@ -1731,22 +2019,35 @@ public class JDBCDatabase extends BasicDatabase {
             else
                 return bd;
         } catch (SQLException e) {
+            // Don't reuse the statement after an error
+            cached = false;
             throw new NavigatorException(e);
         } finally {
+            statementFinished();
             if (rs != null)
                 try {
                     rs.close();
                 } catch (SQLException e) {}
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {}
+            if (s != null) {
+                if (cached)
+                    releaseCached(qcon, query, (PreparedStatement) s);
+                else
+                    closeStatement(s);
+            }
+            if (qcon != null)
+                releaseQueryConnection(qcon);
         }
     }
 
     public Object runQuery(String query, boolean asynchronous,
             boolean allowTable) throws NavigatorException {
-        return runQuery(query, null, asynchronous, allowTable);
+        return runQuery(query, null, asynchronous, allowTable, 0, false);
+    }
+
+    public Object runQuery(String query, boolean asynchronous,
+            boolean allowTable, int fetchSize) throws NavigatorException {
+        return runQuery(query, null, asynchronous, allowTable, fetchSize,
+                        false);
     }
 
     public Object runQuery(String query, Object[] values) throws NavigatorException {
@@ -1757,10 +2058,13 @@ public class JDBCDatabase extends BasicDatabase {
         Statement s = null;
         try {
             s = con.createStatement();
+            setQueryTimeout(s);
+            statementStarted(s);
             return s.executeUpdate(query);
         } catch (SQLException e) {
             throw new NavigatorException(e);
         } finally {
+            statementFinished();
             if (s != null)
                 try {
                     s.close();
@@ -1849,14 +2153,120 @@ public class JDBCDatabase extends BasicDatabase {
             }
             buf.append(" from ");
             buf.append(qualifiedName);
-            return (Data) runQuery(buf.toString(), false, false);
+            return (Data) runQuery(buf.toString(), null, false, false);
         }
 
         public Data getData(boolean async) throws NavigatorException {
-            return (Data) runQuery("select * from " + qualifiedName,
+            return (Data) runQuery("select * from " + qualifiedName, null,
                                    async, false);
         }
 
+        protected RowCursor getRowsInPKOrder2() throws NavigatorException {
+            int[] pkColumns = getPKColumns();
+            StringBuffer buf = new StringBuffer();
+            buf.append("select * from ");
+            buf.append(qualifiedName);
+            buf.append(" order by ");
+            for (int i = 0; i < pkColumns.length; i++) {
+                int col = pkColumns[i];
+                String expr = getBinarySortExpression(quote(columnNames[col]),
+                                                      typeSpecs[col]);
+                if (expr == null) {
+                    // The merge would find the rows out of order halfway
+                    // through; better to load the table up front.
+                    Main.log(2, "JDBCDatabase.JDBCTable(\"" + qualifiedName
+                            + "\"): can't sort " + columnNames[col]
+                            + " by code point; loading the table instead");
+                    return null;
+                }
+                if (i > 0)
+                    buf.append(", ");
+                buf.append(expr);
+            }
+            return new QueryRowCursor(this, buf.toString());
+        }
+
+        protected Data getModelData() throws NavigatorException {
+            // Keyset paging requires a primary key; without one, there's no
+            // reliable way to tell where a page starts.
+            int threshold =
+                    Preferences.getPreferences().getPagedTableThreshold();
+            if (pk == null || threshold == 0)
+                return getData(true);
+            // Use the optimizer's estimate, if there is one: small tables are
+            // loaded, and large ones start out with the estimate as their
+            // row count, while KeysetPagedData counts them in the background
+            // (counting 200 million rows can take minutes). Without an
+            // estimate, count the rows, but only up to the threshold, so
+            // that this doesn't take long however large the table is.
+            long estimate = estimateRowCount(qualifiedName);
+            if (estimate > 0 && estimate < threshold)
+                return getData(true);
+            int rows;
+            if (estimate > 0)
+                rows = estimate > Integer.MAX_VALUE ? Integer.MAX_VALUE
+                                                    : (int) estimate;
+            else {
+                rows = countRows(threshold);
+                if (rows < threshold)
+                    return getData(true);
+            }
+            Main.log(3, "JDBCDatabase.JDBCTable(\"" + qualifiedName
+                            + "\"): paging about " + rows + " rows");
+            return new KeysetPagedData(this, rows);
+        }
+
+        /**
+         * Counts the table's rows; if 'limit' is nonzero, this stops
+         * counting at 'limit', reading only the primary key.
+         */
+        private int countRows(int limit) throws NavigatorException {
+            Connection qcon = null;
+            Statement s = null;
+            ResultSet rs = null;
+            try {
+                qcon = getQueryConnection(false);
+                s = qcon.createStatement();
+                if (limit == 0) {
+                    rs = s.executeQuery("select count(*) from "
+                                                        + qualifiedName);
+                    rs.next();
+                    long n = rs.getLong(1);
+                    return n > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) n;
+                }
+                StringBuffer buf = new StringBuffer();
+                buf.append("select ");
+                for (int i = 0; i < pk.getColumnCount(); i++) {
+                    if (i > 0)
+                        buf.append(", ");
+                    buf.append(quote(pk.getColumnName(i)));
+                }
+                buf.append(" from ");
+                buf.append(qualifiedName);
+                s.setMaxRows(limit);
+                prepareQueryStatement(s, getFetchSize());
+                setQueryTimeout(s);
+                rs = s.executeQuery(buf.toString());
+                int n = 0;
+                while (n < limit && rs.next())
+                    n++;
+                return n;
+            } catch (SQLException e) {
+                throw new NavigatorException(e);
+            } finally {
+                if (rs != null)
+                    try {
+                        rs.close();
+                    } catch (SQLException e) {}
+                if (s != null)
+                    try {
+                        s.close();
+                    } catch (SQLException e) {}
+                if (qcon != null)
+                    releaseQueryConnection(qcon);
+            }
+        }
+
         public void updateDetails() throws NavigatorException {
             // Create backups of everything, in case we need to roll back
             // after catching an exception
@@ -2268,17 +2678,15 @@ public class JDBCDatabase extends BasicDatabase {
                 saveB.setEnabled(false);
                 deleteB.setEnabled(false);
                 cancelB.requestFocusInWindow();
-                // Use a separate thread to establish the connection.
+                // Use a background job to establish the connection.
                 // DriverManager.getConnection() can take a long time,
                 // and we don't want to freeze awt during the wait; also,
                 // we want to allow the user to cancel the operation.
                 connectThread = new ConnectThread(this, opencb, name, url, driver,
                                                   username, password);
                 Main.backgroundJobStarted();
-                Thread thr = new Thread(connectThread);
-                thr.setPriority(Thread.MIN_PRIORITY);
-                thr.setDaemon(true);
-                thr.start();
+                Main.submitJob("connect", JobScheduler.PRIORITY_NORMAL,
+                               connectThread);
             }
         }
 
@@ -2388,10 +2796,9 @@ public class JDBCDatabase extends BasicDatabase {
                     dialog.dispose();
                 MyFrame waitDlg = new WaitDialog();
                 waitDlg.showCentered();
-                Thread thr = new Thread(new BrowserOpener2(opencb, name, con, driver, url, username, password, waitDlg));
-                thr.setPriority(Thread.MIN_PRIORITY);
-                thr.setDaemon(true);
-                thr.start();
+                Main.submitJob("open browser", JobScheduler.PRIORITY_NORMAL,
+                        new BrowserOpener2(opencb, name, con, driver, url,
+                                           username, password, waitDlg));
             }
         }
 
@@ -2561,6 +2968,18 @@ public class JDBCDatabase extends BasicDatabase {
             // java.sql.Timestamp like Oracle 8i.
             props.put("oracle.jdbc.V8Compatible", "true");
             return DriverManager.getConnection(url, props);
+        } else if (driver.startsWith("com.mysql.")) {
+            Properties props = new Properties();
+            if (username != null && !username.equals("") || password != null && !password.equals("")) {
+                props.put("user", username);
+                props.put("password", password);
+            }
+            // Without this, Connector/J ignores the fetch size and reads the
+            // entire ResultSet into memory before returning from
+            // executeQuery(). With it, a positive fetch size makes it use a
+            // server-side cursor.
+            props.put("useCursorFetch", "true");
+            return DriverManager.getConnection(url, props);
         } else if ((username == null || username.equals("")) && (password == null || password.equals(""))) {
             return DriverManager.getConnection(url);
         } else {
@@ -2733,10 +3152,13 @@ public class JDBCDatabase extends BasicDatabase {
                 break;
             }
 
+            String sql = buf.toString();
+            Connection qcon = null;
             PreparedStatement stmt = null;
             ResultSet rs = null;
             try {
-                stmt = con.prepareStatement(buf.toString());
+                qcon = getQueryConnection(false);
+                stmt = prepareCached(qcon, sql);
                 for (int i = 0; i < keyIndexInTable.size(); i++) {
                     int ti = keyIndexInTable.get(i);
                     int di = keyIndexInData.get(i);
@@ -2757,6 +3179,8 @@ public class JDBCDatabase extends BasicDatabase {
                     return null;
                 }
             } catch (SQLException e) {
+                closeStatement(stmt);
+                stmt = null;
                 MessageBox.show("Could not load LOB.", e);
                 return null;
             } finally {
@@ -2765,9 +3189,9 @@ public class JDBCDatabase extends BasicDatabase {
                         rs.close();
                     } catch (SQLException e) {}
                 if (stmt != null)
-                    try {
-                        stmt.close();
-                    } catch (SQLException e) {}
+                    releaseCached(qcon, sql, stmt);
+                if (qcon != null)
+                    releaseQueryConnection(qcon);
             }
         }
     }
@@ -2865,6 +3289,389 @@ public class JDBCDatabase extends BasicDatabase {
         return true;
     }
 
+
+    /**
+     * Returns the database's estimate of the number of rows in the given
+     * table, based on its optimizer statistics, or -1 if there is no cheap
+     * way to find out. Used to decide whether a table is large enough to be
+     * browsed one page at a time, without having to count its rows first.
+     */
+    protected long estimateRowCount(String qualifiedName) {
+        return -1;
+    }
+
+
+    ////////////////////////////////////////
+    ///// Fetch size and query cursors /////
+    ////////////////////////////////////////
+
+    /**
+     * Returns the fetch size used for queries on this connection: the one
+     * set using setFetchSize(), or else the one from the Preferences, or else
+     * getDefaultFetchSize().
+     */
+    public int getFetchSize() {
+        if (fetchSize > 0)
+            return fetchSize;
+        int fs = Preferences.getPreferences().getFetchSize();
+        if (fs > 0)
+            return fs;
+        return getDefaultFetchSize();
+    }
+
+    /**
+     * Sets the fetch size used for queries on this connection; 0 means fall
+     * back on the setting from the Preferences.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize < 0 ? 0 : fetchSize;
+    }
+
+    /**
+     * The fetch size to use when the user hasn't specified one. The default,
+     * 0, leaves it up to the JDBC driver; override this for drivers whose own
+     * default is unsuitable for browsing large tables.
+     */
+    protected int getDefaultFetchSize() {
+        return 0;
+    }
+
+    /**
+     * Called for each Statement that is about to be used to run a query,
+     * before it is executed. The default implementation just sets the fetch
+     * size; drivers can override this to do whatever else it takes to get
+     * them to stream the results.
+     */
+    protected void prepareQueryStatement(Statement s, int fetchSize)
+                                                        throws SQLException {
+        if (fetchSize > 0)
+            s.setFetchSize(fetchSize);
+    }
+
+    /**
+     * Some drivers only stream query results under conditions that are not
+     * acceptable for other uses of a connection (e.g. PostgreSQL requires
+     * autocommit to be off); those should return true here, so that
+     * background loads of tables get a pooled connection with autocommit off,
+     * even when the pool is full. They only fall back on the main connection
+     * if no connection can be opened at all, and then the driver may read
+     * the whole result into memory. Queries the user typed always run on the
+     * main connection, and stream only if its autocommit is off.
+     */
+    protected boolean streamingNeedsOwnConnection() {
+        return false;
+    }
+
+    /**
+     * Returns the expression to put in an ORDER BY clause to sort on the
+     * given column the way RowKey orders its values, or null if that isn't
+     * possible. Numbers, dates, and binary values sort the same everywhere,
+     * but strings sort according to a collation, which may ignore case, or
+     * follow the rules of some language; databases that can be told to
+     * sort strings by code point should override this.
+     */
+    protected String getBinarySortExpression(String quotedName,
+                                             TypeSpec spec) {
+        if (isCharacterType(spec))
+            return null;
+        return quotedName;
+    }
+
+    protected static boolean isCharacterType(TypeSpec spec) {
+        switch (spec.type) {
+            case TypeSpec.CHAR:
+            case TypeSpec.VARCHAR:
+            case TypeSpec.LONGVARCHAR:
+            case TypeSpec.NCHAR:
+            case TypeSpec.VARNCHAR:
+            case TypeSpec.LONGVARNCHAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    ///////////////////////////
+    ///// Connection pool /////
+    ///////////////////////////
+
+    /**
+     * The maximum number of pooled connections that are kept open, in
+     * addition to the main connection.
+     */
+    protected int getMaxPooledConnections() {
+        return 4;
+    }
+
+    /**
+     * Called for each newly opened pooled connection, for drivers that need
+     * to set up session state the same way as on the main connection.
+     */
+    protected void initPooledConnection(Connection c) throws SQLException {
+        //
+    }
+
+    /**
+     * Returns the connection to use for running a read-only query: an idle
+     * one from the pool, or a newly opened one, as long as the pool isn't
+     * full. Otherwise, the main connection is returned, except for streaming
+     * loads when streamingNeedsOwnConnection() is true; those get a
+     * connection of their own, with autocommit off, even beyond the pool's
+     * limit. If the database won't let us open another connection, the main
+     * connection is returned in all cases, with its autocommit left alone;
+     * a streaming load then works, but may not stream. Every connection
+     * obtained from this method must be passed to releaseQueryConnection()
+     * once the ResultSet and Statement have been closed.
+     */
+    protected Connection getQueryConnection(boolean streaming)
+                                                        throws SQLException {
+        boolean ownConnection = streaming && streamingNeedsOwnConnection();
+        Connection c = null;
+        int generation;
+        synchronized (pooledConnections) {
+            int n = idleConnections.size();
+            if (n > 0)
+                c = idleConnections.remove(n - 1);
+            else if (!ownConnection && (poolFailed
+                        || pooledConnections.size() + openingConnections
+                                                >= getMaxPooledConnections()))
+                return con;
+            else
+                // Claim the place in the pool before letting go of the
+                // lock, so that concurrent callers can't exceed the limit.
+                openingConnections++;
+            generation = poolGeneration;
+        }
+        if (c == null) {
+            Main.log(3, "opening pooled connection");
+            try {
+                c = doConnect(jdbcDriver, url, username, password);
+                initPooledConnection(c);
+            } catch (SQLException e) {
+                if (c != null)
+                    try {
+                        c.close();
+                    } catch (SQLException e2) {}
+                Main.log(1, "can't open pooled connection, using the main "
+                            + "connection instead"
+                            + (ownConnection ? " (without streaming)" : "")
+                            + ": " + e);
+                synchronized (pooledConnections) {
+                    openingConnections--;
+                    poolFailed = true;
+                }
+                return con;
+            }
+            createStatementCache(c);
+            synchronized (pooledConnections) {
+                openingConnections--;
+                // If the pool was closed in the meantime, the connection
+                // stays out of it, and is closed when it is released.
+                if (generation == poolGeneration)
+                    pooledConnections.add(c);
+            }
+        }
+        if (ownConnection)
+            c.setAutoCommit(false);
+        return c;
+    }
+
+    protected void releaseQueryConnection(Connection c) {
+        if (c == con)
+            return;
+        boolean keep;
+        try {
+            if (!c.getAutoCommit()) {
+                // Only reading here; this just ends the transaction.
+                c.commit();
+                c.setAutoCommit(true);
+            }
+            keep = true;
+        } catch (SQLException e) {
+            keep = false;
+        }
+        synchronized (pooledConnections) {
+            // If the pool was closed while this connection was in use, or it
+            // has grown beyond its limit because of streaming loads that
+            // needed a connection of their own, close the connection.
+            if (keep && pooledConnections.contains(c)
+                    && pooledConnections.size() <= getMaxPooledConnections()) {
+                idleConnections.add(c);
+                return;
+            }
+            pooledConnections.remove(c);
+        }
+        closeStatementCache(c);
+        try {
+            c.close();
+        } catch (SQLException e) {}
+    }
+
+    /**
+     * Closes the idle pooled connections. The ones in use are taken out of
+     * the pool, so that releaseQueryConnection() closes them once whoever
+     * is using them is done.
+     */
+    private void closeConnectionPool() {
+        ArrayList<Connection> idle;
+        synchronized (pooledConnections) {
+            idle = new ArrayList<Connection>(idleConnections);
+            pooledConnections.clear();
+            idleConnections.clear();
+            poolGeneration++;
+            poolFailed = false;
+        }
+        for (Connection c : idle) {
+            closeStatementCache(c);
+            try {
+                c.close();
+            } catch (SQLException e) {}
+        }
+    }
+
+
+    ///////////////////////////////////
+    ///// PreparedStatement cache /////
+    ///////////////////////////////////
+
+    /**
+     * The maximum number of PreparedStatements cached per connection. Keep
+     * in mind that on some databases (Oracle, notably), each one holds on
+     * to a server-side cursor.
+     */
+    protected int getStatementCacheSize() {
+        return 20;
+    }
+
+    private void createStatementCache(Connection c) {
+        synchronized (statementCaches) {
+            statementCaches.put(c,
+                            new LinkedHashMap<String, PreparedStatement>());
+        }
+    }
+
+    private void closeStatementCache(Connection c) {
+        LinkedHashMap<String, PreparedStatement> cache;
+        synchronized (statementCaches) {
+            cache = statementCaches.remove(c);
+        }
+        if (cache != null)
+            for (PreparedStatement ps : cache.values())
+                closeStatement(ps);
+    }
+
+    private static void closeStatement(Statement s) {
+        if (s != null)
+            try {
+                s.close();
+            } catch (SQLException e) {}
+    }
+
+    /**
+     * Returns a PreparedStatement for the given SQL, reusing a cached one
+     * if there is one. The statement belongs to the caller until it is
+     * handed back using releaseCached(), so it is never used by two threads
+     * at once; if the cached statement for this SQL is in use, a new one is
+     * prepared. Callers should close the statement, rather than releasing
+     * it, if they got an SQLException while using it.
+     */
+    protected PreparedStatement prepareCached(Connection c, String sql)
+                                                        throws SQLException {
+        PreparedStatement ps = null;
+        synchronized (statementCaches) {
+            LinkedHashMap<String, PreparedStatement> cache =
+                                                    statementCaches.get(c);
+            if (cache != null)
+                ps = cache.remove(sql);
+            if (ps != null)
+                statementCacheHits++;
+            else {
+                statementCacheMisses++;
+                Main.log(3, "statement cache miss; " + statementCacheHits
+                            + " hits, " + statementCacheMisses + " misses");
+            }
+        }
+        if (ps != null)
+            try {
+                ps.clearParameters();
+                return ps;
+            } catch (SQLException e) {
+                closeStatement(ps);
+            }
+        return c.prepareStatement(sql);
+    }
+
+    /**
+     * Hands a statement obtained from prepareCached() back to the cache.
+     * Any ResultSet obtained from it must have been closed.
+     */
+    protected void releaseCached(Connection c, String sql,
+                                 PreparedStatement ps) {
+        PreparedStatement discard = ps;
+        synchronized (statementCaches) {
+            LinkedHashMap<String, PreparedStatement> cache =
+                                                    statementCaches.get(c);
+            // No cache means the connection has been closed
+            if (cache != null && !cache.containsKey(sql)) {
+                cache.put(sql, ps);
+                discard = null;
+                if (cache.size() > getStatementCacheSize()) {
+                    Iterator<PreparedStatement> iter =
+                                                cache.values().iterator();
+                    discard = iter.next();
+                    iter.remove();
+                }
+            }
+        }
+        closeStatement(discard);
+    }
+
+
+    //////////////////////////////////////////
+    ///// Query cancellation and timeout /////
+    //////////////////////////////////////////
+
+    // Only for statements someone is waiting for; background loads and
+    // streaming comparisons can legitimately run for a long time, and have
+    // their own way to be stopped.
+    private static void setQueryTimeout(Statement s) throws SQLException {
+        int timeout = Preferences.getPreferences().getQueryTimeout();
+        if (timeout > 0)
+            s.setQueryTimeout(timeout);
+    }
+
+    private void statementStarted(Statement s) {
+        synchronized (runningStatements) {
+            runningStatements.put(Thread.currentThread(), s);
+        }
+    }
+
+    private void statementFinished() {
+        synchronized (runningStatements) {
+            runningStatements.remove(Thread.currentThread());
+        }
+    }
+
+    public void cancelQuery(Thread thread) {
+        Statement s;
+        synchronized (runningStatements) {
+            s = runningStatements.get(thread);
+        }
+        if (s != null)
+            cancelStatement(s);
+    }
+
+    private static void cancelStatement(Statement s) {
+        Main.log(3, "cancelling statement");
+        try {
+            s.cancel();
+        } catch (SQLException e) {
+            // Most likely, the statement finished or was closed just now
+            Main.log(3, "cancel failed: " + e);
+        }
+    }
+
     protected String[] getJavaTypes(String qualifiedName)
                                                     throws NavigatorException {
         PreparedStatement stmt = null;
@@ -2944,24 +3751,507 @@ public class JDBCDatabase extends BasicDatabase {
         return true;
     }
 
+    /**
+     * Data for browsing tables that are too large to load into memory. Rows
+     * are fetched a page at a time, in primary key order, using keyset
+     * pagination: page n+1 consists of the first PAGE_SIZE rows with a key
+     * greater than the last key of page n. Only the most recently used pages
+     * are kept in memory, and the last key of every page seen so far is
+     * remembered, so going back to a page costs only one indexed range scan.
+     * <br>
+     * Pages are fetched synchronously, from whichever thread asks for them;
+     * JTable only asks for the rows it is painting, so that's one query per
+     * page scrolled.
+     */
+    private class KeysetPagedData implements WindowedData {
+        private static final int PAGE_SIZE = 500;
+        private static final int MAX_PAGES = 40;
+
+        private JDBCTable table;
+        private String[] columnNames;
+        private TypeSpec[] typeSpecs;
+        private int[] pkColumns;
+        private String pkOrder;
+        private String pkAfter;
+        private int rowCount;
+        // lastKeys.get(n) is the primary key of the last row of page n
+        private ArrayList<Object[]> lastKeys = new ArrayList<Object[]>();
+        private LinkedHashMap<Integer, Object[][]> pages =
+                        new LinkedHashMap<Integer, Object[][]>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                                        Map.Entry<Integer, Object[][]> e) {
+                        return size() > MAX_PAGES;
+                    }
+                };
+        private boolean errorShown;
+        // Loading is done outside the lock on 'this', so that the AWT Event
+        // thread never waits for the database; 'loadLock' makes sure only
+        // one thread at a time runs queries for this table, and protects
+        // 'lastKeys' and 'errorShown'.
+        private Object loadLock = new Object();
+        // Pages requested from the AWT Event thread, most recent last, and
+        // whether a job is loading them.
+        private ArrayList<Integer> requested = new ArrayList<Integer>();
+        private boolean loaderRunning;
+        private ArrayList<WindowListener> listeners =
+                                            new ArrayList<WindowListener>();
+
+        public KeysetPagedData(final JDBCTable table, int rowCount) {
+            this.table = table;
+            this.rowCount = rowCount;
+            // The row count we were given may be an estimate
+            Main.submitJob("count rows", JobScheduler.PRIORITY_LOW,
+                           JDBCDatabase.this, false, new Runnable() {
+                        public void run() {
+                            int n;
+                            try {
+                                n = table.countRows(0);
+                            } catch (NavigatorException e) {
+                                Main.log(1, "KeysetPagedData: can't count "
+                                        + "rows of " + table.getQualifiedName()
+                                        + ": " + e);
+                                return;
+                            }
+                            setRowCount(n);
+                        }
+                    });
+            columnNames = table.getColumnNames();
+            typeSpecs = table.getTypeSpecs();
+            pkColumns = table.getPKColumns();
+
+            // For a key (a, b, c), this builds
+            // a > ? or (a = ? and b > ?) or (a = ? and b = ? and c > ?)
+            // rather than the more concise (a, b, c) > (?, ?, ?), which
+            // not all databases support.
+            StringBuffer order = new StringBuffer();
+            StringBuffer after = new StringBuffer();
+            for (int i = 0; i < pkColumns.length; i++) {
+                String col = quote(columnNames[pkColumns[i]]);
+                if (i > 0) {
+                    order.append(", ");
+                    after.append(" or ");
+                }
+                order.append(col);
+                after.append("(");
+                for (int j = 0; j < i; j++) {
+                    after.append(quote(columnNames[pkColumns[j]]));
+                    after.append(" = ? and ");
+                }
+                after.append(col);
+                after.append(" > ?)");
+            }
+            pkOrder = order.toString();
+            pkAfter = after.toString();
+        }
+
+        public synchronized int getRowCount() {
+            return rowCount;
+        }
+
+        private void setRowCount(int n) {
+            ArrayList<WindowListener> l;
+            synchronized (this) {
+                if (n == rowCount)
+                    return;
+                rowCount = n;
+                l = new ArrayList<WindowListener>(listeners);
+            }
+            for (WindowListener listener : l)
+                listener.rowCountChanged(n);
+        }
+
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        public String getColumnName(int col) {
+            return columnNames[col];
+        }
+
+        public TypeSpec getTypeSpec(int col) {
+            return typeSpecs[col];
+        }
+
+        public Object getValueAt(int row, int col) {
+            Object[][] page = getPage(row / PAGE_SIZE);
+            int r = row % PAGE_SIZE;
+            // The table may have shrunk since we counted its rows
+            return r < page.length ? page[r][col] : null;
+        }
+
+        public Object getLoadedValueAt(int row, int col) {
+            int n = row / PAGE_SIZE;
+            Object[][] page;
+            synchronized (this) {
+                page = pages.get(n);
+                if (page == null) {
+                    requestPage(n);
+                    return PENDING;
+                }
+            }
+            int r = row % PAGE_SIZE;
+            return r < page.length ? page[r][col] : null;
+        }
+
+        public synchronized boolean isRowLoaded(int row) {
+            return pages.containsKey(row / PAGE_SIZE);
+        }
+
+        public void setState(int state) {
+            //
+        }
+
+        public int getState() {
+            return FINISHED;
+        }
+
+        public void cancel() {
+            //
+        }
+
+        public void close() {
+            //
+        }
+
+        public void addStateListener(StateListener listener) {
+            listener.stateChanged(FINISHED, rowCount);
+        }
+
+        public void removeStateListener(StateListener listener) {
+            //
+        }
+
+        public synchronized void addWindowListener(WindowListener listener) {
+            listeners.add(listener);
+        }
+
+        public synchronized void removeWindowListener(
+                                                WindowListener listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * Has page n loaded in the background; the caller must hold the lock
+         * on 'this'. Pages are loaded most recently requested first, and
+         * only the last few requests are kept, since the user may have
+         * scrolled past the older ones already; if they are still needed,
+         * they will be requested again when the table is repainted.
+         */
+        private void requestPage(int n) {
+            requested.remove(Integer.valueOf(n));
+            requested.add(n);
+            if (requested.size() > 4)
+                requested.remove(0);
+            if (loaderRunning)
+                return;
+            loaderRunning = true;
+            Main.submitJob("page loader", JobScheduler.PRIORITY_HIGH,
+                           JDBCDatabase.this, false, new Runnable() {
+                        public void run() {
+                            try {
+                                loadRequestedPages();
+                            } catch (RuntimeException e) {
+                                synchronized (KeysetPagedData.this) {
+                                    loaderRunning = false;
+                                }
+                                throw e;
+                            }
+                        }
+                    });
+        }
+
+        private void loadRequestedPages() {
+            while (true) {
+                int n;
+                ArrayList<WindowListener> l;
+                synchronized (this) {
+                    if (requested.isEmpty()) {
+                        loaderRunning = false;
+                        return;
+                    }
+                    n = requested.remove(requested.size() - 1);
+                    if (pages.containsKey(n))
+                        continue;
+                }
+                getPage(n);
+                synchronized (this) {
+                    l = new ArrayList<WindowListener>(listeners);
+                }
+                int first = n * PAGE_SIZE;
+                for (WindowListener listener : l)
+                    listener.rowsArrived(first, first + PAGE_SIZE - 1);
+            }
+        }
+
+        /**
+         * Returns page n, loading it if necessary. This shouldn't happen on
+         * the AWT Event thread; callers there check isRowLoaded() first, or
+         * use getLoadedValueAt().
+         */
+        private Object[][] getPage(int n) {
+            Object[][] page;
+            synchronized (this) {
+                page = pages.get(n);
+            }
+            if (page != null)
+                return page;
+            synchronized (loadLock) {
+                // Another thread may have loaded it while we were waiting
+                synchronized (this) {
+                    page = pages.get(n);
+                }
+                if (page != null)
+                    return page;
+                if (SwingUtilities.isEventDispatchThread())
+                    Main.log(2, "KeysetPagedData: loading page " + n
+                                    + " on the AWT Event thread");
+                try {
+                    page = loadPage(n);
+                } catch (SQLException e) {
+                    // Cache an empty page, so we don't keep retrying (and
+                    // complaining) for every single cell
+                    page = new Object[0][];
+                    if (!errorShown) {
+                        errorShown = true;
+                        MessageBox.show("An exception occurred while "
+                                        + "loading a page of rows:", e);
+                    }
+                }
+                synchronized (this) {
+                    pages.put(n, page);
+                }
+                return page;
+            }
+        }
+
+        private Object[][] loadPage(int n) throws SQLException {
+            Main.log(3, "KeysetPagedData: loading page " + n + " of "
+                                                + table.getQualifiedName());
+            if (lastKeys.size() < n && !findLastKeys(n))
+                // Page n is past the end of the table
+                return new Object[0][];
+
+            String sql = makeQuery("*", n);
+            Connection qcon = null;
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                qcon = getQueryConnection(false);
+                stmt = prepareCached(qcon, sql);
+                if (n > 0)
+                    bindKey(stmt, lastKeys.get(n - 1));
+                stmt.setMaxRows(PAGE_SIZE);
+                stmt.setFetchSize(PAGE_SIZE);
+                rs = stmt.executeQuery();
+                int columns = columnNames.length;
+                boolean noClone = lobsOutliveResultSets();
+                ArrayList<Object[]> rows = new ArrayList<Object[]>();
+                while (rows.size() < PAGE_SIZE && rs.next()) {
+                    Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++)
+                        row[i] = rs.getObject(i + 1);
+                    Object[] orig_row = noClone ? null : row.clone();
+                    for (int i = 0; i < columns; i++)
+                        row[i] = wrapLob(table, columnNames, orig_row, i,
+                                                    typeSpecs[i], row[i]);
+                    rows.add(row);
+                }
+                if (rows.size() == PAGE_SIZE && lastKeys.size() == n) {
+                    Object[] last = rows.get(PAGE_SIZE - 1);
+                    Object[] key = new Object[pkColumns.length];
+                    for (int i = 0; i < key.length; i++)
+                        key[i] = last[pkColumns[i]];
+                    lastKeys.add(key);
+                }
+                return rows.toArray(new Object[rows.size()][]);
+            } catch (SQLException e) {
+                closeStatement(stmt);
+                stmt = null;
+                throw e;
+            } finally {
+                if (rs != null)
+                    try {
+                        rs.close();
+                    } catch (SQLException e) {}
+                if (stmt != null)
+                    releaseCached(qcon, sql, stmt);
+                if (qcon != null)
+                    releaseQueryConnection(qcon);
+            }
+        }
+
+        /**
+         * Scans the primary key, starting after the last page boundary found
+         * so far, until the boundaries of all pages before page n are known.
+         * This only reads key columns, so it is fairly cheap even when
+         * skipping over many pages. Returns false if the table turns out to
+         * have fewer than n full pages.
+         */
+        private boolean findLastKeys(int n) throws SQLException {
+            int known = lastKeys.size();
+            String sql = makeQuery(pkOrder, known);
+            Connection qcon = null;
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            try {
+                qcon = getQueryConnection(false);
+                stmt = prepareCached(qcon, sql);
+                if (known > 0)
+                    bindKey(stmt, lastKeys.get(known - 1));
+                int fs = getFetchSize();
+                stmt.setFetchSize(fs > 0 ? fs : PAGE_SIZE);
+                rs = stmt.executeQuery();
+                int count = 0;
+                while (lastKeys.size() < n && rs.next()) {
+                    if (++count < PAGE_SIZE)
+                        continue;
+                    count = 0;
+                    Object[] key = new Object[pkColumns.length];
+                    for (int i = 0; i < key.length; i++)
+                        key[i] = db2nav(typeSpecs[pkColumns[i]],
+                                        rs.getObject(i + 1));
+                    lastKeys.add(key);
+                }
+                return lastKeys.size() >= n;
+            } catch (SQLException e) {
+                closeStatement(stmt);
+                stmt = null;
+                throw e;
+            } finally {
+                if (rs != null)
+                    try {
+                        rs.close();
+                    } catch (SQLException e) {}
+                if (stmt != null)
+                    releaseCached(qcon, sql, stmt);
+                if (qcon != null)
+                    releaseQueryConnection(qcon);
+            }
+        }
+
+        private String makeQuery(String what, int page) {
+            StringBuffer buf = new StringBuffer();
+            buf.append("select ");
+            buf.append(what);
+            buf.append(" from ");
+            buf.append(table.getQualifiedName());
+            if (page > 0) {
+                buf.append(" where ");
+                buf.append(pkAfter);
+            }
+            buf.append(" order by ");
+            buf.append(pkOrder);
+            return buf.toString();
+        }
+
+        private void bindKey(PreparedStatement stmt, Object[] key)
+                                                        throws SQLException {
+            int p = 1;
+            for (int i = 0; i < key.length; i++)
+                for (int j = 0; j <= i; j++) {
+                    int col = pkColumns[j];
+                    Object o = nav2db(typeSpecs[col], key[j]);
+                    setObject(stmt, p++, col, o, table);
+                }
+        }
+    }
+
+    /**
+     * Reads the rows of a table one at a time, from a query that sorts them
+     * by primary key, so that MultiTableDiff.streamingDiff() can compare
+     * tables without loading them. The query runs on a connection of its
+     * own, if possible, which is released when the rows run out, or when
+     * the cursor is closed.
+     */
+    private class QueryRowCursor implements RowCursor {
+        private Table table;
+        private String[] columnNames;
+        private TypeSpec[] typeSpecs;
+        private Connection qcon;
+        private Statement stmt;
+        private ResultSet rs;
+
+        public QueryRowCursor(Table table, String query)
+                                                throws NavigatorException {
+            this.table = table;
+            columnNames = table.getColumnNames();
+            typeSpecs = table.getTypeSpecs();
+            Main.log(3, "QueryRowCursor: " + query);
+            try {
+                qcon = getQueryConnection(true);
+                stmt = qcon.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                            ResultSet.CONCUR_READ_ONLY);
+                prepareQueryStatement(stmt, getFetchSize());
+                rs = stmt.executeQuery(query);
+            } catch (SQLException e) {
+                close();
+                throw new NavigatorException(e);
+            }
+        }
+
+        public Object[] next() throws NavigatorException {
+            if (rs == null)
+                return null;
+            try {
+                if (!rs.next()) {
+                    close();
+                    return null;
+                }
+                int columns = columnNames.length;
+                Object[] row = new Object[columns];
+                for (int i = 0; i < columns; i++)
+                    row[i] = rs.getObject(i + 1);
+                Object[] orig_row = lobsOutliveResultSets() ? null
+                                                            : row.clone();
+                for (int i = 0; i < columns; i++)
+                    row[i] = wrapLob(table, columnNames, orig_row, i,
+                                                    typeSpecs[i], row[i]);
+                return row;
+            } catch (SQLException e) {
+                close();
+                throw new NavigatorException(e);
+            }
+        }
+
+        public void close() {
+            if (rs != null)
+                try {
+                    rs.close();
+                } catch (SQLException e) {}
+            rs = null;
+            closeStatement(stmt);
+            stmt = null;
+            if (qcon != null)
+                releaseQueryConnection(qcon);
+            qcon = null;
+        }
+    }
+
     private class BackgroundLoader implements Runnable, Data.StateListener {
         private BackgroundLoadData data;
+        private Connection qcon;
         private Statement stmt;
         private ResultSet rs;
         private Table table;
         private String[] columnNames;
         private int state;
 
-        public BackgroundLoader(BackgroundLoadData data,
+        public BackgroundLoader(BackgroundLoadData data, Connection qcon,
                                 Statement stmt, ResultSet rs,
                                 Table table, String[] columnNames) {
             this.data = data;
+            this.qcon = qcon;
             this.stmt = stmt;
             this.rs = rs;
             this.table = table;
             this.columnNames = columnNames;
             state = Data.LOADING;
             data.addStateListener(this);
+            data.setCanceller(new Runnable() {
+                        public void run() {
+                            cancelStatement(stmt);
+                        }
+                    });
         }
 
         public void run() {
@@ -2990,8 +4280,14 @@ public class JDBCDatabase extends BasicDatabase {
                     data.addRow(row);
                 }
             } catch (SQLException e) {
-                MessageBox.show("An exception occurred while "
-                                + "loading a query result:", e);
+                boolean cancelled;
+                synchronized (this) {
+                    cancelled = state == Data.FINISHED;
+                }
+                // If we were cancelled, this is the driver telling us so
+                if (!cancelled)
+                    MessageBox.show("An exception occurred while "
+                                    + "loading a query result:", e);
             }
             Main.log(3, Integer.toString(data.getRowCount()) + " rows loaded");
 
@@ -3003,6 +4299,7 @@ public class JDBCDatabase extends BasicDatabase {
                 try {
                     stmt.close();
                 } catch (SQLException e) {}
+            releaseQueryConnection(qcon);
 
             data.removeStateListener(this);
             data.setState(Data.FINISHED);
@@ -19,6 +19,7 @@
 package jdbcnav;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -42,6 +43,59 @@ public class JDBCDatabase_MySQL extends JDBCDatabase {
         return false;
     }
 
+    /**
+     * Connector/J only uses a server-side cursor if useCursorFetch=true (we
+     * set that when connecting) *and* the fetch size is positive; otherwise
+     * it reads the entire ResultSet into memory.
+     */
+    protected int getDefaultFetchSize() {
+        return 1000;
+    }
+
+    /**
+     * ORDER BY follows the column's collation, which usually ignores case;
+     * BINARY sorts by the bytes of the column's character set instead, which
+     * is code point order in utf8 and utf8mb4 (but not in, say, latin1, in
+     * which case the diff notices the rows coming in out of order).
+     */
+    protected String getBinarySortExpression(String quotedName,
+                                             TypeSpec spec) {
+        if (isCharacterType(spec))
+            return "binary " + quotedName;
+        return quotedName;
+    }
+
+    /**
+     * For InnoDB tables, TABLE_ROWS is only an estimate, which is all we
+     * need; actually counting the rows requires a full index scan.
+     */
+    protected long estimateRowCount(String qualifiedName) {
+        String[] parts = parseQualifiedName(qualifiedName);
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = con.prepareStatement("select table_rows from information_schema.tables where table_schema = ? and table_name = ?");
+            stmt.setString(1, parts[0] != null ? parts[0] : con.getCatalog());
+            stmt.setString(2, parts[2]);
+            rs = stmt.executeQuery();
+            if (!rs.next())
+                return -1;
+            long n = rs.getLong(1);
+            return rs.wasNull() ? -1 : n;
+        } catch (SQLException e) {
+            return -1;
+        } finally {
+            if (rs != null)
+                try {
+                    rs.close();
+                } catch (SQLException e) {}
+            if (stmt != null)
+                try {
+                    stmt.close();
+                } catch (SQLException e) {}
+        }
+    }
+
     protected TypeSpec makeTypeSpec(String dbType, Integer size, Integer scale,
                                     int sqlType, String javaType) {
         TypeSpec spec = makeDefaultTypeSpec(dbType, size, scale, sqlType,
@@ -57,13 +57,9 @@ import jdbcnav.util.NavigatorException;
 public class JDBCDatabase_Oracle extends JDBCDatabase {
     public JDBCDatabase_Oracle(String name, String driver, Connection con) {
         super(name, driver, con);
-        String tz = System.getProperty("jdbcnav.tz");
-        if (tz == null)
-            tz = TimeZone.getDefault().getID();
+        String tz = getSessionTimeZone();
         try {
-            Method m = Class.forName("oracle.jdbc.OracleConnection").getMethod(
-                            "setSessionTimeZone", new Class[] { String.class });
-            m.invoke(con, new Object[] { tz });
+            setSessionTimeZone(con, tz);
         } catch (InvocationTargetException e) {
             Throwable th = e.getCause();
             MessageBox.show("Could not set time zone \"" + tz + "\".\n" +
@@ -84,6 +80,30 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
         }
     }
 
+    private static String getSessionTimeZone() {
+        String tz = System.getProperty("jdbcnav.tz");
+        if (tz == null)
+            tz = TimeZone.getDefault().getID();
+        return tz;
+    }
+
+    private static void setSessionTimeZone(Connection con, String tz)
+                                                        throws Exception {
+        Method m = Class.forName("oracle.jdbc.OracleConnection").getMethod(
+                        "setSessionTimeZone", new Class[] { String.class });
+        m.invoke(con, new Object[] { tz });
+    }
+
+    /**
+     * Pooled connections get the same session time zone as the main one.
+     * Any problems with that have already been reported by the constructor.
+     */
+    protected void initPooledConnection(Connection c) {
+        try {
+            setSessionTimeZone(c, getSessionTimeZone());
+        } catch (Exception e) {}
+    }
+
     /**
      * The Oracle 8i JDBC Driver (classes12.zip) does not handle nulls
      * properly in 'where' clauses in PreparedStatements. That is,
@@ -104,6 +124,55 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
         return false;
     }
 
+    /**
+     * The Oracle driver fetches 10 rows per round trip by default, which
+     * makes loading large tables painfully slow over anything but a LAN.
+     * Oracle always streams, so the fetch size is all we need to change.
+     */
+    protected int getDefaultFetchSize() {
+        return 500;
+    }
+
+    /**
+     * ORDER BY follows the session's NLS_SORT, which may be linguistic;
+     * NLSSORT() with BINARY sorts by the bytes of the database character
+     * set, which is code point order in AL32UTF8.
+     */
+    protected String getBinarySortExpression(String quotedName,
+                                             TypeSpec spec) {
+        if (isCharacterType(spec))
+            return "nlssort(" + quotedName + ", 'NLS_SORT=BINARY')";
+        return quotedName;
+    }
+
+    protected long estimateRowCount(String qualifiedName) {
+        String[] parts = parseQualifiedName(qualifiedName);
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = con.prepareStatement("select num_rows from sys.all_tables where owner = ? and table_name = ?");
+            stmt.setString(1, parts[1]);
+            stmt.setString(2, parts[2]);
+            rs = stmt.executeQuery();
+            if (!rs.next())
+                return -1;
+            long n = rs.getLong(1);
+            // NUM_ROWS is null if the table has never been analyzed
+            return rs.wasNull() ? -1 : n;
+        } catch (SQLException e) {
+            return -1;
+        } finally {
+            if (rs != null)
+                try {
+                    rs.close();
+                } catch (SQLException e) {}
+            if (stmt != null)
+                try {
+                    stmt.close();
+                } catch (SQLException e) {}
+        }
+    }
+
     /**
      * With Oracle 10g (and possibly other versions), DBMD.getTables() tends
      * to return a lot of junk along with the actual table/view/synonym
@@ -204,6 +273,9 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
      * generated and are messing up your query performance, the way to get
      * rid of this information is 'ANALYZE TABLE <table> DELETE STATISTICS'.
      */
+    private static final String INDEXES_SQL = "select index_name, uniqueness from user_indexes where table_owner = ? and table_name = ? order by index_name";
+    private static final String INDEX_COLUMNS_SQL = "select column_name from user_ind_columns where index_name = ? order by column_position";
+
     protected Index[] getIndexes(Table t) throws NavigatorException {
         Main.log(3, "JDBCDatabase_Oracle.getIndexes(\"" + t.getQualifiedName() + "\")");
         JDBCTable table = (JDBCTable) t;
@@ -216,7 +288,7 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
             String pkName = pk == null ? null : pk.getName();
             ArrayList<BasicIndex> maybeIndexes = new ArrayList<BasicIndex>();
 
-            stmt = con.prepareStatement("select index_name, uniqueness from user_indexes where table_owner = ? and table_name = ? order by index_name");
+            stmt = prepareCached(con, INDEXES_SQL);
             stmt.setString(1, schema);
             stmt.setString(2, tableName);
             rs = stmt.executeQuery();
@@ -231,10 +303,10 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
             }
             rs.close();
             rs = null;
-            stmt.close();
+            releaseCached(con, INDEXES_SQL, stmt);
             stmt = null;
 
-            stmt = con.prepareStatement("select column_name from user_ind_columns where index_name = ? order by column_position");
+            stmt = prepareCached(con, INDEX_COLUMNS_SQL);
             ArrayList<Index> indexes = new ArrayList<Index>();
             for (BasicIndex index : maybeIndexes) {
                 ArrayList<String> columns = new ArrayList<String>();
@@ -252,7 +324,7 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
                     indexes.add(index);
                 }
             }
-            stmt.close();
+            releaseCached(con, INDEX_COLUMNS_SQL, stmt);
             stmt = null;
             return indexes.toArray(new Index[0]);
         } catch (SQLException e) {
@@ -444,6 +516,8 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
      * SYS.ALL_SYNONYMS view. If the given qualified name is not found,
      * returns <code>null</code>.
      */
+    private static final String SYNONYM_SQL = "select table_owner, table_name from sys.all_synonyms where owner = ? and synonym_name = ?";
+
     protected String getSynonymTarget(String qualifiedName) {
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -452,7 +526,7 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
         String name = nameToUpperCase(parts[2]);
         boolean success = false;
         try {
-            stmt = con.prepareStatement("select table_owner, table_name from sys.all_synonyms where owner = ? and synonym_name = ?");
+            stmt = prepareCached(con, SYNONYM_SQL);
             for (int i = 0; i < 16; i++) {
                 stmt.setString(1, schema);
                 stmt.setString(2, name);
@@ -463,7 +537,15 @@ public class JDBCDatabase_Oracle extends JDBCDatabase {
                 name = rs.getString(2);
                 schema = tmp;
                 success = true;
+                rs.close();
+                rs = null;
+            }
+            if (rs != null) {
+                rs.close();
+                rs = null;
             }
+            releaseCached(con, SYNONYM_SQL, stmt);
+            stmt = null;
         } catch (SQLException e) {
             // Ignore
         } finally {
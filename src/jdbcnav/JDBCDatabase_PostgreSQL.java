@@ -21,6 +21,7 @@ package jdbcnav;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -99,6 +100,56 @@ public class JDBCDatabase_PostgreSQL extends JDBCDatabase {
         return "public." + name;
     }
 
+    /**
+     * The PostgreSQL driver reads the entire ResultSet into memory unless
+     * a fetch size is set, and even then, it only uses a cursor when
+     * autocommit is off. So, background loads get a connection of their
+     * own, and a sensible default fetch size.
+     */
+    protected boolean streamingNeedsOwnConnection() {
+        return true;
+    }
+
+    protected int getDefaultFetchSize() {
+        return 1000;
+    }
+
+    /**
+     * The "C" collation compares strings byte by byte, which, in UTF-8 as
+     * well as in single-byte encodings, is code point order.
+     */
+    protected String getBinarySortExpression(String quotedName,
+                                             TypeSpec spec) {
+        if (isCharacterType(spec))
+            return quotedName + " collate \"C\"";
+        return quotedName;
+    }
+
+    protected long estimateRowCount(String qualifiedName) {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = con.prepareStatement("select reltuples::bigint from pg_class where oid = ?::regclass");
+            stmt.setString(1, qualifiedName);
+            rs = stmt.executeQuery();
+            // reltuples is -1 (or 0, in older versions) if the table has
+            // never been vacuumed or analyzed; the caller treats that as
+            // 'unknown'.
+            return rs.next() ? rs.getLong(1) : -1;
+        } catch (SQLException e) {
+            return -1;
+        } finally {
+            if (rs != null)
+                try {
+                    rs.close();
+                } catch (SQLException e) {}
+            if (stmt != null)
+                try {
+                    stmt.close();
+                } catch (SQLException e) {}
+        }
+    }
+
     protected TypeSpec makeTypeSpec(String dbType, Integer size, Integer scale,
                                     int sqlType, String javaType) {
         TypeSpec spec = makeDefaultTypeSpec(dbType, size, scale, sqlType,
@@ -0,0 +1,345 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs all of JDBC Navigator's background work (query loaders, script
+ * generation, searches, JavaScript commands, etc.) on a shared, bounded set
+ * of worker threads, instead of starting a new thread for every task.
+ * <br>
+ * Pending jobs are run in order of priority, and first-come, first-served
+ * within the same priority. Jobs can be assigned to a group (typically, the
+ * Database they work on), in which case no more than MAX_PER_GROUP jobs of
+ * that group will run at the same time; the rest wait their turn. Only use
+ * groups for jobs that don't wait for other jobs to finish, or they may end
+ * up waiting for a job that is queued behind them.
+ * <br>
+ * On runtimes that support virtual threads, those are used for the workers,
+ * and the thread limit is raised accordingly.
+ * <br>
+ * Jobs that may run indefinitely while mostly waiting (query loaders, which
+ * may be paused, or stream rows for as long as the user browses), and jobs
+ * that must run even when the pool is full of those (stopping a query), are
+ * started on threads of their own, using startDetached(); they don't count
+ * against the thread limit or any group's limit.
+ * <br>
+ * Delayed tasks all share a single timer thread; they should do very little
+ * work themselves, typically just posting something to the AWT Event thread
+ * or submitting a job.
+ */
+public class JobScheduler {
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private static final int MAX_PER_GROUP = 8;
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private static Object virtualThreadBuilder;
+    private static Method unstartedMethod;
+    static {
+        // Thread.ofVirtual() is Java 21; we're built for Java 8, so go
+        // through reflection. Before Java 24, however, a virtual thread that
+        // waits inside a synchronized block pins its carrier thread, and our
+        // jobs (and JDBC drivers) do that a lot, so we don't use them there.
+        try {
+            String v = System.getProperty("java.specification.version");
+            if (v.startsWith("1.") || Integer.parseInt(v) < 24)
+                throw new UnsupportedOperationException(v);
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            Method name = builderClass.getMethod("name", String.class);
+            builder = name.invoke(builder, "jdbcnav worker");
+            unstartedMethod = builderClass.getMethod("unstarted",
+                                                     Runnable.class);
+            virtualThreadBuilder = builder;
+        } catch (Exception e) {
+            // No (usable) virtual threads; use platform threads.
+        }
+    }
+
+    private int maxThreads;
+    private TreeSet<Job> pending = new TreeSet<Job>();
+    private Map<Object, Integer> runningPerGroup =
+                                            new HashMap<Object, Integer>();
+    private int threads;
+    private int idleThreads;
+    private long sequence;
+    private ScheduledThreadPoolExecutor timer;
+
+    public JobScheduler() {
+        if (virtualThreadBuilder != null)
+            maxThreads = 256;
+        else
+            maxThreads = Math.max(8,
+                            4 * Runtime.getRuntime().availableProcessors());
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "jdbcnav timer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        timer.setRemoveOnCancelPolicy(true);
+        Main.log(3, "JobScheduler: " + maxThreads + " "
+                    + (virtualThreadBuilder != null ? "virtual" : "platform")
+                    + " threads max");
+    }
+
+    /**
+     * Queues a job for execution. 'name' is used to name the worker thread
+     * while it runs the job; 'group' may be null. If 'busy' is true, the
+     * application shows the busy cursor while the job runs.
+     */
+    public Job submit(String name, int priority, Object group, boolean busy,
+                      Runnable runnable) {
+        Job job = new Job(name, priority, group, busy, runnable);
+        synchronized (this) {
+            job.seq = sequence++;
+            pending.add(job);
+            if (idleThreads > 0)
+                notifyAll();
+            // Idle workers that have been notified but haven't woken up yet
+            // still count as idle, so compare against all runnable jobs,
+            // not just this one.
+            if (threads < maxThreads && isEligible(job)
+                    && countEligible() > idleThreads)
+                startWorker();
+        }
+        return job;
+    }
+
+    /**
+     * Runs a job right away, on a thread of its own, outside the bounded
+     * pool of worker threads; see the class comment.
+     */
+    public Job startDetached(String name, int priority, boolean busy,
+                             Runnable runnable) {
+        final Job job = new Job(name, priority, null, busy, runnable);
+        Runnable r = new Runnable() {
+                    public void run() {
+                        job.run();
+                    }
+                };
+        Thread t = newThread(r);
+        t.start();
+        return job;
+    }
+
+    /**
+     * Runs 'task' on the timer thread after 'delay' milliseconds. The task
+     * should return quickly; it can be cancelled using the returned Future.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void startWorker() {
+        Runnable worker = new Runnable() {
+                    public void run() {
+                        Job job = null;
+                        while ((job = nextJob(job)) != null)
+                            job.run();
+                    }
+                };
+        Thread t = newThread(worker);
+        threads++;
+        t.start();
+    }
+
+    private static Thread newThread(Runnable r) {
+        Thread t = null;
+        if (virtualThreadBuilder != null)
+            try {
+                t = (Thread) unstartedMethod.invoke(virtualThreadBuilder, r);
+            } catch (Exception e) {
+                Main.log(1, "JobScheduler: can't create virtual thread: " + e);
+                virtualThreadBuilder = null;
+            }
+        if (t == null) {
+            t = new Thread(r, "jdbcnav worker");
+            t.setDaemon(true);
+        }
+        return t;
+    }
+
+    private synchronized int countEligible() {
+        int n = 0;
+        for (Job job : pending)
+            if (isEligible(job))
+                n++;
+        return n;
+    }
+
+    private synchronized boolean isEligible(Job job) {
+        if (job.group == null)
+            return true;
+        Integer n = runningPerGroup.get(job.group);
+        return n == null || n < MAX_PER_GROUP;
+    }
+
+    /**
+     * Called by the worker threads: accounts for the job they just finished,
+     * if any, and waits for the next job they are allowed to run. Returns
+     * null if the worker has been idle too long and should exit.
+     */
+    private synchronized Job nextJob(Job finished) {
+        if (finished != null && finished.group != null) {
+            int n = runningPerGroup.get(finished.group) - 1;
+            if (n == 0)
+                runningPerGroup.remove(finished.group);
+            else
+                runningPerGroup.put(finished.group, n);
+            // A job that was held back because of this group's limit may
+            // now be runnable.
+            if (idleThreads > 0)
+                notifyAll();
+        }
+        long deadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+        while (true) {
+            for (Iterator<Job> iter = pending.iterator(); iter.hasNext();) {
+                Job job = iter.next();
+                if (isEligible(job)) {
+                    iter.remove();
+                    if (job.group != null) {
+                        Integer n = runningPerGroup.get(job.group);
+                        runningPerGroup.put(job.group, n == null ? 1 : n + 1);
+                    }
+                    return job;
+                }
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                threads--;
+                return null;
+            }
+            idleThreads++;
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                // Ignore
+            } finally {
+                idleThreads--;
+            }
+        }
+    }
+
+    private synchronized boolean dequeue(Job job) {
+        return pending.remove(job);
+    }
+
+    public class Job implements Comparable<Job> {
+        private String name;
+        private int priority;
+        private Object group;
+        private boolean busy;
+        private Runnable runnable;
+        private long seq;
+        private Thread thread;
+        private boolean done;
+
+        private Job(String name, int priority, Object group, boolean busy,
+                    Runnable runnable) {
+            this.name = name;
+            this.priority = priority;
+            this.group = group;
+            this.busy = busy;
+            this.runnable = runnable;
+        }
+
+        public int compareTo(Job that) {
+            if (priority != that.priority)
+                return priority < that.priority ? -1 : 1;
+            return seq < that.seq ? -1 : seq > that.seq ? 1 : 0;
+        }
+
+        /**
+         * Returns the thread running this job, or null if it hasn't started
+         * yet, or has finished.
+         */
+        public synchronized Thread getThread() {
+            return thread;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Cancels the job: if it hasn't started yet, it is removed from the
+         * queue; if it is running, its thread is interrupted.
+         */
+        public void cancel() {
+            if (dequeue(this)) {
+                synchronized (this) {
+                    done = true;
+                }
+                return;
+            }
+            synchronized (this) {
+                if (thread != null)
+                    thread.interrupt();
+            }
+        }
+
+        private void run() {
+            Thread t = Thread.currentThread();
+            synchronized (this) {
+                if (done)
+                    return;
+                thread = t;
+            }
+            t.setName("jdbcnav: " + name);
+            if (priority == PRIORITY_LOW)
+                t.setPriority(Thread.MIN_PRIORITY);
+            if (busy)
+                Main.backgroundJobStarted();
+            try {
+                runnable.run();
+            } catch (Throwable th) {
+                // Report it the same way an uncaught exception in a thread
+                // of its own would have been, but keep the worker alive.
+                t.getUncaughtExceptionHandler().uncaughtException(t, th);
+            } finally {
+                if (busy)
+                    Main.backgroundJobEnded();
+                synchronized (this) {
+                    thread = null;
+                    done = true;
+                }
+                // Don't let an interrupt meant for this job affect the next
+                Thread.interrupted();
+                t.setPriority(Thread.NORM_PRIORITY);
+                t.setName("jdbcnav worker");
+            }
+        }
+    }
+}
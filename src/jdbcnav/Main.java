@@ -64,6 +64,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.swing.InputMap;
 import javax.swing.JComponent;
@@ -752,6 +753,50 @@ public class Main extends JFrame {
         }
     }
 
+    private static JobScheduler scheduler;
+
+    private static synchronized JobScheduler getScheduler() {
+        if (scheduler == null)
+            scheduler = new JobScheduler();
+        return scheduler;
+    }
+
+    /**
+     * Runs a job in the background, using the shared JobScheduler; see
+     * that class for the meaning of the parameters.
+     */
+    public static JobScheduler.Job submitJob(String name, int priority,
+                                             Runnable job) {
+        return getScheduler().submit(name, priority, null, false, job);
+    }
+
+    public static JobScheduler.Job submitJob(String name, int priority,
+                                    Object group, boolean busy, Runnable job) {
+        return getScheduler().submit(name, priority, group, busy, job);
+    }
+
+    /**
+     * Runs a job right away, on a thread of its own; for jobs that must not
+     * wait for the shared worker threads, or that would tie one up for a
+     * long time. See JobScheduler.startDetached().
+     */
+    public static JobScheduler.Job startDetachedJob(String name, int priority,
+                                                    Runnable job) {
+        return getScheduler().startDetached(name, priority, false, job);
+    }
+
+    /**
+     * Runs a (short) task after 'delay' milliseconds, on the shared timer
+     * thread.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return getScheduler().schedule(task, delay);
+    }
+
+    // The busy cursor is shown while any job submitted with busy = true is
+    // running, or between calls to backgroundJobStarted() and
+    // backgroundJobEnded(), for work that is done on the AWT Event thread.
+
     public static void backgroundJobStarted() {
         backgroundJobStateChange(true);
     }
@@ -949,7 +994,7 @@ public class Main extends JFrame {
     }
 
     private static class AboutGlassPane extends JComponent {
-        private Thread timeout;
+        private ScheduledFuture<?> timeout;
         private boolean showAbout;
         public AboutGlassPane() {
             addMouseListener(new MouseAdapter() {
@@ -976,30 +1021,26 @@ public class Main extends JFrame {
                 });
         }
         public void startTimeout() {
-            timeout = new Thread(new Runnable() {
+            timeout = Main.schedule(new Runnable() {
                         public void run() {
-                            long timeleft = 5000;
-                            long endtime = new Date().getTime() + timeleft;
-                            Thread thisThread = Thread.currentThread();
-                            do {
-                                try {
-                                    Thread.sleep(timeleft);
-                                } catch (InterruptedException e) {}
-                                timeleft = endtime - new Date().getTime();
-                            } while (timeout == thisThread && timeleft > 0);
-                            if (timeout == thisThread)
-                                setVisible(false);
+                            SwingUtilities.invokeLater(new Runnable() {
+                                    public void run() {
+                                        if (timeout != null)
+                                            setVisible(false);
+                                    }
+                                });
                         }
-                    });
-            timeout.setDaemon(true);
-            timeout.start();
+                    }, 5000);
         }
         public void showAbout() {
             showAbout = true;
             setVisible(true);
         }
         public void setVisible(boolean visible) {
-            timeout = null;
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
             super.setVisible(visible);
             if (visible) {
                 if (showAbout)
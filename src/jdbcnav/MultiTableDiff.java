@@ -24,15 +24,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 
 import jdbcnav.model.Data;
 import jdbcnav.model.Database;
 import jdbcnav.model.ForeignKey;
+import jdbcnav.model.RowCursor;
 import jdbcnav.model.Table;
 import jdbcnav.util.MiscUtils;
 import jdbcnav.util.NavigatorException;
+import jdbcnav.util.RowKey;
 
 
 public class MultiTableDiff {
@@ -56,10 +59,87 @@ public class MultiTableDiff {
                                    returnNewTables);
     }
 
-    private TreeMap<Table, ArrayList<Object[]>> oldcells;
-    private TreeMap<Table, ArrayList<Object[]>> newcells;
+    /**
+     * Like diff(), but if 'detectKeyUpdates' is true, a deleted row and an
+     * inserted row that are the same except for their primary keys (and
+     * their foreign keys, where those refer to rows whose keys changed the
+     * same way) are turned into a single update that changes the key. This
+     * keeps scripts that re-key tables small, especially when the foreign
+     * keys referring to those tables are "on update cascade".
+     */
+    public static void diff(TableChangeHandler tch, Collection<Table> oldColl,
+                            Collection<Table> newColl, boolean waitUntilReady,
+                            boolean returnNewTables, boolean detectKeyUpdates)
+                                                throws NavigatorException {
+        MultiTableDiff mtd = new MultiTableDiff();
+        mtd.detectKeyUpdates = detectKeyUpdates;
+        mtd.diff2(tch, oldColl, newColl, waitUntilReady, returnNewTables);
+    }
+
+    /**
+     * Commits the changes made to a set of tables, as reported by their
+     * models' getChanges(), ordering them so that the foreign key constraints
+     * between the tables are satisfied at every step. Unlike diff(), this
+     * never looks at unchanged rows, so its cost is proportional to the
+     * number of changes, not to the size of the tables.
+     */
+    public static void commit(TableChangeHandler tch, Collection<Table> tables)
+                                                throws NavigatorException {
+        new MultiTableDiff().commit2(tch, tables);
+    }
+
+    /**
+     * Like diff(), but reads the tables one row at a time, in primary key
+     * order, using Table.getRowsInPKOrder(), and merges the old and new rows
+     * as they come in, so that tables too large to load can be compared.
+     * Only the keys of deleted rows are kept, since the deletes have to wait
+     * until the tables that refer to them are done; tables that can't
+     * provide their rows that way (e.g. because they have a model) are
+     * loaded as usual.
+     * <br>
+     * The tables are done in foreign key order: the inserts and updates of
+     * each table after those of the tables it refers to, and the deletes at
+     * the end, in the opposite order. When there is no such order, because
+     * the foreign keys form a cycle, or when a table has no primary key,
+     * this falls back on diff(). Changes to primary keys are never detected.
+     * The database must sort the keys the same way RowKey does; tables with
+     * string keys that it can't be told to sort by code point are loaded
+     * instead. If rows still arrive out of order, or two keys can't be
+     * compared at all, this throws an exception rather than pair up the
+     * wrong rows.
+     * <br>
+     * Loading the tables is what the caller was trying to avoid, so if
+     * 'notes' isn't null, a message is added to it for each time that
+     * happened, to be shown to the user.
+     */
+    public static void streamingDiff(TableChangeHandler tch,
+                                     Collection<Table> oldColl,
+                                     Collection<Table> newColl,
+                                     boolean returnNewTables,
+                                     Collection<String> notes)
+                                                throws NavigatorException {
+        new MultiTableDiff().streamingDiff2(tch, oldColl, newColl,
+                                            returnNewTables, notes);
+    }
+
     private ArrayList<Table> oldtables;
     private ArrayList<Table> newtables;
+    private boolean detectKeyUpdates;
+
+    // The pending changes of all the tables, numbered in the order in which
+    // they are tried: table by table, and within each table, the deletes,
+    // then the updates, then the key updates, then the inserts; a delete
+    // and an insert that have been combined into a key update are marked
+    // as done, unless the key update has to be split up again. Change n
+    // belongs to
+    // changeTable[n], where it is number n - changeTable[n].base.
+    private TableDiff[] changeTable;
+    private boolean[] changeDone;
+    // The changes that may have become possible, to be tried later in the
+    // current pass or in the next one, and the change tried last.
+    private PriorityQueue<Integer> thisPass;
+    private PriorityQueue<Integer> nextPass;
+    private int lastTried;
 
     private void diff2(TableChangeHandler tch, Collection<Table> oldColl,
                        Collection<Table> newColl, boolean waitUntilReady,
@@ -80,10 +160,9 @@ public class MultiTableDiff {
         // It is our caller's responsibility to pause or cancel loads that are
         // in progress before calling us.
 
-        oldcells = new TreeMap<Table, ArrayList<Object[]>>();
-        newcells = new TreeMap<Table, ArrayList<Object[]>>();
         oldtables = new ArrayList<Table>();
         newtables = new ArrayList<Table>();
+        ArrayList<TableDiff> diffs = new ArrayList<TableDiff>();
         Database olddb = null;
         Database newdb = null;
 
@@ -96,8 +175,9 @@ public class MultiTableDiff {
                                                 + "Data Source.");
 
             if (newColl == null) {
-                oldcells.put(t1, makeCellArray(t1, waitUntilReady, true));
-                newcells.put(t1, makeCellArray(t1, waitUntilReady, false));
+                diffs.add(new TableDiff(t1, t1,
+                                makeCellArray(t1, waitUntilReady, true),
+                                makeCellArray(t1, waitUntilReady, false)));
                 oldtables.add(t1);
                 newtables.add(t1);
             } else {
@@ -126,153 +206,1015 @@ public class MultiTableDiff {
                                                   "All tables in a Table Set "
                                                 + "must come from the same "
                                                 + "Data Source.");
-                    oldcells.put(t1, makeCellArray(t1, waitUntilReady, false));
-                    newcells.put(t2, makeCellArray(t2, waitUntilReady, false));
+                    diffs.add(new TableDiff(t1, t2,
+                                makeCellArray(t1, waitUntilReady, false),
+                                makeCellArray(t2, waitUntilReady, false)));
                     oldtables.add(t1);
                     newtables.add(t2);
                 }
             }
         }
 
+        // Find the tables that the foreign keys and referencing keys point
+        // to, and count the references to each row, so that checking the
+        // constraints doesn't involve searching any tables.
+        TreeMap<Table, TableDiff> diffMap = new TreeMap<Table, TableDiff>();
+        for (TableDiff td : diffs)
+            diffMap.put(td.oldTable, td);
+        for (TableDiff td : diffs) {
+            Table table = td.oldTable;
+            ForeignKey[] fks = table.getForeignKeys();
+            td.fkTables = new TableDiff[fks.length];
+            td.fkColumns = new int[fks.length][];
+            for (int i = 0; i < fks.length; i++) {
+                ForeignKey fk = fks[i];
+                Table t = findTable(oldtables, fk.getThatCatalog(),
+                                               fk.getThatSchema(),
+                                               fk.getThatName());
+                if (t == null)
+                    // Table is not in table set; ignore this constraint
+                    continue;
+                td.fkTables[i] = diffMap.get(t);
+                td.fkColumns[i] = table.getFKColumns(i, t);
+            }
+            ForeignKey[] rks = table.getReferencingKeys();
+            for (int i = 0; i < rks.length; i++) {
+                ForeignKey rk = rks[i];
+                Table t = findTable(oldtables, rk.getThatCatalog(),
+                                               rk.getThatSchema(),
+                                               rk.getThatName());
+                if (t == null)
+                    // Table is not in table set; ignore this constraint
+                    continue;
+                TableDiff that = diffMap.get(t);
+                int[] columns = table.getRKColumns(i, t);
+                that.rkTables.add(td);
+                that.rkColumns.add(columns);
+                // When looking for key updates, the database takes care of
+                // references that cascade on update, so we only need to
+                // keep track of which rows they are in; unless they are
+                // part of the primary key of the referring table, which
+                // would make things far too tricky.
+                boolean cascade = detectKeyUpdates
+                        && "cascade".equalsIgnoreCase(rk.getUpdateRule());
+                for (int j = 0; cascade && j < columns.length; j++)
+                    for (int k = 0; k < that.pkColumns.length; k++)
+                        if (columns[j] == that.pkColumns[k])
+                            cascade = false;
+                if (cascade) {
+                    that.rkRows.add(
+                            new HashMap<RowKey, ArrayList<RowKey>>());
+                    td.cascadeTables.add(that);
+                    td.cascadeIndexes.add(that.rkTables.size() - 1);
+                } else
+                    that.rkRows.add(null);
+            }
+        }
+        for (TableDiff td : diffs) {
+            td.reportTable = returnNewTables ? td.newTable : td.oldTable;
+            for (Object[] row : td.current.values())
+                countReferences(td, row, 1);
+        }
+        if (detectKeyUpdates)
+            findKeyUpdates(diffs);
+
 
-        // NOTE:
-        // The algorithm implemented here was designed for simplicity
-        // and correctness. In the interest of efficiency, it may need
-        // to be completely rewritten. The two main flaws of the
-        // current implementation: deletes that would cause cascaded
-        // deletes are not done (the cascaded deletes must be done
-        // separately), which may cause unnecessary extra passes over
-        // the table set; and no attempt is made to update primary
-        // keys (rows are matched by primary key, so a change to a
+        // The changes are made in an order that satisfies the foreign key
+        // constraints at every step: a row can't be deleted while other
+        // rows still refer to it, and a row can't be inserted or updated
+        // while a row it refers to doesn't exist yet. This order is the
+        // one you get by making passes over all the pending changes, in
+        // order, making the ones that are possible, until they're all
+        // done; the changes are generated in that same order, but without
+        // actually going over the pending changes again and again.
+        // Instead, a change that can't be made yet waits for the key that
+        // is stopping it, and when that key is inserted, or no longer
+        // referenced, the change is scheduled to be tried again, either
+        // later in the current pass, or in the next one. So, each change is
+        // only tried when it may have become possible, and the changes are
+        // done when no more changes are scheduled.
+        //
+        // Two known flaws: deletes that would cause cascaded deletes are
+        // not done (the cascaded deletes must be done separately); and,
+        // unless detectKeyUpdates is set, no attempt is made to update
+        // primary keys (rows are matched by primary key, so a change to a
         // primary key ends up generating a delete and an insert, plus
-        // possibly lots and lots of updates to emulate cascaded
-        // updates to foreign keys). The second flaw in particular
-        // is nontrivial to correct: the current implementation assumes
-        // that updates have only prerequisites, but never side
-        // effects, and that is only true if primary keys are never
-        // updated.
-        // Having said all that, the current algorithm will always
-        // generate correct SQL; it still remains to be proved if it
-        // will always *succeed*, but that is an exercise in math that
-        // I don't have time for at the moment, and so I assume and
-        // hope that whatever brittleness this algorihm may have is
-        // only triggered by pathological schemas.
-
-        boolean notDone, didSomething;
-        boolean postmortem = false;
-        do {
-            notDone = false;
-            didSomething = false;
-            Iterator<Table> iter1 = oldtables.iterator();
-            Iterator<Table> iter2 = newtables.iterator();
-            while (iter1.hasNext()) {
-                Table t1 = iter1.next();
-                Table t2 = iter2.next();
-                ArrayList<Object[]> cells1 = oldcells.get(t1);
-                ArrayList<Object[]> cells2 = newcells.get(t2);
-                int rows1 = cells1.size();
-                int rows2 = cells2.size();
-                ArrayList<Object[]> deletedKey = new ArrayList<Object[]>();
-                ArrayList<Object[]> updatedRow = new ArrayList<Object[]>();
-                ArrayList<Object[]> insertedRow = new ArrayList<Object[]>();
-                ArrayList<Integer> foundIndex = new ArrayList<Integer>();
-
-                for (int j = 0; j < rows1; j++) {
-                    Object[] key = indexToPK(t1, cells1, j);
-                    int k = pkToIndex(t2, cells2, key);
-                    if (k >= 0) {
-                        Object[] row1 = indexToRow(cells1, j);
-                        Object[] row2 = indexToRow(cells2, k);
-                        if (!Arrays.equals(row1, row2))
-                            updatedRow.add(row2);
-                        foundIndex.add(k);
-                    } else
-                        deletedKey.add(key);
+        // possibly lots and lots of updates to emulate cascaded updates to
+        // foreign keys). Key updates are not side-effect free like other
+        // changes: they remove one key and add another, and they may update
+        // rows in other tables, through foreign keys that cascade on update.
+        // When key updates and the changes in the referring rows end up
+        // waiting for each other, the key updates are split into deletes
+        // and inserts again.
+
+        int total = 0;
+        for (TableDiff td : diffs) {
+            td.base = total;
+            total += td.getChangeCount();
+        }
+        changeTable = new TableDiff[total];
+        changeDone = new boolean[total];
+        thisPass = new PriorityQueue<Integer>(Math.max(total, 1));
+        nextPass = new PriorityQueue<Integer>();
+        int remaining = total;
+        for (TableDiff td : diffs) {
+            int end = td.base + td.getChangeCount();
+            for (int n = td.base; n < end; n++) {
+                changeTable[n] = td;
+                thisPass.add(n);
+            }
+            for (int k = 0; k < td.keyUpdateCount; k++) {
+                changeDone[td.base + td.keyUpdateDeletes[k]] = true;
+                changeDone[td.base + td.getInsertBase()
+                                            + td.keyUpdateInserts[k]] = true;
+                remaining -= 2;
+            }
+        }
+        lastTried = -1;
+
+        while (remaining > 0) {
+            Integer n = thisPass.poll();
+            if (n == null) {
+                if (nextPass.isEmpty()) {
+                    int splits = splitKeyUpdates();
+                    if (splits == 0)
+                        break;
+                    remaining += splits;
+                    lastTried = -1;
+                    continue;
+                }
+                PriorityQueue<Integer> q = thisPass;
+                thisPass = nextPass;
+                nextPass = q;
+                lastTried = -1;
+                continue;
+            }
+            if (changeDone[n])
+                continue;
+            lastTried = n;
+            if (makeChange(tch, n, false)) {
+                changeDone[n] = true;
+                remaining--;
+            }
+        }
+
+        if (remaining > 0) {
+            // The remaining changes are all waiting, either for each other,
+            // or for something that is never going to happen.
+            String problem = explainDeadlock();
+            Main.log(1, "MultiTableDiff: " + problem.replace('\n', ' '));
+            if (!tch.continueAfterError())
+                // TableChangeHandler not interested
+                // in postmortem debugging
+                throw new NavigatorException(problem);
+            // Dump remaining changes without regard for constraints; we
+            // notify the TableChangeHandler what we're doing, so they know
+            // not to take the generated output too seriously
+            for (int n = 0; n < total; n++)
+                if (!changeDone[n])
+                    makeChange(tch, n, true);
+        }
+    }
+
+    /**
+     * Makes change number n, if the foreign key constraints allow it, or
+     * regardless, if 'force' is true. Returns false if the change can't be
+     * made yet, after making it wait for whatever is stopping it.
+     */
+    private boolean makeChange(TableChangeHandler tch, int n, boolean force)
+                                                throws NavigatorException {
+        TableDiff td = changeTable[n];
+        int j = n - td.base;
+        Object[] row = td.getChangeRow(j);
+        RowKey key = new RowKey(row, td.pkColumns);
+
+        switch (td.getChangeType(j)) {
+            case TableDiff.DELETE: {
+                if (!force && !canDeleteKey(td, key, n))
+                    return false;
+                tch.deleteRow(td.reportTable, extract(row, td.pkColumns));
+                removeRow(td, key);
+                return true;
+            }
+            case TableDiff.UPDATE: {
+                if (!force && !canUpdateRow(td, row, n))
+                    return false;
+                Object[] oldRow = td.current.get(key);
+                if (Arrays.equals(oldRow, row))
+                    // Already done, by a key update that cascaded
+                    return true;
+                tch.updateRow(td.reportTable, oldRow, row);
+                putRow(td, key, row);
+                return true;
+            }
+            case TableDiff.KEY_UPDATE: {
+                Object[] oldRow = td.oldRows[td.deletes[
+                            td.keyUpdateDeletes[j - td.getKeyUpdateBase()]]];
+                RowKey oldKey = new RowKey(oldRow, td.pkColumns);
+                if (!force && !canUpdateKey(td, oldKey, row, n))
+                    return false;
+                oldRow = td.current.get(oldKey);
+                tch.updateRow(td.reportTable, oldRow, row);
+                removeRow(td, oldKey);
+                putRow(td, key, row);
+                cascadeKeyUpdate(td, oldKey, row);
+                wake(td, key);
+                return true;
+            }
+            default: {
+                if (!force && !canInsertRow(td, row, n))
+                    return false;
+                tch.insertRow(td.reportTable, row);
+                putRow(td, key, row);
+                wake(td, key);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Puts a row in the current state of table 'td', replacing the one with
+     * the same key, if any, and updates the reference counts.
+     */
+    private void putRow(TableDiff td, RowKey key, Object[] row) {
+        Object[] oldRow = td.current.put(key, row);
+        if (oldRow != null)
+            countReferences(td, oldRow, -1);
+        countReferences(td, row, 1);
+    }
+
+    /**
+     * Removes a row from the current state of table 'td', and updates the
+     * reference counts.
+     */
+    private void removeRow(TableDiff td, RowKey key) {
+        Object[] oldRow = td.current.remove(key);
+        if (oldRow != null)
+            countReferences(td, oldRow, -1);
+    }
+
+    /**
+     * Changes the rows that refer to 'oldKey' in table 'td', through foreign
+     * keys that cascade on update, the way the database does when the key
+     * is changed to that of 'newRow'.
+     */
+    private void cascadeKeyUpdate(TableDiff td, RowKey oldKey,
+                                  Object[] newRow) {
+        for (int i = 0; i < td.cascadeTables.size(); i++) {
+            TableDiff that = td.cascadeTables.get(i);
+            int index = td.cascadeIndexes.get(i);
+            ArrayList<RowKey> keys = that.rkRows.get(index).get(oldKey);
+            if (keys == null)
+                continue;
+            int[] columns = that.rkColumns.get(index);
+            for (RowKey key : new ArrayList<RowKey>(keys)) {
+                Object[] row = that.current.get(key).clone();
+                for (int j = 0; j < columns.length; j++)
+                    row[columns[j]] = newRow[td.pkColumns[j]];
+                putRow(that, key, row);
+            }
+        }
+    }
+
+    /**
+     * Called when no more changes can be made, but some are still pending;
+     * splits the pending key updates into deletes and inserts, which may
+     * get things going again. Returns the number of changes this adds.
+     */
+    private int splitKeyUpdates() {
+        int added = 0;
+        for (int n = 0; n < changeTable.length; n++) {
+            if (changeDone[n])
+                continue;
+            TableDiff td = changeTable[n];
+            int j = n - td.base;
+            if (td.getChangeType(j) != TableDiff.KEY_UPDATE)
+                continue;
+            int k = j - td.getKeyUpdateBase();
+            changeDone[n] = true;
+            int d = td.base + td.keyUpdateDeletes[k];
+            int i = td.base + td.getInsertBase() + td.keyUpdateInserts[k];
+            changeDone[d] = false;
+            changeDone[i] = false;
+            thisPass.add(d);
+            thisPass.add(i);
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Adds 'delta' to the reference counts of the keys 'row' refers to, and
+     * wakes the changes waiting for keys that are no longer referenced.
+     */
+    private void countReferences(TableDiff td, Object[] row, int delta) {
+        for (int i = 0; i < td.rkTables.size(); i++) {
+            RowKey key = new RowKey(row, td.rkColumns.get(i));
+            if (key.hasNull())
+                continue;
+            TableDiff that = td.rkTables.get(i);
+            HashMap<RowKey, ArrayList<RowKey>> rows = td.rkRows.get(i);
+            HashMap<RowKey, Integer> counts =
+                            rows == null ? that.referenced : that.cascaded;
+            count(counts, key, delta);
+            if (rows != null) {
+                RowKey self = new RowKey(row, td.pkColumns);
+                ArrayList<RowKey> keys = rows.get(key);
+                if (delta > 0) {
+                    if (keys == null) {
+                        keys = new ArrayList<RowKey>();
+                        rows.put(key, keys);
+                    }
+                    keys.add(self);
+                } else if (keys != null) {
+                    keys.remove(self);
+                    if (keys.isEmpty())
+                        rows.remove(key);
+                }
+            }
+            if (delta < 0 && !counts.containsKey(key))
+                wake(that, key);
+        }
+    }
+
+    /**
+     * Makes change n wait until 'key', in table 'td', is inserted, or stops
+     * being referenced.
+     */
+    private static void waitFor(TableDiff td, RowKey key, int n) {
+        ArrayList<Integer> changes = td.waiting.get(key);
+        if (changes == null) {
+            changes = new ArrayList<Integer>();
+            td.waiting.put(key, changes);
+        }
+        changes.add(n);
+    }
+
+    /**
+     * Schedules the changes waiting for 'key', in table 'td', to be tried
+     * again: in the current pass, if it hasn't reached them yet, or else in
+     * the next one.
+     */
+    private void wake(TableDiff td, RowKey key) {
+        ArrayList<Integer> changes = td.waiting.remove(key);
+        if (changes == null)
+            return;
+        for (int n : changes)
+            if (!changeDone[n])
+                (n > lastTried ? thisPass : nextPass).add(n);
+    }
+
+    /**
+     * Called when no more changes can be made, but some are still pending;
+     * finds out why, by following the chain of changes waiting for each
+     * other, starting at the first pending one, until it either comes back
+     * to a change it has seen before, meaning the changes depend on each
+     * other in a circle, or it gets to a change that is waiting for
+     * something that no pending change is going to do. Key updates have
+     * been split up by the time this is called, so there are none pending.
+     */
+    private String explainDeadlock() {
+        // Which pending changes will insert, or stop referring to, which
+        // keys of which tables
+        HashMap<TableDiff, HashMap<RowKey, ArrayList<Integer>>> inserting =
+                    new HashMap<TableDiff, HashMap<RowKey, ArrayList<Integer>>>();
+        HashMap<TableDiff, HashMap<RowKey, ArrayList<Integer>>> releasing =
+                    new HashMap<TableDiff, HashMap<RowKey, ArrayList<Integer>>>();
+        for (int n = 0; n < changeTable.length; n++) {
+            if (changeDone[n])
+                continue;
+            TableDiff td = changeTable[n];
+            int j = n - td.base;
+            Object[] row = td.getChangeRow(j);
+            if (td.getChangeType(j) == TableDiff.INSERT) {
+                addChange(inserting, td, new RowKey(row, td.pkColumns), n);
+                continue;
+            }
+            row = td.current.get(new RowKey(row, td.pkColumns));
+            if (row == null)
+                continue;
+            for (int i = 0; i < td.rkTables.size(); i++) {
+                RowKey key = new RowKey(row, td.rkColumns.get(i));
+                if (!key.hasNull())
+                    addChange(releasing, td.rkTables.get(i), key, n);
+            }
+        }
+
+        HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        ArrayList<Integer> chain = new ArrayList<Integer>();
+        int n = 0;
+        while (changeDone[n])
+            n++;
+        String reason;
+        while (true) {
+            seen.put(n, chain.size());
+            chain.add(n);
+            TableDiff td = changeTable[n];
+            int j = n - td.base;
+            Object[] row = td.getChangeRow(j);
+            ArrayList<Integer> next;
+            if (td.getChangeType(j) == TableDiff.DELETE) {
+                RowKey key = new RowKey(row, td.pkColumns);
+                next = getChanges(releasing, td, key);
+                Integer refs = td.referenced.get(key);
+                Integer cascaded = td.cascaded.get(key);
+                int n1 = refs == null ? 0 : refs;
+                int n2 = cascaded == null ? 0 : cascaded;
+                if (next == null || n1 + n2 > next.size()) {
+                    reason = ", which is still referred to\n"
+                            + "by rows in the new data.";
+                    break;
+                }
+            } else {
+                boolean update = td.getChangeType(j) == TableDiff.UPDATE;
+                int i = missingForeignKey(td, row);
+                if (i == -1) {
+                    // Not waiting for another row, so it must be the
+                    // row's own key that is the problem
+                    reason = update ? ", which updates a row\n"
+                                        + "that doesn't exist."
+                                    : ", whose key is\n"
+                                        + "null or already in use.";
+                    break;
+                }
+                TableDiff that = td.fkTables[i];
+                next = getChanges(inserting, that,
+                                  new RowKey(row, td.fkColumns[i]));
+                if (next == null) {
+                    reason = ", which refers to a row\nin "
+                            + that.oldTable.getName()
+                            + " that doesn't exist.";
+                    break;
+                }
+            }
+            n = next.get(0);
+            Integer start = seen.get(n);
+            if (start != null) {
+                chain = new ArrayList<Integer>(chain.subList(start,
+                                                             chain.size()));
+                chain.add(n);
+                reason = null;
+                break;
+            }
+        }
+
+        StringBuffer buf = new StringBuffer();
+        buf.append("The changes can't be made, because ");
+        if (reason == null)
+            buf.append("they\ndepend on each other in a circle:\n");
+        else if (chain.size() == 1)
+            buf.append("of\n");
+        else
+            buf.append("\n");
+        for (int i = 0; i < chain.size(); i++) {
+            if (i > 0)
+                buf.append(i == 1 ? " waits for\n" : ", which waits for\n");
+            if (i == 10 && chain.size() > 12) {
+                buf.append("(" + (chain.size() - 11) + " more), ...\n");
+                i = chain.size() - 1;
+            }
+            buf.append(describeChange(chain.get(i)));
+        }
+        buf.append(reason == null ? "." : reason);
+        return buf.toString();
+    }
+
+    private static void addChange(
+                HashMap<TableDiff, HashMap<RowKey, ArrayList<Integer>>> map,
+                TableDiff td, RowKey key, int n) {
+        HashMap<RowKey, ArrayList<Integer>> m = map.get(td);
+        if (m == null) {
+            m = new HashMap<RowKey, ArrayList<Integer>>();
+            map.put(td, m);
+        }
+        ArrayList<Integer> changes = m.get(key);
+        if (changes == null) {
+            changes = new ArrayList<Integer>();
+            m.put(key, changes);
+        }
+        changes.add(n);
+    }
+
+    private static ArrayList<Integer> getChanges(
+                HashMap<TableDiff, HashMap<RowKey, ArrayList<Integer>>> map,
+                TableDiff td, RowKey key) {
+        HashMap<RowKey, ArrayList<Integer>> m = map.get(td);
+        return m == null ? null : m.get(key);
+    }
+
+    private String describeChange(int n) {
+        TableDiff td = changeTable[n];
+        int j = n - td.base;
+        StringBuffer buf = new StringBuffer();
+        switch (td.getChangeType(j)) {
+            case TableDiff.DELETE:
+                buf.append("delete from ");
+                break;
+            case TableDiff.INSERT:
+                buf.append("insert into ");
+                break;
+            default:
+                buf.append("update of ");
+                break;
+        }
+        Object[] row = td.getChangeRow(j);
+        buf.append(td.oldTable.getName());
+        buf.append(" (");
+        for (int i = 0; i < td.pkColumns.length; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(row[td.pkColumns[i]]);
+        }
+        buf.append(")");
+        return buf.toString();
+    }
+
+    /**
+     * The differences between an old and a new table: which rows have to be
+     * deleted, updated, and inserted to turn the one into the other, and
+     * the old table's current state as those changes are made.
+     * <br>
+     * Rows are matched by primary key using hash maps, so finding the
+     * differences takes linear time. Both tables' rows are still sorted by
+     * primary key, though, because that determines the order in which the
+     * changes are generated. The pending changes are kept as indexes into
+     * the sorted rows.
+     * <br>
+     * To check the foreign key constraints without searching, each table
+     * keeps count of how many rows in the current state of the tables
+     * refer to each of its keys; those counts are kept up to date as the
+     * changes are made.
+     */
+    private static class TableDiff {
+        Table oldTable;
+        Table newTable;
+        Table reportTable;  // the one to pass to the TableChangeHandler
+        int[] pkColumns;
+        Object[][] oldRows;
+        Object[][] newRows;
+        HashMap<RowKey, Object[]> current;
+
+        // For each foreign key: the referenced table, if it is in the set
+        // being diffed (null otherwise), and the key's columns in this
+        // table, in the order of the referenced table's primary key.
+        TableDiff[] fkTables;
+        int[][] fkColumns;
+        // For each referencing key whose table is in the set: the
+        // referenced table, the key's columns in this table, and, if the
+        // key cascades on update, the keys of the rows in this table that
+        // refer to each key of the referenced table (null otherwise).
+        ArrayList<TableDiff> rkTables = new ArrayList<TableDiff>();
+        ArrayList<int[]> rkColumns = new ArrayList<int[]>();
+        ArrayList<HashMap<RowKey, ArrayList<RowKey>>> rkRows =
+                        new ArrayList<HashMap<RowKey, ArrayList<RowKey>>>();
+        // The tables with keys that refer to this one and cascade on update,
+        // and the indexes of those keys in their rkTables.
+        ArrayList<TableDiff> cascadeTables = new ArrayList<TableDiff>();
+        ArrayList<Integer> cascadeIndexes = new ArrayList<Integer>();
+        // Keys of rows in this table, and how many rows refer to each;
+        // references that cascade on update are counted separately.
+        HashMap<RowKey, Integer> referenced = new HashMap<RowKey, Integer>();
+        HashMap<RowKey, Integer> cascaded = new HashMap<RowKey, Integer>();
+        // Changes waiting for keys of this table to be inserted, or to stop
+        // being referenced.
+        HashMap<RowKey, ArrayList<Integer>> waiting =
+                                    new HashMap<RowKey, ArrayList<Integer>>();
+
+        int base;           // the number of this table's first change
+        int[] deletes;      // indexes into oldRows
+        int deleteCount;
+        int[] updates;      // indexes into newRows
+        int updateCount;
+        int[] inserts;      // indexes into newRows
+        int insertCount;
+        // Deletes and inserts that are combined into key updates
+        int[] keyUpdateDeletes;     // indexes into deletes
+        int[] keyUpdateInserts;     // indexes into inserts
+        int keyUpdateCount;
+        // The keys that the key updates change, old to new
+        HashMap<RowKey, Object[]> keyMap;
+
+        static final int DELETE = 0;
+        static final int UPDATE = 1;
+        static final int KEY_UPDATE = 2;
+        static final int INSERT = 3;
+
+        public TableDiff(Table oldTable, Table newTable,
+                         ArrayList<Object[]> oldList,
+                         ArrayList<Object[]> newList)
+                                                throws NavigatorException {
+            this.oldTable = oldTable;
+            this.newTable = newTable;
+            pkColumns = oldTable.getPKColumns();
+            int[] newPkColumns = newTable.getPKColumns();
+            oldRows = oldList.toArray(new Object[oldList.size()][]);
+            newRows = newList.toArray(new Object[newList.size()][]);
+
+            current = new HashMap<RowKey, Object[]>(oldRows.length * 4 / 3 + 1);
+            for (int i = 0; i < oldRows.length; i++)
+                current.put(new RowKey(oldRows[i], pkColumns), oldRows[i]);
+            HashMap<RowKey, Integer> newIndex =
+                        new HashMap<RowKey, Integer>(newRows.length * 4 / 3 + 1);
+            // Going backwards, so that in case of duplicate keys (which can
+            // only happen in tables without a primary key), the first one
+            // wins, as it would with a binary search
+            for (int i = newRows.length - 1; i >= 0; i--)
+                newIndex.put(new RowKey(newRows[i], newPkColumns), i);
+
+            deletes = new int[oldRows.length];
+            updates = new int[oldRows.length];
+            inserts = new int[newRows.length];
+            boolean[] found = new boolean[newRows.length];
+            for (int i = 0; i < oldRows.length; i++) {
+                Integer k = newIndex.get(new RowKey(oldRows[i], pkColumns));
+                if (k == null)
+                    deletes[deleteCount++] = i;
+                else {
+                    if (!Arrays.equals(oldRows[i], newRows[k]))
+                        updates[updateCount++] = k;
+                    found[k] = true;
+                }
+            }
+            for (int i = 0; i < newRows.length; i++)
+                if (!found[i])
+                    inserts[insertCount++] = i;
+        }
+
+        public int getChangeCount() {
+            return deleteCount + updateCount + keyUpdateCount + insertCount;
+        }
+
+        public int getKeyUpdateBase() {
+            return deleteCount + updateCount;
+        }
+
+        public int getInsertBase() {
+            return deleteCount + updateCount + keyUpdateCount;
+        }
+
+        public int getChangeType(int j) {
+            if (j < deleteCount)
+                return DELETE;
+            else if (j < getKeyUpdateBase())
+                return UPDATE;
+            else if (j < getInsertBase())
+                return KEY_UPDATE;
+            else
+                return INSERT;
+        }
+
+        /**
+         * Returns the row that change j is about: the old row for a delete,
+         * the new one for anything else.
+         */
+        public Object[] getChangeRow(int j) {
+            switch (getChangeType(j)) {
+                case DELETE:
+                    return oldRows[deletes[j]];
+                case UPDATE:
+                    return newRows[updates[j - deleteCount]];
+                case KEY_UPDATE:
+                    return newRows[inserts[
+                                keyUpdateInserts[j - getKeyUpdateBase()]]];
+                default:
+                    return newRows[inserts[j - getInsertBase()]];
+            }
+        }
+    }
+
+    /**
+     * Pairs up deleted and inserted rows that only differ in their primary
+     * keys, turning them into key updates. The foreign keys in the deleted
+     * rows are translated through the key updates found in the tables they
+     * refer to, so referenced tables are done before the tables referring
+     * to them, as far as possible.
+     */
+    private static void findKeyUpdates(ArrayList<TableDiff> diffs) {
+        ArrayList<TableDiff> todo = new ArrayList<TableDiff>(diffs);
+        while (!todo.isEmpty()) {
+            TableDiff td = todo.get(0);
+            outer:
+            for (TableDiff t : todo) {
+                for (TableDiff that : t.fkTables)
+                    if (that != null && that != t && todo.contains(that))
+                        continue outer;
+                td = t;
+                break;
+            }
+            todo.remove(td);
+            findKeyUpdates(td);
+        }
+    }
+
+    private static void findKeyUpdates(TableDiff td) {
+        td.keyUpdateDeletes = new int[0];
+        td.keyUpdateInserts = new int[0];
+        if (td.deleteCount == 0 || td.insertCount == 0
+                || td.oldTable.getPrimaryKey() == null
+                || td.newTable.getPrimaryKey() == null)
+            return;
+
+        // Rows are matched on all their columns, except the key columns
+        // that aren't part of a foreign key as well.
+        int columns = td.oldRows[0].length;
+        boolean[] ignore = new boolean[columns];
+        for (int i = 0; i < td.pkColumns.length; i++)
+            ignore[td.pkColumns[i]] = true;
+        for (int i = 0; i < td.fkTables.length; i++)
+            if (td.fkTables[i] != null)
+                for (int j = 0; j < td.fkColumns[i].length; j++)
+                    ignore[td.fkColumns[i][j]] = false;
+
+        // Going backwards, so that taking the last one from each list
+        // pairs the inserts up in order
+        HashMap<RowKey, ArrayList<Integer>> insertsByValue =
+                                    new HashMap<RowKey, ArrayList<Integer>>();
+        for (int i = td.insertCount - 1; i >= 0; i--) {
+            Object[] row = td.newRows[td.inserts[i]].clone();
+            for (int j = 0; j < columns; j++)
+                if (ignore[j])
+                    row[j] = null;
+            RowKey value = new RowKey(row);
+            ArrayList<Integer> list = insertsByValue.get(value);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                insertsByValue.put(value, list);
+            }
+            list.add(i);
+        }
+
+        int[] pairedDeletes = new int[Math.min(td.deleteCount,
+                                               td.insertCount)];
+        int[] pairedInserts = new int[pairedDeletes.length];
+        int pairs = 0;
+        HashMap<RowKey, Object[]> keyMap = new HashMap<RowKey, Object[]>();
+        for (int i = 0; i < td.deleteCount; i++) {
+            Object[] row = td.oldRows[td.deletes[i]].clone();
+            for (int f = 0; f < td.fkTables.length; f++) {
+                TableDiff that = td.fkTables[f];
+                if (that == null || that.keyMap == null)
+                    continue;
+                int[] fkColumns = td.fkColumns[f];
+                RowKey fk = new RowKey(row, fkColumns);
+                if (fk.hasNull())
+                    continue;
+                Object[] newKey = that.keyMap.get(fk);
+                if (newKey != null)
+                    for (int j = 0; j < fkColumns.length; j++)
+                        row[fkColumns[j]] = newKey[j];
+            }
+            for (int j = 0; j < columns; j++)
+                if (ignore[j])
+                    row[j] = null;
+            ArrayList<Integer> list = insertsByValue.get(new RowKey(row));
+            if (list == null)
+                continue;
+            int k = list.remove(list.size() - 1);
+            if (list.isEmpty())
+                insertsByValue.remove(new RowKey(row));
+            pairedDeletes[pairs] = i;
+            pairedInserts[pairs] = k;
+            pairs++;
+            keyMap.put(new RowKey(td.oldRows[td.deletes[i]], td.pkColumns),
+                       extract(td.newRows[td.inserts[k]], td.pkColumns));
+        }
+        td.keyUpdateDeletes = Arrays.copyOf(pairedDeletes, pairs);
+        td.keyUpdateInserts = Arrays.copyOf(pairedInserts, pairs);
+        td.keyUpdateCount = pairs;
+        td.keyMap = keyMap;
+    }
+
+    /**
+     * The pending changes for one table, plus what we need to know about
+     * them to decide which ones can be done yet.
+     */
+    private static class TableChanges {
+        Table table;
+        int[] pkColumns;
+        // For each foreign key: the referenced table, if it is in the set
+        // being committed (null otherwise), and the key's columns in this
+        // table, in the order of the referenced table's primary key.
+        TableChanges[] fkTables;
+        int[][] fkColumns;
+
+        ArrayList<Object[]> deleted;
+        ArrayList<Object[]> modifiedOld;
+        ArrayList<Object[]> modifiedNew;
+        ArrayList<Object[]> inserted;
+
+        // Keys of rows in this table that are referenced by the old version
+        // of pending deletes and updates, and so can't be deleted yet.
+        HashMap<RowKey, Integer> referenced = new HashMap<RowKey, Integer>();
+        // Keys of pending inserts, which rows that reference them have to
+        // wait for, and of pending deletes, which inserts of the same key
+        // have to wait for.
+        HashMap<RowKey, Integer> inserting = new HashMap<RowKey, Integer>();
+        HashMap<RowKey, Integer> deleting = new HashMap<RowKey, Integer>();
+    }
+
+    private static void count(HashMap<RowKey, Integer> map, RowKey key,
+                              int delta) {
+        Integer n = map.get(key);
+        int m = (n == null ? 0 : n) + delta;
+        if (m == 0)
+            map.remove(key);
+        else
+            map.put(key, m);
+    }
+
+    private void commit2(TableChangeHandler tch, Collection<Table> tables)
+                                                throws NavigatorException {
+        TreeMap<Table, TableChanges> changeMap =
+                                        new TreeMap<Table, TableChanges>();
+        ArrayList<TableChanges> all = new ArrayList<TableChanges>();
+        for (Table t : tables) {
+            ResultSetTableModel model = t.getModel();
+            model.stopEditing();
+            ResultSetTableModel.Changes c = model.getChanges();
+            TableChanges tc = new TableChanges();
+            tc.table = t;
+            tc.pkColumns = t.getPKColumns();
+            tc.deleted = c.deleted;
+            tc.modifiedOld = new ArrayList<Object[]>();
+            tc.modifiedNew = new ArrayList<Object[]>();
+            tc.inserted = c.inserted;
+            // A modification that changes the primary key is done as a
+            // delete and an insert, like diff() does, so that the rows that
+            // refer to the old key are moved before it disappears, and the
+            // rows that refer to the new key wait until it exists.
+            for (int j = 0; j < c.modifiedOld.size(); j++) {
+                Object[] oldRow = c.modifiedOld.get(j);
+                Object[] newRow = c.modifiedNew.get(j);
+                if (new RowKey(oldRow, tc.pkColumns).equals(
+                                        new RowKey(newRow, tc.pkColumns))) {
+                    tc.modifiedOld.add(oldRow);
+                    tc.modifiedNew.add(newRow);
+                } else {
+                    tc.deleted.add(oldRow);
+                    tc.inserted.add(newRow);
+                }
+            }
+            changeMap.put(t, tc);
+            all.add(tc);
+        }
+
+        ArrayList<Table> tableList = new ArrayList<Table>(tables);
+        for (TableChanges tc : all) {
+            ForeignKey[] fks = tc.table.getForeignKeys();
+            tc.fkTables = new TableChanges[fks.length];
+            tc.fkColumns = new int[fks.length][];
+            for (int i = 0; i < fks.length; i++) {
+                ForeignKey fk = fks[i];
+                Table t = findTable(tableList, fk.getThatCatalog(),
+                                               fk.getThatSchema(),
+                                               fk.getThatName());
+                if (t == null)
+                    // Table is not in table set; ignore this constraint
+                    continue;
+                tc.fkTables[i] = changeMap.get(t);
+                tc.fkColumns[i] = tc.table.getFKColumns(i, t);
+            }
+        }
+
+        for (TableChanges tc : all) {
+            for (Object[] row : tc.deleted) {
+                count(tc.deleting, new RowKey(row, tc.pkColumns), 1);
+                for (int i = 0; i < tc.fkTables.length; i++) {
+                    if (tc.fkTables[i] == null)
+                        continue;
+                    RowKey fk = new RowKey(row, tc.fkColumns[i]);
+                    if (!fk.hasNull())
+                        count(tc.fkTables[i].referenced, fk, 1);
                 }
-                Collections.sort(foundIndex);
-                for (int j = 0; j < rows2; j++) {
-                    if (Collections.binarySearch(foundIndex, j) < 0)
-                        insertedRow.add(indexToRow(cells2, j));
+            }
+            for (int j = 0; j < tc.modifiedOld.size(); j++) {
+                Object[] oldRow = tc.modifiedOld.get(j);
+                Object[] newRow = tc.modifiedNew.get(j);
+                for (int i = 0; i < tc.fkTables.length; i++) {
+                    if (tc.fkTables[i] == null)
+                        continue;
+                    RowKey fk = new RowKey(oldRow, tc.fkColumns[i]);
+                    if (!fk.hasNull()
+                            && !fk.equals(new RowKey(newRow, tc.fkColumns[i])))
+                        count(tc.fkTables[i].referenced, fk, 1);
                 }
+            }
+            for (Object[] row : tc.inserted)
+                count(tc.inserting, new RowKey(row, tc.pkColumns), 1);
+        }
 
-                for (int j = 0; j < deletedKey.size(); j++) {
-                    Object[] key = deletedKey.get(j);
-                    boolean doit = false;
-                    if (canDeleteKey(t1, key))
-                        doit = true;
-                    else {
-                        notDone = true;
-                        if (postmortem)
-                            doit = true;
+        // Keep making passes over the pending changes, doing the ones whose
+        // prerequisites have been met, until they're all done. Each pass
+        // does at least one level of the dependency tree, so this normally
+        // takes no more passes than the longest chain of foreign keys.
+        boolean postmortem = false;
+        while (true) {
+            boolean notDone = false;
+            boolean didSomething = false;
+            for (TableChanges tc : all) {
+                ArrayList<Object[]> left = new ArrayList<Object[]>();
+                for (Object[] row : tc.deleted) {
+                    RowKey key = new RowKey(row, tc.pkColumns);
+                    if (!postmortem && tc.referenced.containsKey(key)) {
+                        left.add(row);
+                        continue;
                     }
-                    if (doit) {
-                        tch.deleteRow(returnNewTables ? t2 : t1, key);
-                        cells1.remove(pkToIndex(t1, cells1, key));
-                        didSomething = true;
+                    tch.deleteRow(tc.table, extract(row, tc.pkColumns));
+                    count(tc.deleting, key, -1);
+                    for (int i = 0; i < tc.fkTables.length; i++) {
+                        if (tc.fkTables[i] == null)
+                            continue;
+                        RowKey fk = new RowKey(row, tc.fkColumns[i]);
+                        if (!fk.hasNull())
+                            count(tc.fkTables[i].referenced, fk, -1);
                     }
+                    didSomething = true;
                 }
+                tc.deleted = left;
+                notDone |= !left.isEmpty();
 
-                for (int j = 0; j < updatedRow.size(); j++) {
-                    Object[] row = updatedRow.get(j);
-                    boolean doit = false;
-                    if (canUpdateRow(t1, cells1, row))
-                        doit = true;
-                    else {
-                        notDone = true;
-                        if (postmortem)
-                            doit = true;
+                ArrayList<Object[]> leftOld = new ArrayList<Object[]>();
+                left = new ArrayList<Object[]>();
+                for (int j = 0; j < tc.modifiedOld.size(); j++) {
+                    Object[] oldRow = tc.modifiedOld.get(j);
+                    Object[] newRow = tc.modifiedNew.get(j);
+                    if (!postmortem && waitsForInsert(tc, newRow, null)) {
+                        leftOld.add(oldRow);
+                        left.add(newRow);
+                        continue;
                     }
-                    if (doit) {
-                        int index = rowToIndex(t1, cells1, row);
-                        Object[] oldRow = indexToRow(cells1, index);
-                        tch.updateRow(returnNewTables ? t2 : t1, oldRow, row);
-                        cells1.set(index, row);
-                        didSomething = true;
+                    tch.updateRow(tc.table, oldRow, newRow);
+                    for (int i = 0; i < tc.fkTables.length; i++) {
+                        if (tc.fkTables[i] == null)
+                            continue;
+                        RowKey fk = new RowKey(oldRow, tc.fkColumns[i]);
+                        if (!fk.hasNull() && !fk.equals(
+                                    new RowKey(newRow, tc.fkColumns[i])))
+                            count(tc.fkTables[i].referenced, fk, -1);
                     }
+                    didSomething = true;
                 }
+                tc.modifiedOld = leftOld;
+                tc.modifiedNew = left;
+                notDone |= !left.isEmpty();
 
-                for (int j = 0; j < insertedRow.size(); j++) {
-                    Object[] row = insertedRow.get(j);
-                    boolean doit = false;
-                    if (canInsertRow(t1, cells1, row))
-                        doit = true;
-                    else {
-                        notDone = true;
-                        if (postmortem)
-                            doit = true;
-                    }
-                    if (doit) {
-                        // We know the row is new, so will not be found,
-                        // but rowToIndex() will helpfully let us know
-                        // where to insert the row so as to keep the list
-                        // sorted.
-                        int index = rowToIndex(t1, cells1, row);
-                        if (index < 0)
-                            index = -1 - index;
-                        tch.insertRow(returnNewTables ? t2 : t1, row);
-                        cells1.add(index, row);
-                        didSomething = true;
+                left = new ArrayList<Object[]>();
+                for (Object[] row : tc.inserted) {
+                    RowKey key = new RowKey(row, tc.pkColumns);
+                    if (!postmortem && (tc.deleting.containsKey(key)
+                                        || waitsForInsert(tc, row, key))) {
+                        left.add(row);
+                        continue;
                     }
+                    tch.insertRow(tc.table, row);
+                    count(tc.inserting, key, -1);
+                    didSomething = true;
                 }
+                tc.inserted = left;
+                notDone |= !left.isEmpty();
             }
-            if (notDone && !didSomething && !postmortem) {
-                if (!tch.continueAfterError())
-                    // TableChangeHandler not interested
-                    // in postmortem debugging
+            if (!notDone)
+                break;
+            if (!didSomething) {
+                if (postmortem || !tch.continueAfterError())
                     throw new NavigatorException(
-                            "An internal error occurred trying to do the\n"
-                            + "multi-table commit. This is a bug! Please\n"
-                            + "send a bug report... And meanwhile, try\n"
+                            "The changes can't be committed, because they\n"
+                            + "depend on each other in a circle. Try\n"
                             + "committing your changes in smaller chunks.");
-                postmortem = true;   // Dump remaining changes without
-                                     // regard for constraints; we notify
-                                     // the TableChangeHandler what we're
-                                     // doing, so they know not to take the
-                                     // generated output too seriously
-                didSomething = true; // This to make sure we don't fall out
-                                     // of the outer loop
+                // Dump remaining changes without regard for constraints;
+                // we notify the TableChangeHandler what we're doing, so
+                // they know not to take the generated output too seriously
+                postmortem = true;
             }
-        } while (notDone && didSomething);
+        }
+    }
+
+    /**
+     * Returns true if any of the foreign keys of 'row' refers to a row that
+     * is still waiting to be inserted. A row that refers to itself doesn't
+     * have to wait for itself; 'self' is its own key, if it is being
+     * inserted.
+     */
+    private static boolean waitsForInsert(TableChanges tc, Object[] row,
+                                          RowKey self) {
+        for (int i = 0; i < tc.fkTables.length; i++) {
+            TableChanges that = tc.fkTables[i];
+            if (that == null || that.inserting.isEmpty())
+                continue;
+            RowKey fk = new RowKey(row, tc.fkColumns[i]);
+            if (fk.hasNull() || that == tc && fk.equals(self))
+                continue;
+            if (that.inserting.containsKey(fk))
+                return true;
+        }
+        return false;
+    }
+
+    private static Object[] extract(Object[] row, int[] columns) {
+        Object[] res = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            res[i] = row[columns[i]];
+        return res;
     }
 
     private static Table findTable(ArrayList<Table> set, String catalog, String schema,
@@ -285,12 +1227,255 @@ public class MultiTableDiff {
         return null;
     }
 
+    private void streamingDiff2(TableChangeHandler tch,
+                                Collection<Table> oldColl,
+                                Collection<Table> newColl,
+                                boolean returnNewTables,
+                                Collection<String> notes)
+                                                throws NavigatorException {
+        oldtables = new ArrayList<Table>();
+        newtables = new ArrayList<Table>();
+        Database olddb = null;
+        Database newdb = null;
+        String fallback = null;
+
+        // The tables are matched by name, as in diff2()
+        for (Table t1 : oldColl) {
+            if (olddb == null)
+                olddb = t1.getDatabase();
+            else if (olddb != t1.getDatabase())
+                throw new IllegalArgumentException("All tables in a Table Set "
+                                                + "must come from the same "
+                                                + "Data Source.");
+            Table t2 = null;
+            for (Table t : newColl) {
+                if (t1.getName().equalsIgnoreCase(t.getName())) {
+                    t2 = t;
+                    break;
+                }
+            }
+            if (t2 == null)
+                continue;
+            if (newdb == null)
+                newdb = t2.getDatabase();
+            else if (newdb != t2.getDatabase())
+                throw new IllegalArgumentException("All tables in a Table Set "
+                                                + "must come from the same "
+                                                + "Data Source.");
+            if (fallback == null && (t1.getPrimaryKey() == null
+                                        || t2.getPrimaryKey() == null))
+                fallback = t1.getName() + " has no primary key";
+            oldtables.add(t1);
+            newtables.add(t2);
+        }
+
+        // Put the tables in foreign key order; ties are broken by the order
+        // of the table set.
+        int n = oldtables.size();
+        boolean[][] refersTo = new boolean[n][n];
+        for (int i = 0; i < n && fallback == null; i++) {
+            ForeignKey[] fks = oldtables.get(i).getForeignKeys();
+            for (int k = 0; k < fks.length; k++) {
+                ForeignKey fk = fks[k];
+                Table t = findTable(oldtables, fk.getThatCatalog(),
+                                               fk.getThatSchema(),
+                                               fk.getThatName());
+                if (t == null)
+                    // Table is not in table set; ignore this constraint
+                    continue;
+                int j = oldtables.indexOf(t);
+                if (j == i) {
+                    fallback = t.getName() + " refers to itself";
+                    break;
+                }
+                refersTo[i][j] = true;
+            }
+        }
+        int[] order = new int[n];
+        boolean[] ordered = new boolean[n];
+        for (int m = 0; m < n && fallback == null; m++) {
+            int next = -1;
+            for (int i = 0; i < n && next == -1; i++) {
+                if (ordered[i])
+                    continue;
+                next = i;
+                for (int j = 0; j < n; j++)
+                    if (refersTo[i][j] && !ordered[j]) {
+                        next = -1;
+                        break;
+                    }
+            }
+            if (next == -1)
+                fallback = "the foreign keys between the tables form a cycle";
+            else {
+                order[m] = next;
+                ordered[next] = true;
+            }
+        }
+
+        if (fallback != null) {
+            Main.log(2, "MultiTableDiff: can't stream, because " + fallback
+                        + "; comparing the tables in memory instead");
+            if (notes != null)
+                notes.add("All tables were loaded into memory, because "
+                            + fallback + ".");
+            diff2(tch, oldColl, newColl, true, returnNewTables);
+            return;
+        }
+
+        Table[] reportTables = new Table[n];
+        ArrayList<ArrayList<Object[]>> deletes =
+                                    new ArrayList<ArrayList<Object[]>>();
+        for (int i = 0; i < n; i++)
+            deletes.add(null);
+        for (int m = 0; m < n; m++) {
+            int i = order[m];
+            Table t1 = oldtables.get(i);
+            Table t2 = newtables.get(i);
+            Table report = returnNewTables ? t2 : t1;
+            int[] pkColumns = t1.getPKColumns();
+            ArrayList<Object[]> dels = new ArrayList<Object[]>();
+            SortedRows oldRows = null;
+            SortedRows newRows = null;
+            try {
+                oldRows = new SortedRows(t1, notes);
+                newRows = new SortedRows(t2, notes);
+                while (oldRows.row != null || newRows.row != null) {
+                    int res = oldRows.row == null ? 1
+                            : newRows.row == null ? -1
+                            : compareKeys(oldRows.key, newRows.key, t1);
+                    if (res < 0) {
+                        dels.add(extract(oldRows.row, pkColumns));
+                        oldRows.next();
+                    } else if (res > 0) {
+                        tch.insertRow(report, newRows.row);
+                        newRows.next();
+                    } else {
+                        if (!Arrays.equals(oldRows.row, newRows.row))
+                            tch.updateRow(report, oldRows.row, newRows.row);
+                        oldRows.next();
+                        newRows.next();
+                    }
+                }
+            } finally {
+                if (oldRows != null)
+                    oldRows.close();
+                if (newRows != null)
+                    newRows.close();
+            }
+            reportTables[i] = report;
+            deletes.set(i, dels);
+        }
+        for (int m = n - 1; m >= 0; m--) {
+            int i = order[m];
+            for (Object[] key : deletes.get(i))
+                tch.deleteRow(reportTables[i], key);
+            deletes.set(i, null);
+        }
+    }
+
+    private static int compareKeys(RowKey a, RowKey b, Table table)
+                                                throws NavigatorException {
+        try {
+            return a.compareTo(b);
+        } catch (ClassCastException e) {
+            // Treating the keys as equal would pair up unrelated rows
+            throw new NavigatorException("Can't compare the keys " + a
+                        + " and " + b + " of " + table.getQualifiedName()
+                        + ":\n" + e.getMessage() + ".\nPlease compare the "
+                        + "tables without streaming.");
+        }
+    }
+
+    /**
+     * The rows of a table, in primary key order, one at a time; the current
+     * row, and its key, are null when there are no more rows. Since merging
+     * only works if both tables are sorted the same way, this checks that
+     * the keys really are increasing.
+     */
+    private static class SortedRows {
+        private Table table;
+        private int[] pkColumns;
+        private RowCursor cursor;
+        private ArrayList<Object[]> rows;
+        private int index;
+        Object[] row;
+        RowKey key;
+
+        public SortedRows(Table table, Collection<String> notes)
+                                                throws NavigatorException {
+            this.table = table;
+            pkColumns = table.getPKColumns();
+            cursor = table.getRowsInPKOrder();
+            if (cursor == null) {
+                // Tables with a loaded model, and those of a FileDatabase,
+                // are in memory already
+                ResultSetTableModel model = table.getModel();
+                if (notes != null
+                        && (model == null || model.isWindowed())
+                        && !(table.getDatabase() instanceof FileDatabase))
+                    notes.add(table.getQualifiedName() + " was loaded into "
+                            + "memory, because the database can't be told to "
+                            + "sort its primary key by code point.");
+                rows = makeCellArray(table, true, false);
+                // makeCellArray() sorts the way diff2() wants; the merge
+                // needs RowKey's order
+                final int[] pkc = pkColumns;
+                try {
+                    Collections.sort(rows, new Comparator<Object[]>() {
+                            public int compare(Object[] a, Object[] b) {
+                                return new RowKey(a, pkc).compareTo(
+                                                        new RowKey(b, pkc));
+                            }
+                        });
+                } catch (ClassCastException e) {
+                    throw new NavigatorException("Can't sort the keys of "
+                            + table.getQualifiedName() + ":\n"
+                            + e.getMessage() + ".\nPlease compare the "
+                            + "tables without streaming.");
+                }
+            }
+            next();
+        }
+
+        public void next() throws NavigatorException {
+            if (cursor != null)
+                row = cursor.next();
+            else if (index < rows.size())
+                row = rows.get(index++);
+            else
+                row = null;
+            if (row == null) {
+                key = null;
+                return;
+            }
+            RowKey prev = key;
+            key = new RowKey(row, pkColumns);
+            if (prev != null && compareKeys(prev, key, table) >= 0)
+                throw new NavigatorException("The rows of "
+                        + table.getQualifiedName() + " are not sorted the "
+                        + "way they should be:\n" + key + " comes after "
+                        + prev + ".\nThis may be caused by the way the "
+                        + "database sorts strings;\nplease compare the "
+                        + "tables without streaming.");
+        }
+
+        public void close() {
+            if (cursor != null)
+                cursor.close();
+            rows = null;
+        }
+    }
+
     private static ArrayList<Object[]> makeCellArray(Table table, boolean waitUntilReady,
                                     boolean empty) throws NavigatorException {
         ArrayList<Object[]> cells = new ArrayList<Object[]>();
         if (!empty) {
             ResultSetTableModel model = table.getModel();
-            if (model != null) {
+            // Windowed models have nothing to wait for, and their row count
+            // may still be an estimate; since they can't be edited, reading
+            // the table itself gives the same rows.
+            if (model != null && !model.isWindowed()) {
                 model.stopEditing();
                 if (waitUntilReady)
                     model.waitUntilReady();
@@ -332,116 +1517,74 @@ public class MultiTableDiff {
         }
     }
 
-    private static Object[] indexToPK(Table table, ArrayList<Object[]> cells, int index)
-                                                throws NavigatorException {
-        int[] key = table.getPKColumns();
-        Object[] res = new Object[key.length];
-        Object[] row = cells.get(index);
-        for (int i = 0; i < key.length; i++)
-            res[i] = row[key[i]];
-        return res;
-    }
-
-    private static int pkToIndex(Table table, ArrayList<Object[]> cells, Object[] key)
-                                                throws NavigatorException {
-        Object[] row = new Object[table.getColumnCount()];
-        int[] pkColumns = table.getPKColumns();
-        for (int i = 0; i < pkColumns.length; i++)
-            row[pkColumns[i]] = key[i];
-        return rowToIndex(table, cells, row);
-    }
-
-    private static Object[] indexToRow(ArrayList<Object[]> cells, int index) {
-        return cells.get(index);
-    }
-
-    private static int rowToIndex(Table table, ArrayList<Object[]> cells, Object[] row)
-                                                    throws NavigatorException {
-        return Collections.binarySearch(cells, row, new RowComparator(table));
+    /**
+     * The can...() methods return whether a change can be made now; if not,
+     * and if the change may become possible later, they make change n wait
+     * for the key that is stopping it.
+     */
+    private static boolean canDeleteKey(TableDiff td, RowKey key, int n) {
+        if (!td.referenced.containsKey(key) && !td.cascaded.containsKey(key))
+            return true;
+        waitFor(td, key, n);
+        return false;
     }
 
-    private static int[] rkToIndexes(Table thisTable, Table thatTable,
-                            ArrayList<Object[]> thatCells, int rkIndex, Object[] key)
-                                                    throws NavigatorException {
-        int[] rkColumns = thisTable.getRKColumns(rkIndex, thatTable);
-        ArrayList<Integer> al = new ArrayList<Integer>();
-        outer:
-        for (int i = 0; i < thatCells.size(); i++) {
-            Object[] row = thatCells.get(i);
-            for (int j = 0; j < rkColumns.length; j++) {
-                Object o = row[rkColumns[j]];
-                if (o == null ? key[j] != null : !o.equals(key[j]))
-                    continue outer;
-            }
-            al.add(i);
-        }
-        int sz = al.size();
-        int[] res = new int[sz];
-        for (int i = 0; i < sz; i++)
-            res[i] = al.get(i);
-        return res;
-    }
-
-    private boolean canDeleteKey(Table table, Object[] key)
-                                            throws NavigatorException {
-        ForeignKey[] rks = table.getReferencingKeys();
-        for (int i = 0; i < rks.length; i++) {
-            ForeignKey rk = rks[i];
-            Table t = findTable(oldtables, rk.getThatCatalog(),
-                                           rk.getThatSchema(),
-                                           rk.getThatName());
-            if (t == null)
-                // Table is not in table set; ignore this constraint
-                continue;
-            ArrayList<Object[]> cells = oldcells.get(t);
-            int[] index2 = rkToIndexes(table, t, cells, i, key);
-            if (index2.length == 0)
-                // No matching rows
-                continue;
-            else
-                return false;
+    private static boolean canUpdateKey(TableDiff td, RowKey oldKey,
+                                        Object[] row, int n) {
+        if (!td.current.containsKey(oldKey)
+                || td.current.containsKey(new RowKey(row, td.pkColumns)))
+            return false;
+        if (td.referenced.containsKey(oldKey)) {
+            waitFor(td, oldKey, n);
+            return false;
         }
-        return true;
+        return checkForeignKeys(td, row, n);
     }
 
-    private boolean canUpdateRow(Table table, ArrayList<Object[]> cells,
-                                    Object[] row) throws NavigatorException {
-        if (rowToIndex(table, cells, row) < 0)
+    private static boolean canUpdateRow(TableDiff td, Object[] row, int n) {
+        if (!td.current.containsKey(new RowKey(row, td.pkColumns)))
             return false;
-        return checkForeignKeys(table, row);
+        return checkForeignKeys(td, row, n);
     }
 
-    private boolean canInsertRow(Table table, ArrayList<Object[]> cells,
-                                    Object[] row) throws NavigatorException {
+    private static boolean canInsertRow(TableDiff td, Object[] row, int n) {
         // Check the primary key for non-nullness and uniqueness
         // *only* if it is a real primary key; we must not perform
         // this check if we're using a surrogate primary key!
-        if (table.getPrimaryKey() != null) {
-            int[] pkColumns = table.getPKColumns();
+        if (td.oldTable.getPrimaryKey() != null) {
+            int[] pkColumns = td.pkColumns;
             for (int i = 0; i < pkColumns.length; i++) {
                 if (row[pkColumns[i]] == null)
                     // Should never happen
                     return false;
             }
-            if (rowToIndex(table, cells, row) >= 0)
+            if (td.current.containsKey(new RowKey(row, pkColumns)))
                 return false;
         }
 
-        return checkForeignKeys(table, row);
+        return checkForeignKeys(td, row, n);
+    }
+
+    private static boolean checkForeignKeys(TableDiff td, Object[] row,
+                                            int n) {
+        int i = missingForeignKey(td, row);
+        if (i == -1)
+            return true;
+        waitFor(td.fkTables[i], new RowKey(row, td.fkColumns[i]), n);
+        return false;
     }
 
-    private boolean checkForeignKeys(Table table, Object[] row)
-                                                    throws NavigatorException {
-        ForeignKey[] fks = table.getForeignKeys();
-        for (int i = 0; i < fks.length; i++) {
-            ForeignKey fk = fks[i];
-            Table t = findTable(oldtables, fk.getThatCatalog(),
-                                           fk.getThatSchema(),
-                                           fk.getThatName());
-            if (t == null)
+    /**
+     * Returns the index of the first foreign key of 'row' that refers to a
+     * row that doesn't exist (yet), or -1 if there is none.
+     */
+    private static int missingForeignKey(TableDiff td, Object[] row) {
+        for (int i = 0; i < td.fkTables.length; i++) {
+            TableDiff that = td.fkTables[i];
+            if (that == null)
                 // Table is not in table set; ignore this constraint
                 continue;
-            int[] fkColumns = table.getFKColumns(i, t);
+            int[] fkColumns = td.fkColumns[i];
             boolean keyIsNull = true;
             Object[] key = new Object[fkColumns.length];
             for (int j = 0; j < fkColumns.length; j++) {
@@ -452,14 +1595,10 @@ public class MultiTableDiff {
             }
             if (keyIsNull)
                 continue;
-            ArrayList<Object[]> c = oldcells.get(t);
-            int index2 = pkToIndex(t, c, key);
-            if (index2 < 0)
+            if (!that.current.containsKey(new RowKey(key)))
                 // No matching rows
-                return false;
-            else
-                continue;
+                return i;
         }
-        return true;
+        return -1;
     }
 }
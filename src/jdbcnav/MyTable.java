@@ -59,6 +59,7 @@ import javax.swing.table.TableModel;
 
 import jdbcnav.model.TypeSpec;
 import jdbcnav.model.TypeSpecTableModel;
+import jdbcnav.model.WindowedData;
 import jdbcnav.util.MenuLayout;
 import jdbcnav.util.MiscUtils;
 import jdbcnav.util.MyTextField;
@@ -68,6 +69,7 @@ public class MyTable extends JTable {
     
     private static final int MAX_COLUMN_WIDTH = 512;
     private static final String ILLEGAL = new String("illegal");
+    private static final String PENDING = new String("...");
 
     private int highlightIndex = 0;
     private ArrayList<UserInteractionListener> userInteractionListeners = new ArrayList<UserInteractionListener>();
@@ -179,7 +181,7 @@ public class MyTable extends JTable {
             for (int row = 0; row < numRows; row++) {
                 int w = getCellRenderer(row, column)
                             .getTableCellRendererComponent(this,
-                                    tm.getValueAt(row, column),
+                                    getDisplayValue(tm, row, column),
                                     true, true, row, column)
                             .getPreferredSize().width;
                 if (w > width)
@@ -214,6 +216,39 @@ public class MyTable extends JTable {
             th.repaint();
     }
 
+    /**
+     * Same as JTable's, except that the values of windowed data that haven't
+     * been fetched yet are shown as pending, instead of being waited for;
+     * see ResultSetTableModel.getDisplayValueAt().
+     */
+    public Component prepareRenderer(TableCellRenderer renderer,
+                                     int row, int column) {
+        TableModel tm = getModel();
+        if (!(tm instanceof ResultSetTableModel))
+            return super.prepareRenderer(renderer, row, column);
+        Object value = getDisplayValue(tm, convertRowIndexToModel(row),
+                                       convertColumnIndexToModel(column));
+        boolean isSelected = false;
+        boolean hasFocus = false;
+        if (!isPaintingForPrint()) {
+            isSelected = isCellSelected(row, column);
+            boolean rowIsLead =
+                    selectionModel.getLeadSelectionIndex() == row;
+            boolean colIsLead = columnModel.getSelectionModel()
+                                        .getLeadSelectionIndex() == column;
+            hasFocus = rowIsLead && colIsLead && isFocusOwner();
+        }
+        return renderer.getTableCellRendererComponent(this, value,
+                                        isSelected, hasFocus, row, column);
+    }
+
+    private static Object getDisplayValue(TableModel tm, int row, int column) {
+        if (tm instanceof ResultSetTableModel)
+            return ((ResultSetTableModel) tm).getDisplayValueAt(row, column);
+        else
+            return tm.getValueAt(row, column);
+    }
+
     public void createDefaultColumnsFromModel() {
         TableModel m = getModel();
         if (m != null) {
@@ -490,6 +525,23 @@ public class MyTable extends JTable {
         editor.cancelCellEditing();
     }
     
+    /**
+     * Runs 'reorder', which changes the order of the rows in the model (it
+     * must be a SortedTableModel), and then selects the same rows that were
+     * selected before.
+     */
+    public void keepingSelection(Runnable reorder) {
+        SortedTableModel model = (SortedTableModel) getModel();
+        int[] selection = getSelectedRows();
+        model.selectionFromViewToModel(selection);
+        reorder.run();
+        model.selectionFromModelToView(selection);
+        clearSelection();
+        addColumnSelectionInterval(0, getColumnCount() - 1);
+        for (int i = 0; i < selection.length; i++)
+            addRowSelectionInterval(selection[i], selection[i]);
+    }
+
     public void scrollToNextSelectedRow(boolean up) {
         cancelEditing();
         JViewport view = (JViewport) SwingUtilities.getAncestorOfClass(
@@ -574,15 +626,13 @@ public class MyTable extends JTable {
             menu.show(e.getComponent(), e.getX(), e.getY());
         } else {
             // Left (or middle) click: change the sorting order
-            SortedTableModel model = (SortedTableModel) getModel();
-            int[] selection = getSelectedRows();
-            model.selectionFromViewToModel(selection);
-            ((SortedTableModel) getModel()).sortColumn(logicalColumn);
-            model.selectionFromModelToView(selection);
-            clearSelection();
-            addColumnSelectionInterval(0, getColumnCount() - 1);
-            for (int i = 0; i < selection.length; i++)
-                addRowSelectionInterval(selection[i], selection[i]);
+            final SortedTableModel model = (SortedTableModel) getModel();
+            final int column = logicalColumn;
+            keepingSelection(new Runnable() {
+                    public void run() {
+                        model.sortColumn(column);
+                    }
+                });
             if (logicalColumn != highlightIndex) {
                 TableColumnModel tcm = getColumnModel();
                 ((MyTableColumn) tcm.getColumn(convertColumnIndexToView(
@@ -945,7 +995,9 @@ public class MyTable extends JTable {
                                                     boolean hasFocus,
                                                     int row,
                                                     int column) {
-            this.value = valueToString(value);
+            // Rows that are still being loaded, see WindowedData
+            this.value = value == WindowedData.PENDING ? PENDING
+                                                       : valueToString(value);
             this.isSelected = isSelected;
             this.hasFocus = hasFocus;
             column = table.convertColumnIndexToModel(column);
@@ -974,6 +1026,7 @@ public class MyTable extends JTable {
             // various toString() methods are actually becoming hot spots!
 
             FontMetrics fm = value == null || value == ILLEGAL
+                                                || value == PENDING
                                                 ? nullFontMetrics
                                                 : nonNullFontMetrics;
             String v = value == null ? "null" : value;
@@ -989,21 +1042,21 @@ public class MyTable extends JTable {
                 g.drawRect(0, 0, d.width - 1, d.height - 1);
                 g.setColor(unselectedBackground.get(type));
                 g.fillRect(1, 1, d.width - 2, d.height - 2);
-                if (value == null || value == ILLEGAL)
+                if (value == null || value == ILLEGAL || value == PENDING)
                     g.setColor(unselectedNullColor.get(type));
                 else
                     g.setColor(unselectedForeground.get(type));
             } else if (isSelected) {
                 g.setColor(selectedBackground);
                 g.fillRect(0, 0, d.width, d.height);
-                if (value == null || value == ILLEGAL)
+                if (value == null || value == ILLEGAL || value == PENDING)
                     g.setColor(selectedNullColor);
                 else
                     g.setColor(selectedForeground);
             } else {
                 g.setColor(unselectedBackground.get(type));
                 g.fillRect(0, 0, d.width, d.height);
-                if (value == null || value == ILLEGAL)
+                if (value == null || value == ILLEGAL || value == PENDING)
                     g.setColor(unselectedNullColor.get(type));
                 else
                     g.setColor(unselectedForeground.get(type));
@@ -1015,7 +1068,7 @@ public class MyTable extends JTable {
                 f = nullFont;
                 fm = nullFontMetrics;
                 v = "null";
-            } else if (value == ILLEGAL) {
+            } else if (value == ILLEGAL || value == PENDING) {
                 f = nullFont;
                 fm = nullFontMetrics;
                 v = value;
@@ -157,6 +157,24 @@ public class Preferences {
     // Show splash screen on startup?
     private boolean showSplash = true;
 
+    // JDBC fetch size for queries; 0 means use the driver-specific default
+    private int fetchSize;
+
+    // Tables with at least this many rows are browsed a page at a time,
+    // instead of being loaded completely; 0 means never.
+    private int pagedTableThreshold = 1000000;
+
+    // Query results are spilled to disk when heap usage exceeds this
+    // percentage of the maximum heap size; 0 means never.
+    private int spillThreshold = 75;
+
+    // Statement.setQueryTimeout() value, in seconds; 0 means no timeout.
+    private int queryTimeout;
+
+    // Number of inserts or deletes sent to the database in a single JDBC
+    // batch when committing; 0 or 1 means no batching.
+    private int commitBatchSize = 100;
+
 
     private static Preferences instance = new Preferences();
     private static Method addClassPathItemMethod;
@@ -441,6 +459,47 @@ public class Preferences {
     }
 
 
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize < 0 ? 0 : fetchSize;
+    }
+
+    public int getPagedTableThreshold() {
+        return pagedTableThreshold;
+    }
+
+    public void setPagedTableThreshold(int threshold) {
+        pagedTableThreshold = threshold < 0 ? 0 : threshold;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public void setSpillThreshold(int percent) {
+        spillThreshold = percent < 0 ? 0 : percent > 100 ? 100 : percent;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout(int seconds) {
+        queryTimeout = seconds < 0 ? 0 : seconds;
+    }
+
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    public void setCommitBatchSize(int size) {
+        commitBatchSize = size < 0 ? 0 : size;
+    }
+
+
     private void read() {
         FileReader fr = null;
         try {
@@ -701,6 +760,26 @@ public class Preferences {
             } else if (name.equals("show-splash")) {
                 showSplash = value.equalsIgnoreCase("true")
                              || value.equalsIgnoreCase("yes");
+            } else if (name.equals("fetch-size")) {
+                try {
+                    setFetchSize(Integer.parseInt(value));
+                } catch (NumberFormatException e) {}
+            } else if (name.equals("paged-table-threshold")) {
+                try {
+                    setPagedTableThreshold(Integer.parseInt(value));
+                } catch (NumberFormatException e) {}
+            } else if (name.equals("spill-threshold")) {
+                try {
+                    setSpillThreshold(Integer.parseInt(value));
+                } catch (NumberFormatException e) {}
+            } else if (name.equals("query-timeout")) {
+                try {
+                    setQueryTimeout(Integer.parseInt(value));
+                } catch (NumberFormatException e) {}
+            } else if (name.equals("commit-batch-size")) {
+                try {
+                    setCommitBatchSize(Integer.parseInt(value));
+                } catch (NumberFormatException e) {}
             }
         }
     }
@@ -941,6 +1020,36 @@ public class Preferences {
             xml.wholeTag("show-splash", showSplash ? "true" : "false");
         }
 
+        if (fetchSize != 0) {
+            xml.newLine();
+            xml.writeComment("JDBC fetch size for queries (0 = driver default):");
+            xml.wholeTag("fetch-size", Integer.toString(fetchSize));
+        }
+
+        xml.newLine();
+        xml.writeComment("Tables with at least this many rows are browsed");
+        xml.writeComment("one page at a time, read-only (0 = never):     ");
+        xml.wholeTag("paged-table-threshold",
+                     Integer.toString(pagedTableThreshold));
+
+        xml.newLine();
+        xml.writeComment("Query results are spilled to a temporary file when");
+        xml.writeComment("more than this percentage of the heap is in use  ");
+        xml.writeComment("(0 = never):                                     ");
+        xml.wholeTag("spill-threshold", Integer.toString(spillThreshold));
+
+        if (queryTimeout != 0) {
+            xml.newLine();
+            xml.writeComment("Query timeout, in seconds (0 = none):");
+            xml.wholeTag("query-timeout", Integer.toString(queryTimeout));
+        }
+
+        xml.newLine();
+        xml.writeComment("Number of inserts or deletes to send to the");
+        xml.writeComment("database at once when committing (0 = no   ");
+        xml.writeComment("batching):                                 ");
+        xml.wholeTag("commit-batch-size", Integer.toString(commitBatchSize));
+
         xml.newLine();
         xml.closeTag();
         pw.flush();
@@ -69,6 +69,11 @@ public class PreferencesFrame extends MyFrame {
     private JCheckBox showSplashCB;
     private JTextField logFileNameTF;
     private JComboBox<String> logLevelCB;
+    private JTextField fetchSizeTF;
+    private JTextField pagedTableThresholdTF;
+    private JTextField spillThresholdTF;
+    private JTextField queryTimeoutTF;
+    private JTextField commitBatchSizeTF;
 
     JTable classPathTable;
     ClassPathTableModel classPathModel;
@@ -208,6 +213,90 @@ public class PreferencesFrame extends MyFrame {
 
         gbc.gridy++;
         c.add(p, gbc);
+
+
+        ////////////////////////////////
+        ///// Performance settings /////
+        ////////////////////////////////
+
+        p = new JPanel(new MyGridBagLayout());
+        p.setBorder(BorderFactory.createTitledBorder("Performance"));
+
+        gbc2 = new MyGridBagConstraints();
+        gbc2.gridx = 0;
+        gbc2.gridy = 0;
+        gbc2.anchor = MyGridBagConstraints.WEST;
+        p.add(new JLabel("Fetch Size: "), gbc2);
+
+        gbc2.gridx = 1;
+        fetchSizeTF = new MyTextField(8);
+        fetchSizeTF.setText(Integer.toString(prefs.getFetchSize()));
+        p.add(fetchSizeTF, gbc2);
+
+        gbc2.gridx = 2;
+        gbc2.weightx = 1;
+        p.add(new JLabel(" (0 = driver default)"), gbc2);
+
+        gbc2.gridx = 0;
+        gbc2.gridy = 1;
+        gbc2.weightx = 0;
+        p.add(new JLabel("Page Tables Larger Than: "), gbc2);
+
+        gbc2.gridx = 1;
+        pagedTableThresholdTF = new MyTextField(8);
+        pagedTableThresholdTF.setText(
+                        Integer.toString(prefs.getPagedTableThreshold()));
+        p.add(pagedTableThresholdTF, gbc2);
+
+        gbc2.gridx = 2;
+        gbc2.weightx = 1;
+        p.add(new JLabel(" rows (0 = never)"), gbc2);
+
+        gbc2.gridx = 0;
+        gbc2.gridy = 2;
+        gbc2.weightx = 0;
+        p.add(new JLabel("Spill Results to Disk Above: "), gbc2);
+
+        gbc2.gridx = 1;
+        spillThresholdTF = new MyTextField(8);
+        spillThresholdTF.setText(Integer.toString(prefs.getSpillThreshold()));
+        p.add(spillThresholdTF, gbc2);
+
+        gbc2.gridx = 2;
+        gbc2.weightx = 1;
+        p.add(new JLabel(" % of heap (0 = never)"), gbc2);
+
+        gbc2.gridx = 0;
+        gbc2.gridy = 3;
+        gbc2.weightx = 0;
+        p.add(new JLabel("Query Timeout: "), gbc2);
+
+        gbc2.gridx = 1;
+        queryTimeoutTF = new MyTextField(8);
+        queryTimeoutTF.setText(Integer.toString(prefs.getQueryTimeout()));
+        p.add(queryTimeoutTF, gbc2);
+
+        gbc2.gridx = 2;
+        gbc2.weightx = 1;
+        p.add(new JLabel(" seconds (0 = none)"), gbc2);
+
+        gbc2.gridx = 0;
+        gbc2.gridy = 4;
+        gbc2.weightx = 0;
+        p.add(new JLabel("Commit Batch Size: "), gbc2);
+
+        gbc2.gridx = 1;
+        commitBatchSizeTF = new MyTextField(8);
+        commitBatchSizeTF.setText(
+                        Integer.toString(prefs.getCommitBatchSize()));
+        p.add(commitBatchSizeTF, gbc2);
+
+        gbc2.gridx = 2;
+        gbc2.weightx = 1;
+        p.add(new JLabel(" rows (0 = no batching)"), gbc2);
+
+        gbc.gridy++;
+        c.add(p, gbc);
         
 
         ///////////////////////////////////
@@ -444,6 +533,24 @@ public class PreferencesFrame extends MyFrame {
     }
 
     private void ok() {
+        int fetchSize = parseCount(fetchSizeTF, "fetch size");
+        if (fetchSize == -1)
+            return;
+        int pagedTableThreshold = parseCount(pagedTableThresholdTF,
+                                             "table paging threshold");
+        if (pagedTableThreshold == -1)
+            return;
+        int spillThreshold = parseCount(spillThresholdTF, "spill threshold");
+        if (spillThreshold == -1)
+            return;
+        int queryTimeout = parseCount(queryTimeoutTF, "query timeout");
+        if (queryTimeout == -1)
+            return;
+        int commitBatchSize = parseCount(commitBatchSizeTF,
+                                         "commit batch size");
+        if (commitBatchSize == -1)
+            return;
+
         String lafName = (String) lafNameCB.getSelectedItem();
         boolean found = false;
         for (int i = 0; i < laf.length; i++)
@@ -476,10 +583,31 @@ public class PreferencesFrame extends MyFrame {
         prefs.setShowSplash(showSplashCB.isSelected());
         prefs.setLogFileName(logFileNameTF.getText());
         prefs.setLogLevel(logLevelCB.getSelectedIndex());
+        prefs.setFetchSize(fetchSize);
+        prefs.setPagedTableThreshold(pagedTableThreshold);
+        prefs.setSpillThreshold(spillThreshold);
+        prefs.setQueryTimeout(queryTimeout);
+        prefs.setCommitBatchSize(commitBatchSize);
         prefs.write();
         dispose();
     }
 
+    /**
+     * Parses a non-negative integer from a text field; complains and returns
+     * -1 if the contents are not valid.
+     */
+    private int parseCount(JTextField tf, String what) {
+        try {
+            int n = Integer.parseInt(tf.getText().trim());
+            if (n >= 0)
+                return n;
+        } catch (NumberFormatException e) {}
+        Toolkit.getDefaultToolkit().beep();
+        JOptionPane.showInternalMessageDialog(Main.getDesktop(),
+                "The " + what + " must be a non-negative integer.");
+        return -1;
+    }
+
     private void cancel() {
         Color c = prefs.getPkHighlightColor();
         if (!c.equals(pkHighC))
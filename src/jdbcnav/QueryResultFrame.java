@@ -27,8 +27,8 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JCheckBox;
@@ -74,7 +74,7 @@ public class QueryResultFrame extends MyFrame
     private Data.StateListener datastatelistener;
     private boolean askedToShow, initializationFinished;
     private boolean sortAfterLoading;
-    private Thread tenSecondDelay;
+    private ScheduledFuture<?> tenSecondDelay;
     private boolean editable;
     private JMenuBar menubar;
     private JMenu progressMenu;
@@ -102,12 +102,14 @@ public class QueryResultFrame extends MyFrame
         this.browser = browser;
         this.query = query;
         this.dbTable = dbTable;
-        editable = dbTable != null && dbTable.isEditable();
         
         if (dbTable == null)
             model = new ResultSetTableModel(queryOutput, null);
         else
             model = dbTable.createModel();
+        // Note: the model may refuse editing even when the table allows it,
+        // e.g. when the table is too large to be loaded entirely.
+        editable = model.isEditable();
 
         setDefaultCloseOperation(JInternalFrame.DO_NOTHING_ON_CLOSE);
         addInternalFrameListener(new InternalFrameAdapter() {
@@ -354,6 +356,13 @@ public class QueryResultFrame extends MyFrame
                                     }
                                 });
         progressMenu.add(mi);
+        mi = new JMenuItem("Stop");
+        mi.addActionListener(new ActionListener() {
+                                    public void actionPerformed(ActionEvent e) {
+                                        stop();
+                                    }
+                                });
+        progressMenu.add(mi);
         menubar.add(progressMenu);
         
         setJMenuBar(menubar);
@@ -380,6 +389,7 @@ public class QueryResultFrame extends MyFrame
                 });
         model.setTable(table);
         sortAfterLoading = true;
+        model.setSortWhileLoading(true);
         
         // We put off the remainder of our initialization until we have
         // loaded 50 rows, or waited 10 seconds, or loading has finished,
@@ -387,10 +397,7 @@ public class QueryResultFrame extends MyFrame
         datastatelistener = new DataStateListener();
         model.addStateListener(datastatelistener);
         table.addUserInteractionListener(new MyUserInteractionListener());
-        tenSecondDelay = new Thread(new WaitTenSecondsThenFinish());
-        tenSecondDelay.setPriority(Thread.MIN_PRIORITY);
-        tenSecondDelay.setDaemon(true);
-        tenSecondDelay.start();
+        tenSecondDelay = Main.schedule(new WaitTenSecondsThenFinish(), 10000);
     }
 
     public QueryResultFrame(BrowserFrame browser, Table table)
@@ -404,9 +411,18 @@ public class QueryResultFrame extends MyFrame
     }
 
     public void dispose() {
-        tenSecondDelay = null;
-        model.setState(Data.FINISHED);
+        if (tenSecondDelay != null) {
+            tenSecondDelay.cancel(false);
+            tenSecondDelay = null;
+        }
+        stop();
         model.setTable(null);
+        // Query output belongs to this frame; table models are kept by their
+        // Table, and released when the Table unloads them.
+        if (dbTable == null)
+            model.close();
+        else if (dbTable.isUpdatableQueryResult())
+            dbTable.unloadModel();
         super.dispose();
     }
 
@@ -444,26 +460,15 @@ public class QueryResultFrame extends MyFrame
     }
 
     private class WaitTenSecondsThenFinish implements Runnable {
-        private long startTime;
+        // Runs on the scheduler's timer thread
         public void run() {
-            startTime = new Date().getTime();
-            long timeToWait = 10000;
-            do {
-                try {
-                    Thread.sleep(timeToWait);
-                } catch (InterruptedException e) {}
-                timeToWait = startTime + 10000 - new Date().getTime();
-            } while (timeToWait > 0);
-            // Check if we're still needed!
-            if (tenSecondDelay != null)
-                if (SwingUtilities.isEventDispatchThread())
-                    finishInitialization();
-                else
-                    SwingUtilities.invokeLater(new Runnable() {
-                            public void run() {
-                                finishInitialization();
-                            }
-                        });
+            SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        // Check if we're still needed!
+                        if (tenSecondDelay != null)
+                            finishInitialization();
+                    }
+                });
         }
     }
 
@@ -471,10 +476,12 @@ public class QueryResultFrame extends MyFrame
                                 implements MyTable.UserInteractionListener {
         public void eventInScrollBar() {
             sortAfterLoading = false;
+            model.setSortWhileLoading(false);
             table.removeUserInteractionListener(this);
         }
         public void eventInTable() {
             sortAfterLoading = false;
+            model.setSortWhileLoading(false);
             table.removeUserInteractionListener(this);
         }
     }
@@ -538,6 +545,20 @@ public class QueryResultFrame extends MyFrame
         model.setState(Data.FINISHED);
     }
 
+    private void stop() {
+        // Unlike finish(), this aborts the query, so it takes effect even if
+        // the driver is blocked waiting for the next batch of rows.
+        // Statement.cancel() may have to talk to the server, so don't do
+        // this on the AWT Event thread; and don't queue it behind the
+        // jobs it may have to stop, either.
+        Main.startDetachedJob("stop query", JobScheduler.PRIORITY_HIGH,
+                    new Runnable() {
+                        public void run() {
+                            model.cancel();
+                        }
+                    });
+    }
+
     public void showStaggered() {
         if (initializationFinished)
             super.showStaggered();
@@ -652,6 +673,7 @@ public class QueryResultFrame extends MyFrame
         menubar.validate();
         menubar.repaint();
         sortAfterLoading = true;
+        model.setSortWhileLoading(true);
         datastatelistener = new DataStateListener();
         model.addStateListener(datastatelistener);
         table.addUserInteractionListener(new MyUserInteractionListener());
@@ -761,7 +783,9 @@ public class QueryResultFrame extends MyFrame
         int row = table.getSelectionModel().getAnchorSelectionIndex();
         int column = table.getColumnModel().getSelectionModel()
                           .getAnchorSelectionIndex();
-        if (row == -1 || column == -1)
+        // Rows of windowed data that are still being fetched can't be used
+        // yet; see ClipboardCopier.
+        if (row == -1 || column == -1 || !model.isRowLoaded(row))
             Toolkit.getDefaultToolkit().beep();
         else {
             table.stopEditing();
@@ -786,61 +810,103 @@ public class QueryResultFrame extends MyFrame
             ((JTextField) table.getEditorComponent()).copy();
             return;
         }
-        int[] selRows = table.getSelectedRows();
-        int[] selColumns = table.getSelectedColumns();
+        final int[] selRows = table.getSelectedRows();
+        final int[] selColumns = table.getSelectedColumns();
         if (selRows.length == 0 || selColumns.length == 0)
             Toolkit.getDefaultToolkit().beep();
         else {
             table.stopEditing();
-            StringBuffer buf = new StringBuffer();
-            for (int r = 0; r < selRows.length; r++) {
-                int row = selRows[r];
-                for (int c = 0; c < selColumns.length; c++) {
-                    int column = selColumns[c];
-                    column = table.convertColumnIndexToModel(column);
-                    Object cell = model.getValueAt(row, column);
-                    if (cell == null) {
-                        buf.append("null");
-                    } else {
-                        String text = String.valueOf(cell);
-                        if (text.contains("\"") || text.contains("\r") || text.contains("\n") || text.contains("\t")) {
-                            buf.append('"');
-                            buf.append(text.replace("\"", "\"\""));
-                            buf.append('"');
-                        } else {
-                            buf.append(text);
+            for (int c = 0; c < selColumns.length; c++)
+                selColumns[c] = table.convertColumnIndexToModel(selColumns[c]);
+            new ClipboardCopier() {
+                protected Object read() {
+                    StringBuffer buf = new StringBuffer();
+                    for (int r = 0; r < selRows.length; r++) {
+                        int row = selRows[r];
+                        for (int c = 0; c < selColumns.length; c++) {
+                            Object cell = model.getValueAt(row, selColumns[c]);
+                            if (cell == null) {
+                                buf.append("null");
+                            } else {
+                                String text = String.valueOf(cell);
+                                if (text.contains("\"") || text.contains("\r") || text.contains("\n") || text.contains("\t")) {
+                                    buf.append('"');
+                                    buf.append(text.replace("\"", "\"\""));
+                                    buf.append('"');
+                                } else {
+                                    buf.append(text);
+                                }
+                            }
+                            if (c < selColumns.length - 1)
+                                buf.append('\t');
                         }
+                        if (r < selRows.length - 1)
+                            buf.append('\n');
                     }
-                    if (c < selColumns.length - 1)
-                        buf.append('\t');
+                    return buf.toString();
                 }
-                if (r < selRows.length - 1)
-                    buf.append('\n');
-            }
-            Main.getClipboard().put(buf.toString());
+            }.start(selRows);
         }
     }
 
     private void copyRow() {
         if (table.isEditing())
             table.stopEditing();
-        int[] selRows = table.getSelectedRows();
-        int nrows = selRows.length;
+        final int[] selRows = table.getSelectedRows();
+        final int nrows = selRows.length;
         if (nrows == 0)
             Toolkit.getDefaultToolkit().beep();
         else {
             table.stopEditing();
-            int ncols = model.getColumnCount();
-            Object[][] array = new Object[nrows + 3][ncols];
+            final int ncols = model.getColumnCount();
+            final Object[][] array = new Object[nrows + 3][ncols];
             for (int col = 0; col < ncols; col++) {
                 array[0][col] = model.getColumnName(col);
                 array[1][col] = model.getColumnClass(col);
                 array[2][col] = model.getTypeSpec(col);
             }
-            for (int row = 0; row < nrows; row++)
-                for (int col = 0; col < ncols; col++)
-                    array[row + 3][col] = model.getValueAt(selRows[row], col);
-            Main.getClipboard().put(array);
+            new ClipboardCopier() {
+                protected Object read() {
+                    for (int row = 0; row < nrows; row++)
+                        for (int col = 0; col < ncols; col++)
+                            array[row + 3][col] =
+                                    model.getValueAt(selRows[row], col);
+                    return array;
+                }
+            }.start(selRows);
+        }
+    }
+
+    /**
+     * Puts what read() returns on the clipboard. For windowed data, reading
+     * rows that haven't been fetched yet means running queries, which
+     * doesn't belong on the AWT Event thread; in that case, read() runs in
+     * the background, and the clipboard is updated when it is done.
+     */
+    private abstract class ClipboardCopier implements Runnable {
+        private Object result;
+
+        protected abstract Object read();
+
+        public void start(int[] rows) {
+            boolean loaded = true;
+            if (model.isWindowed())
+                for (int i = 0; i < rows.length && loaded; i++)
+                    loaded = model.isRowLoaded(rows[i]);
+            if (loaded)
+                Main.getClipboard().put(read());
+            else
+                Main.startDetachedJob("copy", JobScheduler.PRIORITY_HIGH,
+                                      this);
+        }
+
+        public void run() {
+            result = read();
+            SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        Main.getClipboard().put(result);
+                    }
+                });
         }
     }
 
@@ -1063,7 +1129,7 @@ public class QueryResultFrame extends MyFrame
         int column = table.getColumnModel().getSelectionModel()
                           .getAnchorSelectionIndex();
         column = table.convertColumnIndexToModel(column);
-        if (row == -1 || column == -1)
+        if (row == -1 || column == -1 || !model.isRowLoaded(row))
             Toolkit.getDefaultToolkit().beep();
         else {
             table.stopEditing();
@@ -27,15 +27,14 @@ import java.io.LineNumberReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.StringTokenizer;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
-import jdbcnav.model.BasicData;
 import jdbcnav.model.BlobWrapper;
 import jdbcnav.model.ClobWrapper;
 import jdbcnav.model.Data;
@@ -43,11 +42,14 @@ import jdbcnav.model.PrimaryKey;
 import jdbcnav.model.Table;
 import jdbcnav.model.TypeSpec;
 import jdbcnav.model.TypeSpecTableModel;
-import jdbcnav.util.ArrayCollection;
+import jdbcnav.model.WindowedData;
 import jdbcnav.util.CSVTokenizer;
 import jdbcnav.util.FileUtils;
+import jdbcnav.util.IntSequence;
+import jdbcnav.util.IntSort;
 import jdbcnav.util.MiscUtils;
 import jdbcnav.util.NavigatorException;
+import jdbcnav.util.RowKey;
 
 
 // TODO: when deleting or updating primary key values in a table that
@@ -63,29 +65,65 @@ public class ResultSetTableModel extends AbstractTableModel
     public static final int RUDE = 2;
     public static final int VICIOUS = 3;
     private static final Object UNSET = new Object();
+    // Sorts of at least this many rows are done in the background, so
+    // that they don't freeze the user interface.
+    private static final int BACKGROUND_SORT_THRESHOLD = 20000;
 
     private Table dbTable;
     private Data data;
+    // Set when displaying a WindowedData; in that case, rows are read
+    // directly from it, and 'cells' and 'sequence' are not used.
+    private WindowedData windowed;
+    private WindowedData.WindowListener windowListener;
+    // Set for other read-only models; in that case, rows are read directly
+    // from it, 'sequence' maps view rows to rows in 'source', and 'cells' is
+    // not used.
+    private Data source;
     private Data.StateListener datastatelistener;
     private int datatotallength;
     private MyTable table;
     private String[] headers;
     private TypeSpec[] specs;
     private ArrayList<Object[]> cells = new ArrayList<Object[]>();
-    private ArrayList<Integer> sequence = new ArrayList<Integer>();
+    // View row -> row in 'cells' (or 'source'); its indexOf() is O(1).
+    private IntSequence sequence = new IntSequence();
     private int columns;
     private int colIndex[];
     private int[] sortPriority;
     private boolean[] sortAscending;
+    private BackgroundSort backgroundSort;
+    // While set, rows arriving from the loader are merged into the current
+    // sort order, instead of being appended at the end.
+    private boolean sortWhileLoading;
+    // 'sequence' is known to be sorted up to 'sortedRows', as long as it is
+    // still 'sortedSequence', with mod count 'sortedModCount' (i.e., rows
+    // have only been appended since), and no edits have been made since;
+    // see isSorted().
+    private IntSequence sortedSequence;
+    private int sortedModCount;
+    private int sortedRows;
     private boolean editable;
+    // The rows as loaded or last committed, for committing, rolling back,
+    // and finding changes. Rows that haven't been edited share their arrays
+    // with 'cells'; editableRow() gives a row a copy of its own the first
+    // time it is changed.
     private ArrayList<Object[]> original;
+    // Bookkeeping for getChanges(), so that it doesn't have to compare the
+    // whole table with 'original': 'dirtyRows' are rows in 'cells' that have
+    // been edited (possibly back to their original values, so they still
+    // need to be compared), and 'deletedRows' are rows in 'cells' that are
+    // not in 'sequence'. Rows in 'cells' at or past original.size() are
+    // inserted rows.
+    private BitSet dirtyRows = new BitSet();
+    private BitSet deletedRows = new BitSet();
     private ArrayList<UndoListener> undoListeners;
     private ArrayList<Edit> undoStack;
     private int undoStackIndex = -1;
     
     public ResultSetTableModel(Data data, Table dbTable) {
         this.dbTable = dbTable;
-        editable = dbTable != null && dbTable.isEditable();
+        editable = dbTable != null && dbTable.isEditable()
+                        && !(data instanceof WindowedData);
         if (editable) {
             original = new ArrayList<Object[]>();
             undoListeners = new ArrayList<UndoListener>();
@@ -142,6 +180,17 @@ public class ResultSetTableModel extends AbstractTableModel
             return Data.FINISHED;
     }
 
+    public void cancel() {
+        // Don't hold the lock while cancelling: Statement.cancel() may take
+        // a while, and the loader thread needs the lock to deliver its rows.
+        Data d;
+        synchronized (this) {
+            d = data;
+        }
+        if (d != null)
+            d.cancel();
+    }
+
     public synchronized void addStateListener(Data.StateListener listener) {
         if (data != null)
             data.addStateListener(listener);
@@ -174,43 +223,134 @@ public class ResultSetTableModel extends AbstractTableModel
             table.stopEditing();
     }
 
-    public synchronized void load(Data data) {
-        if (datastatelistener != null)
-            this.data.setState(Data.FINISHED);
+    public void load(Data data) {
+        // The Data being replaced is cancelled and closed without holding
+        // the lock, like in cancel(); its loader may be waiting for the lock
+        // to deliver rows. load2() detaches its listener first, so whatever
+        // it still delivers is ignored.
+        Data old = load2(data);
+        if (old != null && old != data) {
+            old.cancel();
+            old.close();
+        }
+    }
+
+    /**
+     * Cancels any loading in progress and releases the Data this model is
+     * reading from. The model must not be used after this.
+     */
+    public void close() {
+        Data d;
+        synchronized (this) {
+            d = currentData();
+            if (windowed != null)
+                windowed.removeWindowListener(windowListener);
+        }
+        if (d != null) {
+            d.cancel();
+            d.close();
+        }
+    }
+
+    /**
+     * Returns the Data this model still depends on: the one it is reading
+     * cells from, or the one it is still loading from.
+     */
+    private Data currentData() {
+        if (source != null)
+            return source;
+        else if (windowed != null)
+            return windowed;
+        else
+            return data;
+    }
+
+    private synchronized Data load2(Data data) {
+        Data old = currentData();
+        datastatelistener = null;
         cells.clear();
         sequence.clear();
+        markSorted();
+        dirtyRows.clear();
+        deletedRows.clear();
         if (editable) {
             original.clear();
             clearUndoStack();
         }
+        if (windowed != null)
+            windowed.removeWindowListener(windowListener);
+        if (data instanceof WindowedData && !editable) {
+            windowed = (WindowedData) data;
+            source = null;
+            if (windowListener == null)
+                windowListener = new WindowedDataListener();
+            windowed.addWindowListener(windowListener);
+            datatotallength = windowed.getRowCount();
+            datastatelistener = null;
+            this.data = null;
+            notifyAll();
+            safelyFireTableDataChanged();
+            return old;
+        }
+        windowed = null;
+        if (editable)
+            source = null;
+        else
+            source = data;
         this.data = data;
         datastatelistener = new DataStateListener();
         data.addStateListener(datastatelistener);
+        return old;
+    }
+
+    /**
+     * Returns true if this model allows its contents to be changed. This is
+     * false for query results that do not map to a single table, and for
+     * tables that are too large to be loaded in their entirety.
+     */
+    public synchronized boolean isEditable() {
+        return editable;
     }
 
     private class DataStateListener implements Data.StateListener {
         private int lastrows = 0;
         public void stateChanged(int state, int rows) {
             synchronized (ResultSetTableModel.this) {
+                // Ignore stragglers from Data that has since been replaced
+                if (datastatelistener != this)
+                    return;
                 if (rows > lastrows) {
                     int first = sequence.size();
-                    for (int i = lastrows; i < rows; i++) {
-                        Object[] row = new Object[columns];
-                        for (int j = 0; j < columns; j++)
-                            row[j] = data.getValueAt(i, j);
-                        cells.add(row);
-                        sequence.add(cells.size() - 1);
-                        if (editable)
-                            original.add(row.clone());
+                    if (source != null) {
+                        for (int i = lastrows; i < rows; i++)
+                            sequence.add(i);
+                    } else {
+                        for (int i = lastrows; i < rows; i++) {
+                            Object[] row = new Object[columns];
+                            for (int j = 0; j < columns; j++)
+                                row[j] = data.getValueAt(i, j);
+                            cells.add(row);
+                            sequence.add(cells.size() - 1);
+                            if (editable)
+                                original.add(row);
+                        }
                     }
                     int last = sequence.size() - 1;
-                    SwingUtilities.invokeLater(
+                    if (sortWhileLoading && isSorted()) {
+                        mergeNewRows();
+                        safelyFireTableDataChanged();
+                    } else
+                        SwingUtilities.invokeLater(
                                 new TableRowsInsertedNotifier(first, last));
-                    lastrows =  rows;
+                    lastrows = rows;
                 }
                 if (state == Data.FINISHED) {
                     datatotallength = data.getRowCount();
                     datastatelistener = null;
+                    // If the rows were copied into 'cells', the Data has
+                    // nothing more to offer.
+                    if (source == null)
+                        data.close();
                     data = null;
                     // Allow threads blocked in waitUntilReady() to proceed
                     ResultSetTableModel.this.notifyAll();
@@ -219,6 +359,42 @@ public class ResultSetTableModel extends AbstractTableModel
         }
     }
 
+    /**
+     * Keeps the row count of windowed data up to date, and repaints rows
+     * when they arrive. The row count is only changed on the AWT Event
+     * thread, together with the notification, so that JTable never sees a
+     * row count it hasn't been told about.
+     */
+    private class WindowedDataListener implements WindowedData.WindowListener {
+        public void rowCountChanged(final int rows) {
+            SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            synchronized (ResultSetTableModel.this) {
+                                if (windowed == null)
+                                    return;
+                                datatotallength = rows;
+                            }
+                            fireTableDataChanged();
+                        }
+                    });
+        }
+
+        public void rowsArrived(final int first, final int last) {
+            SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            int l;
+                            synchronized (ResultSetTableModel.this) {
+                                if (windowed == null)
+                                    return;
+                                l = Math.min(last, datatotallength - 1);
+                            }
+                            if (first <= l)
+                                fireTableRowsUpdated(first, l);
+                        }
+                    });
+        }
+    }
+
     private class TableRowsInsertedNotifier implements Runnable {
         private int first, last;
         public TableRowsInsertedNotifier(int first, int last) {
@@ -230,18 +406,9 @@ public class ResultSetTableModel extends AbstractTableModel
         }
     }
 
-    public synchronized Data getOriginalData() {
-        BasicData origdata = new BasicData();
-        origdata.setColumnNames(headers);
-        TypeSpec[] typeSpecs = new TypeSpec[columns];
-        for (int i = 0; i < columns; i++)
-            typeSpecs[i] = specs[i];
-        origdata.setTypeSpecs(typeSpecs);
-        origdata.setData(original);
-        return origdata;
-    }
-    
     public synchronized int getRowCount() {
+        if (windowed != null)
+            return datatotallength;
         return sequence.size();
     }
     
@@ -249,9 +416,58 @@ public class ResultSetTableModel extends AbstractTableModel
         return columns;
     }
     
-    public synchronized Object getValueAt(int row, int column) {
-        int realRow = sequence.get(row);
-        return cells.get(realRow)[column];
+    public Object getValueAt(int row, int column) {
+        WindowedData w;
+        synchronized (this) {
+            w = windowed;
+            if (w == null) {
+                if (source != null)
+                    return source.getValueAt(sequence.get(row), column);
+                int realRow = sequence.get(row);
+                return cells.get(realRow)[column];
+            }
+        }
+        // This may have to load rows; don't hold the lock while doing that,
+        // or painting would have to wait for it.
+        return w.getValueAt(row, column);
+    }
+
+    /**
+     * Like getValueAt(), but never waits for the database: for windowed
+     * data, values that haven't been fetched yet are returned as
+     * WindowedData.PENDING. This is for painting only; anything that uses
+     * the values should call getValueAt(), off the AWT Event thread if
+     * isWindowed() is true.
+     */
+    public Object getDisplayValueAt(int row, int column) {
+        WindowedData w;
+        synchronized (this) {
+            w = windowed;
+        }
+        if (w == null)
+            return getValueAt(row, column);
+        return w.getLoadedValueAt(row, column);
+    }
+
+    /**
+     * Returns true if this model reads its rows from a WindowedData, which
+     * fetches them from the database as needed; reading rows that aren't
+     * loaded yet should be done in the background, see isRowLoaded().
+     */
+    public synchronized boolean isWindowed() {
+        return windowed != null;
+    }
+
+    /**
+     * Returns true if getValueAt() can return this row without waiting for
+     * the database.
+     */
+    public boolean isRowLoaded(int row) {
+        WindowedData w;
+        synchronized (this) {
+            w = windowed;
+        }
+        return w == null || w.isRowLoaded(row);
     }
     
     public synchronized String getColumnName(int column) {
@@ -291,8 +507,7 @@ public class ResultSetTableModel extends AbstractTableModel
         if (!editable)
             return;
         int realRow = sequence.get(row);
-        Object[] currRow = cells.get(realRow);
-        Object prev = currRow[column];
+        Object prev = cells.get(realRow)[column];
 
         if (value instanceof String) {
             TypeSpec spec = specs[column];
@@ -304,7 +519,7 @@ public class ResultSetTableModel extends AbstractTableModel
 
         if (value == null ? prev == null : value.equals(prev))
             return;
-        currRow[column] = value;
+        editableRow(realRow)[column] = value;
         editHappened(new SingleCellEdit(realRow, column, prev, value, why));
         safelyFireTableCellUpdated(row, column);
     }
@@ -344,49 +559,76 @@ public class ResultSetTableModel extends AbstractTableModel
         return canUndo();
     }
 
-    public void commit(TableChangeHandler tch) throws NavigatorException {
+    /**
+     * The changes made to a table since it was loaded or last committed.
+     * Deleted rows and the 'old' versions of modified rows are the original
+     * rows as loaded; the lists are parallel where they need to be, that is,
+     * modifiedOld.get(i) is the original version of modifiedNew.get(i).
+     */
+    public static class Changes {
+        public final ArrayList<Object[]> deleted = new ArrayList<Object[]>();
+        public final ArrayList<Object[]> modifiedOld = new ArrayList<Object[]>();
+        public final ArrayList<Object[]> modifiedNew = new ArrayList<Object[]>();
+        public final ArrayList<Object[]> inserted = new ArrayList<Object[]>();
 
-        // This method is called by JDBCDatabase when commitTables() is
-        // called with only one table to commit. This code is more efficient
-        // than the code in MultiTableDiff, since it can take advantage of
-        // inside knowledge of ResultSetTableModel to generate the list of
-        // required changes efficiently.
-        // (TODO: it would be better to return a list of change actions,
-        // without executing them here; MultiTableDiff could thus let
-        // ResultSetTableModel generate lists of changes efficiently *even* in
-        // a multi-table commit, and then use a graph sorting algorithm to
-        // reorder them to resolve dependencies.
-        // On the other hand, we can't get rid of the brute force diffing code
-        // in MultiTableDiff altogether, since it is needed when diffing tables
-        // that are truly distinct (as opposed to diffing old and new versions
-        // of the same table, as we do on commit, or diffing actual and empty
-        // versions of the same table, as we do when generating a populate
-        // script).
-
-        ArrayList<Object[]> deleted = new ArrayList<Object[]>();
-        ArrayList<Object[]> modified = new ArrayList<Object[]>();
-        ArrayList<Object[]> modifiedBak = new ArrayList<Object[]>();
-        ArrayList<Object[]> inserted = new ArrayList<Object[]>();
+        public int size() {
+            return deleted.size() + modifiedNew.size() + inserted.size();
+        }
+    }
+
+    /**
+     * Returns the changes that a commit would have to make, without making
+     * them. This is what lets MultiTableDiff commit several tables at once
+     * at a cost proportional to the number of changes, rather than to the
+     * size of the tables.
+     */
+    public synchronized Changes getChanges() {
+        long startTime = System.nanoTime();
+        Changes changes = new Changes();
         int currRows = cells.size();
         int prevRows = original.size();
-        for (int i = 0; i < prevRows; i++) {
-            if (sequence.indexOf(i) == -1)
-                deleted.add(original.get(i));
-            else {
-                Object[] current = cells.get(i);
-                Object[] backup = original.get(i);
-                for (int j = 0; j < columns; j++)
-                    if (backup[j] == null ? current[j] != null
-                                          : !backup[j].equals(current[j])) {
-                        modified.add(current);
-                        modifiedBak.add(backup);
-                        break;
-                    }
-            }
+        for (int i = deletedRows.nextSetBit(0); i != -1 && i < prevRows;
+                                            i = deletedRows.nextSetBit(i + 1))
+            changes.deleted.add(original.get(i));
+        for (int i = dirtyRows.nextSetBit(0); i != -1 && i < prevRows;
+                                            i = dirtyRows.nextSetBit(i + 1)) {
+            if (deletedRows.get(i))
+                continue;
+            Object[] current = cells.get(i);
+            Object[] backup = original.get(i);
+            if (current == backup)
+                continue;
+            for (int j = 0; j < columns; j++)
+                if (backup[j] == null ? current[j] != null
+                                      : !backup[j].equals(current[j])) {
+                    changes.modifiedNew.add(current);
+                    changes.modifiedOld.add(backup);
+                    break;
+                }
         }
         for (int i = prevRows; i < currRows; i++)
-            if (sequence.indexOf(i) != -1)
-                inserted.add(cells.get(i));
+            if (!deletedRows.get(i))
+                changes.inserted.add(cells.get(i));
+        Main.log(3, "ResultSetTableModel.getChanges(): " + changes.size()
+                    + " changes in " + prevRows + " rows, found in "
+                    + (System.nanoTime() - startTime) / 1000 + " us");
+        return changes;
+    }
+
+    public void commit(TableChangeHandler tch) throws NavigatorException {
+
+        // This method is called by JDBCDatabase when commitTables() is
+        // called with only one table to commit; in that case, there are no
+        // dependencies on other tables to worry about, so we simply do all
+        // the deletes, then all the updates, and then all the inserts.
+        // Multi-table commits use MultiTableDiff.commit(), which orders the
+        // changes to satisfy the foreign key constraints between the tables.
+
+        Changes changes = getChanges();
+        ArrayList<Object[]> deleted = changes.deleted;
+        ArrayList<Object[]> modified = changes.modifiedNew;
+        ArrayList<Object[]> modifiedBak = changes.modifiedOld;
+        ArrayList<Object[]> inserted = changes.inserted;
 
         PrimaryKey dpk = dbTable.getPrimaryKey();
         String[] pk;
@@ -439,9 +681,11 @@ public class ResultSetTableModel extends AbstractTableModel
             Object[] current = cells.get(row);
             newCells.add(current);
             sequence.set(i, i);
-            original.add(current.clone());
+            original.add(current);
         }
         cells = newCells;
+        dirtyRows.clear();
+        deletedRows.clear();
         // Just for good measure, and to get the commit/rollback menu
         // items to be disabled
         safelyFireTableDataChanged();
@@ -454,18 +698,24 @@ public class ResultSetTableModel extends AbstractTableModel
         sequence.clear();
         for (int i = 0; i < rows; i++) {
             sequence.add(i);
-            cells.set(i, original.get(i).clone());
+            cells.set(i, original.get(i));
         }
         for (int i = cells.size() - 1; i >= rows; i--)
             cells.remove(i);
+        dirtyRows.clear();
+        deletedRows.clear();
         clearUndoStack();
-        Collections.sort(sequence, rowComparator);
+        sequence.sort(new KeyComparator());
+        markSorted();
         safelyFireTableDataChanged();
     }
     
     public synchronized void sortColumn(int col) {
         if (col < 0 || col >= sortPriority.length)
             return;
+        // Windowed data is always presented in primary key order
+        if (windowed != null)
+            return;
         if (col == sortPriority[0])
             sortAscending[col] = !sortAscending[col];
         else {
@@ -480,8 +730,8 @@ public class ResultSetTableModel extends AbstractTableModel
             }
             sortPriority[i] = temp;
         }
-        Collections.sort(sequence, rowComparator);
-        safelyFireTableDataChanged();
+        if (sortRows())
+            safelyFireTableDataChanged();
     }
 
     public synchronized int getSortedColumn() {
@@ -489,13 +739,114 @@ public class ResultSetTableModel extends AbstractTableModel
     }
 
     public synchronized void sort() {
-        Collections.sort(sequence, rowComparator);
-        safelyFireTableDataChanged();
+        if (windowed != null)
+            return;
+        if (backgroundSort != null && !backgroundSort.edited) {
+            // Let it finish, and have it take care of any rows that were
+            // loaded since it started
+            backgroundSort.mergeNewRows = true;
+            return;
+        }
+        if (isSorted()) {
+            // Only rows loaded since the last sort can be out of order
+            if (sortedRows < sequence.size()) {
+                mergeNewRows();
+                safelyFireTableDataChanged();
+            }
+            return;
+        }
+        if (sortRows())
+            safelyFireTableDataChanged();
+    }
+
+    /**
+     * When set, rows that are loaded after the model has been sorted are
+     * sorted and merged in as they arrive, so that the model stays sorted
+     * while loading, and sort() has little left to do once it's done.
+     * Since that moves rows around, this should only be set while the user
+     * isn't interacting with the table.
+     */
+    public synchronized void setSortWhileLoading(boolean sortWhileLoading) {
+        this.sortWhileLoading = sortWhileLoading;
+    }
+
+    /**
+     * Sorts the rows according to sortPriority and sortAscending. Small
+     * models are sorted right away, and true is returned; larger ones are
+     * sorted in the background (see BackgroundSort), and false is returned.
+     */
+    private boolean sortRows() {
+        if (backgroundSort != null) {
+            backgroundSort.cancel();
+            backgroundSort = null;
+        }
+        if (sequence.size() < BACKGROUND_SORT_THRESHOLD) {
+            sequence.sort(new KeyComparator());
+            markSorted();
+            return true;
+        }
+        backgroundSort = new BackgroundSort(0);
+        return false;
+    }
+
+    /**
+     * Called when an edit may have left rows out of order.
+     */
+    private void sortInvalidated() {
+        sortedSequence = null;
+        if (backgroundSort != null)
+            backgroundSort.edited = true;
+    }
+
+    private void markSorted() {
+        sortedSequence = sequence;
+        sortedModCount = sequence.getModCount();
+        sortedRows = sequence.size();
+    }
+
+    /**
+     * Returns true if the sequence is in sorted order, except maybe for rows
+     * that have been loaded since it was last sorted, and no sort is in
+     * progress.
+     */
+    private boolean isSorted() {
+        return backgroundSort == null && sequence == sortedSequence
+                && sequence.getModCount() == sortedModCount;
+    }
+
+    /**
+     * Sorts the rows that have been appended to the sequence since it was
+     * last sorted, and merges them with the rest; isSorted() must be true.
+     * This is done right away if there aren't too many new rows, and in the
+     * background otherwise.
+     */
+    private void mergeNewRows() {
+        int size = sequence.size();
+        int newRows = size - sortedRows;
+        if (newRows == 0)
+            return;
+        if (newRows >= BACKGROUND_SORT_THRESHOLD) {
+            backgroundSort = new BackgroundSort(sortedRows);
+            return;
+        }
+        int firstRow = Integer.MAX_VALUE;
+        for (int i = sortedRows; i < size; i++)
+            firstRow = Math.min(firstRow, sequence.get(i));
+        sequence.sort(sortedRows, new KeyComparator(firstRow));
+        // Looking up each new row with a binary search takes fewer
+        // comparisons than walking all the old rows, unless there are a lot
+        // of new rows, and then it doesn't pay to extract all the old rows'
+        // sort keys, either.
+        int log = 32 - Integer.numberOfLeadingZeros(sortedRows);
+        boolean shortRun = (long) newRows * log < sortedRows;
+        sequence.merge(sortedRows, shortRun ? (IntSort.Comparator)
+                        new ValueComparator() : new KeyComparator(), shortRun);
+        markSorted();
     }
 
     public synchronized void selectionFromViewToModel(int[] selection) {
         int len = selection.length;
-        if (len == 0)
+        if (len == 0 || windowed != null)
             return;
         for (int i = 0; i < len; i++)
             selection[i] = sequence.get(selection[i]);
@@ -504,14 +855,10 @@ public class ResultSetTableModel extends AbstractTableModel
 
     public synchronized void selectionFromModelToView(int[] selection) {
         int len = selection.length;
-        if (len == 0)
+        if (len == 0 || windowed != null)
             return;
-        int seqlen = sequence.size();
-        int[] reverseSequence = new int[seqlen];
-        for (int i = 0; i < seqlen; i++)
-            reverseSequence[sequence.get(i)] = i;
         for (int i = 0; i < len; i++)
-            selection[i] = reverseSequence[selection[i]];
+            selection[i] = sequence.indexOf(selection[i]);
         Arrays.sort(selection);
     }
 
@@ -556,6 +903,7 @@ public class ResultSetTableModel extends AbstractTableModel
     
     public synchronized void undo() {
         if (canUndo()) {
+            sortInvalidated();
             Edit e = undoStack.get(undoStackIndex--);
             e.undo();
             undoRedoTitleChanged();
@@ -564,6 +912,7 @@ public class ResultSetTableModel extends AbstractTableModel
 
     public synchronized void redo() {
         if (canRedo()) {
+            sortInvalidated();
             Edit e = undoStack.get(++undoStackIndex);
             e.redo();
             undoRedoTitleChanged();
@@ -571,6 +920,8 @@ public class ResultSetTableModel extends AbstractTableModel
     }
 
     public synchronized void insertRow(int viewRow) {
+        if (!editable)
+            return;
         cells.add(new Object[columns]);
         int modelRow = cells.size() - 1;
         int beforeModelRow;
@@ -587,6 +938,8 @@ public class ResultSetTableModel extends AbstractTableModel
     }
 
     public synchronized void deleteRow(int[] rows, boolean cut) {
+        if (!editable)
+            return;
         Arrays.sort(rows);
         int length = rows.length;
         if (length == 0)
@@ -601,8 +954,9 @@ public class ResultSetTableModel extends AbstractTableModel
                 precedes[i] = sequence.get(following);
             removed[i] = sequence.get(rows[i]);
         }
-        for (int i = length - 1; i >= 0; i--)
-            sequence.remove(rows[i]);
+        sequence.removeIndexes(rows);
+        for (int i = 0; i < length; i++)
+            deletedRows.set(removed[i]);
         editHappened(new DeleteRowEdit(removed, precedes, cut));
         int first = rows[0];
         int last = rows[length - 1];
@@ -674,7 +1028,23 @@ public class ResultSetTableModel extends AbstractTableModel
         edit.redo();
     }
 
+    /**
+     * Returns the given row of 'cells', ready to be modified: if the row
+     * still shares its array with 'original', it gets a copy of its own
+     * first. Also marks the row as dirty, for getChanges().
+     */
+    private Object[] editableRow(int row) {
+        Object[] r = cells.get(row);
+        if (row < original.size() && r == original.get(row)) {
+            r = r.clone();
+            cells.set(row, r);
+        }
+        dirtyRows.set(row);
+        return r;
+    }
+
     private synchronized void editHappened(Edit e) {
+        sortInvalidated();
         for (int i = undoStack.size() - 1; i > undoStackIndex; i--)
             undoStack.remove(i);
         undoStack.add(e);
@@ -688,20 +1058,94 @@ public class ResultSetTableModel extends AbstractTableModel
         undoRedoTitleChanged();
     }
 
-    private RowComparator rowComparator = new RowComparator();
+    /**
+     * Compares rows by the columns in sortPriority, as they were when the
+     * comparator was created. Instead of fetching the cells and comparing
+     * them with MiscUtils.compareObjects() for every comparison, it copies
+     * each column's values into an array once, in a form suited to the
+     * column's type (see ColumnKeys). The tie-breaking columns are only
+     * copied if the sort actually gets to them.
+     * <br>
+     * This is safe to use from several threads at once, as long as the
+     * model is not locked by a thread that is waiting for the sort.
+     */
+    private class KeyComparator implements IntSort.Comparator {
+        private final Data src;
+        private final int firstRow;
+        private final int rowCount;
+        private final int[] priority;
+        private final boolean[] ascending;
+        private final ColumnKeys[] keys;
+
+        public KeyComparator() {
+            this(0);
+        }
+
+        /**
+         * Creates a comparator that only handles rows from 'firstRow' on.
+         */
+        public KeyComparator(int firstRow) {
+            // Called with the model locked
+            this.firstRow = firstRow;
+            src = source;
+            rowCount = src != null ? src.getRowCount() : cells.size();
+            priority = sortPriority.clone();
+            ascending = new boolean[priority.length];
+            for (int i = 0; i < priority.length; i++)
+                ascending[i] = sortAscending[priority[i]];
+            keys = new ColumnKeys[priority.length];
+        }
+
+        public int compare(int a, int b) {
+            for (int i = 0; i < priority.length; i++) {
+                ColumnKeys k = keys[i];
+                if (k == null)
+                    k = getKeys(i);
+                int res = k.compare(a - firstRow, b - firstRow);
+                if (res != 0)
+                    return ascending[i] ? res : -res;
+            }
+            return 0;
+        }
+
+        private synchronized ColumnKeys getKeys(int i) {
+            if (keys[i] == null) {
+                int col = priority[i];
+                Object[] values = new Object[rowCount - firstRow];
+                synchronized (ResultSetTableModel.this) {
+                    if (src != null) {
+                        for (int row = firstRow; row < rowCount; row++)
+                            values[row - firstRow] = src.getValueAt(row, col);
+                    } else {
+                        // If rows were removed while we were sorting in
+                        // the background, the sort will be discarded
+                        // anyway; just don't trip over them.
+                        int n = Math.min(rowCount, cells.size());
+                        for (int row = firstRow; row < n; row++)
+                            values[row - firstRow] = cells.get(row)[col];
+                    }
+                }
+                keys[i] = ColumnKeys.create(values);
+            }
+            return keys[i];
+        }
+    }
 
-    private class RowComparator implements Comparator<Integer> {
-        public int compare(Integer A, Integer B) {
-            Object[] a = cells.get(A);
-            Object[] b = cells.get(B);
-            if (a == null)
-                return b == null ? 0 :
-                        sortAscending[sortPriority[0]] ? 1 : -1;
-            else if (b == null)
-                return sortAscending[sortPriority[0]] ? -1 : 1;
+    /**
+     * Compares rows by the columns in sortPriority, looking at their values
+     * directly, in the same order as KeyComparator. Use with the model
+     * locked; this is for when only a few comparisons are needed, so that
+     * extracting the sort keys wouldn't pay off.
+     */
+    private class ValueComparator implements IntSort.Comparator {
+        public int compare(int a, int b) {
+            Object[] ra = source != null ? null : cells.get(a);
+            Object[] rb = source != null ? null : cells.get(b);
             for (int i = 0; i < sortPriority.length; i++) {
                 int col = sortPriority[i];
-                int res = MiscUtils.compareObjects(a[col], b[col], true);
+                Object va = ra != null ? ra[col] : source.getValueAt(a, col);
+                Object vb = rb != null ? rb[col] : source.getValueAt(b, col);
+                int res = MiscUtils.compareObjects(va, vb, true);
                 if (res != 0)
                     return sortAscending[col] ? res : -res;
             }
@@ -709,6 +1153,287 @@ public class ResultSetTableModel extends AbstractTableModel
         }
     }
 
+    /**
+     * One column's values, indexed by model row, prepared for sorting. The
+     * representation is chosen based on the values' class: integers are
+     * stored as longs, floating-point values as doubles, strings are
+     * case-folded once up front, and so on. Columns with values of mixed
+     * (or unknown) types fall back on MiscUtils.compareObjects(). Whatever
+     * the representation, rows compare the same way compareObjects() would
+     * compare their values, ignoring case; nulls go last.
+     */
+    private static abstract class ColumnKeys {
+        public abstract int compare(int a, int b);
+
+        public static ColumnKeys create(Object[] values) {
+            Class<?> cls = null;
+            for (int i = 0; i < values.length; i++) {
+                Object v = values[i];
+                if (v == null)
+                    continue;
+                if (cls == null)
+                    cls = v.getClass();
+                else if (cls != v.getClass()) {
+                    cls = Object.class;
+                    break;
+                }
+            }
+            if (cls == Long.class || cls == Integer.class
+                    || cls == Short.class || cls == Byte.class)
+                return new LongKeys(values);
+            else if (cls == Double.class || cls == Float.class)
+                return new DoubleKeys(values);
+            else if (cls == String.class)
+                return new StringKeys(values);
+            else if (cls == byte[].class)
+                return new ByteArrayKeys(values);
+            else if (cls != null && cls != Object.class && !cls.isArray()
+                    && Comparable.class.isAssignableFrom(cls))
+                return new ComparableKeys(values);
+            else
+                return new ObjectKeys(values);
+        }
+    }
+
+    private static class LongKeys extends ColumnKeys {
+        private final long[] keys;
+        private final BitSet nulls = new BitSet();
+
+        public LongKeys(Object[] values) {
+            keys = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                Object v = values[i];
+                if (v == null)
+                    nulls.set(i);
+                else if (v instanceof Byte)
+                    // compareObjects() treats bytes as unsigned
+                    keys[i] = ((Byte) v).byteValue() & 255;
+                else
+                    keys[i] = ((Number) v).longValue();
+            }
+        }
+
+        public int compare(int a, int b) {
+            boolean anull = nulls.get(a);
+            boolean bnull = nulls.get(b);
+            if (anull || bnull)
+                return anull ? bnull ? 0 : 1 : -1;
+            long ka = keys[a];
+            long kb = keys[b];
+            return ka < kb ? -1 : ka > kb ? 1 : 0;
+        }
+    }
+
+    private static class DoubleKeys extends ColumnKeys {
+        private final double[] keys;
+        private final BitSet nulls = new BitSet();
+
+        public DoubleKeys(Object[] values) {
+            keys = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                Object v = values[i];
+                if (v == null)
+                    nulls.set(i);
+                else
+                    keys[i] = ((Number) v).doubleValue();
+            }
+        }
+
+        public int compare(int a, int b) {
+            boolean anull = nulls.get(a);
+            boolean bnull = nulls.get(b);
+            if (anull || bnull)
+                return anull ? bnull ? 0 : 1 : -1;
+            return Double.compare(keys[a], keys[b]);
+        }
+    }
+
+    private static class StringKeys extends ColumnKeys {
+        private final String[] keys;
+
+        public StringKeys(Object[] values) {
+            keys = new String[values.length];
+            for (int i = 0; i < values.length; i++)
+                if (values[i] != null)
+                    keys[i] = fold((String) values[i]);
+        }
+
+        /**
+         * Folds case the same way String.compareToIgnoreCase() does, so
+         * that comparing the folded strings with compareTo() gives the same
+         * result.
+         */
+        private static String fold(String s) {
+            char[] c = null;
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                char f = Character.toLowerCase(Character.toUpperCase(ch));
+                if (f != ch) {
+                    if (c == null)
+                        c = s.toCharArray();
+                    c[i] = f;
+                }
+            }
+            return c == null ? s : new String(c);
+        }
+
+        public int compare(int a, int b) {
+            String ka = keys[a];
+            String kb = keys[b];
+            if (ka == null || kb == null)
+                return ka == null ? kb == null ? 0 : 1 : -1;
+            return ka.compareTo(kb);
+        }
+    }
+
+    private static class ByteArrayKeys extends ColumnKeys {
+        private final byte[][] keys;
+
+        public ByteArrayKeys(Object[] values) {
+            keys = new byte[values.length][];
+            for (int i = 0; i < values.length; i++)
+                keys[i] = (byte[]) values[i];
+        }
+
+        public int compare(int a, int b) {
+            byte[] ka = keys[a];
+            byte[] kb = keys[b];
+            if (ka == null || kb == null)
+                return ka == null ? kb == null ? 0 : 1 : -1;
+            int n = Math.min(ka.length, kb.length);
+            for (int i = 0; i < n; i++) {
+                int ba = ka[i] & 255;
+                int bb = kb[i] & 255;
+                if (ba != bb)
+                    return ba < bb ? -1 : 1;
+            }
+            // Same (odd) ordering as compareObjects()
+            return ka.length < kb.length ? 1 : ka.length > kb.length ? -1 : 0;
+        }
+    }
+
+    private static class ComparableKeys extends ColumnKeys {
+        private final Object[] keys;
+
+        public ComparableKeys(Object[] values) {
+            keys = values;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public int compare(int a, int b) {
+            Object ka = keys[a];
+            Object kb = keys[b];
+            if (ka == null || kb == null)
+                return ka == null ? kb == null ? 0 : 1 : -1;
+            return ((Comparable) ka).compareTo(kb);
+        }
+    }
+
+    private static class ObjectKeys extends ColumnKeys {
+        private final Object[] keys;
+
+        public ObjectKeys(Object[] values) {
+            keys = values;
+        }
+
+        public int compare(int a, int b) {
+            return MiscUtils.compareObjects(keys[a], keys[b], true);
+        }
+    }
+
+    /**
+     * Sorts a copy of the sequence on a background thread, and puts it in
+     * place on the AWT Event thread when it is done; if the sequence was
+     * changed in the meantime, other than by the loader appending rows, it
+     * starts over. If 'sortedRows' is nonzero, the sequence is already
+     * sorted up to there, and only the rest needs to be sorted and merged.
+     */
+    private class BackgroundSort implements Runnable {
+        private IntSequence target;
+        private int modCount;
+        private int sortedRows;
+        private IntSequence sorted;
+        private KeyComparator comparator;
+        private JobScheduler.Job job;
+        private volatile boolean cancelled;
+        // Set if rows were edited while sorting, so the result may not be
+        // entirely in order
+        public boolean edited;
+        // Set if sort() was called while sorting
+        public boolean mergeNewRows;
+
+        public BackgroundSort(int sortedRows) {
+            // Called with the model locked
+            this.sortedRows = sortedRows;
+            target = sequence;
+            modCount = sequence.getModCount();
+            sorted = new IntSequence(sequence);
+            comparator = new KeyComparator();
+            job = Main.submitJob("sort", JobScheduler.PRIORITY_HIGH, null,
+                                 true, this);
+        }
+
+        public void cancel() {
+            cancelled = true;
+            job.cancel();
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            sorted.parallelSort(sortedRows, comparator);
+            if (sortedRows > 0)
+                sorted.merge(sortedRows, comparator, false);
+            Main.log(3, "ResultSetTableModel: sorted "
+                        + (sorted.size() - sortedRows) + " of " + sorted.size()
+                        + " rows in " + (System.nanoTime() - start) / 1000000
+                        + " ms");
+            if (cancelled)
+                return;
+            SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        MyTable t;
+                        synchronized (ResultSetTableModel.this) {
+                            t = table;
+                        }
+                        Runnable installer = new Runnable() {
+                                public void run() {
+                                    install();
+                                }
+                            };
+                        if (t != null)
+                            t.keepingSelection(installer);
+                        else
+                            installer.run();
+                    }
+                });
+        }
+
+        private void install() {
+            synchronized (ResultSetTableModel.this) {
+                if (backgroundSort != this)
+                    return;
+                backgroundSort = null;
+                if (sequence != target
+                        || sequence.getModCount() != modCount) {
+                    if (sortRows())
+                        fireTableDataChanged();
+                    return;
+                }
+                sequence = sorted;
+                if (!edited)
+                    markSorted();
+                // Rows that were loaded while we were sorting go at the end,
+                // just like rows loaded after a sort, unless we're keeping
+                // things sorted while loading, or sort() was called
+                for (int i = sorted.size(); i < target.size(); i++)
+                    sorted.add(target.get(i));
+                if ((sortWhileLoading || mergeNewRows) && isSorted())
+                    mergeNewRows();
+            }
+            fireTableDataChanged();
+        }
+    }
+
     public void export(File file, boolean printColumnNames) {
         if (file.exists()) {
             Toolkit.getDefaultToolkit().beep();
@@ -720,57 +1445,79 @@ public class ResultSetTableModel extends AbstractTableModel
                                     != JOptionPane.OK_OPTION)
                 return;
         }
+        if (isWindowed()) {
+            // Reading all the rows means running queries; that can take a
+            // while, and isn't allowed on the AWT Event thread anyway.
+            final File f = file;
+            final boolean pcn = printColumnNames;
+            Main.startDetachedJob("export", JobScheduler.PRIORITY_LOW,
+                    new Runnable() {
+                        public void run() {
+                            try {
+                                writeCSV(f, pcn);
+                            } catch (IOException e) {
+                                MessageBox.show("Export failed.", e);
+                            }
+                        }
+                    });
+            return;
+        }
         try {
             synchronized (this) {
-                PrintWriter pw = new PrintWriter(new FileOutputStream(file));
-                int columns = getColumnCount();
-                if (printColumnNames) {
-                    for (int i = 0; i < columns; i++) {
-                        pw.print(quote(getColumnName(i)));
-                        if (i < columns - 1)
-                            pw.print(",");
-                        else
-                            pw.println();
-                    }
-                }
+                writeCSV(file, printColumnNames);
+            }
+        } catch (IOException e) {
+            MessageBox.show("Export failed.", e);
+        }
+    }
 
-                int rows = getRowCount();
-                Class<?> byteArrayClass = new byte[1].getClass();
-                for (int i = 0; i < rows; i++) {
-                    for (int j = 0; j < columns; j++) {
-                        Object o = getValueAt(i, j);
-                        if (o != null) {
-                            if (o instanceof BlobWrapper)
-                                o = ((BlobWrapper) o).load();
-                            else if (o instanceof ClobWrapper)
-                                o = ((ClobWrapper) o).load();
-                            Class<?> k = specs[j].jdbcJavaClass;
-                            String s;
-                            if (k == String.class
-                                    || java.sql.Clob.class.isAssignableFrom(k))
-                                s = quote((String) o);
-                            else if (k == byteArrayClass
-                                    || java.sql.Blob.class.isAssignableFrom(k))
-                                s = FileUtils.byteArrayToBase64((byte[]) o);
-                            else {
-                                s = specs[j].objectToString(o);
-                                if (!Number.class.isAssignableFrom(k))
-                                    s = quote(s);
-                            }
-                            pw.print(s);
-                        }
-                        if (j < columns - 1)
-                            pw.print(",");
-                        else
-                            pw.println();
+    private void writeCSV(File file, boolean printColumnNames)
+                                                        throws IOException {
+        PrintWriter pw = new PrintWriter(new FileOutputStream(file));
+        int columns = getColumnCount();
+        if (printColumnNames) {
+            for (int i = 0; i < columns; i++) {
+                pw.print(quote(getColumnName(i)));
+                if (i < columns - 1)
+                    pw.print(",");
+                else
+                    pw.println();
+            }
+        }
+
+        int rows = getRowCount();
+        Class<?> byteArrayClass = new byte[1].getClass();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                Object o = getValueAt(i, j);
+                if (o != null) {
+                    if (o instanceof BlobWrapper)
+                        o = ((BlobWrapper) o).load();
+                    else if (o instanceof ClobWrapper)
+                        o = ((ClobWrapper) o).load();
+                    Class<?> k = specs[j].jdbcJavaClass;
+                    String s;
+                    if (k == String.class
+                            || java.sql.Clob.class.isAssignableFrom(k))
+                        s = quote((String) o);
+                    else if (k == byteArrayClass
+                            || java.sql.Blob.class.isAssignableFrom(k))
+                        s = FileUtils.byteArrayToBase64((byte[]) o);
+                    else {
+                        s = specs[j].objectToString(o);
+                        if (!Number.class.isAssignableFrom(k))
+                            s = quote(s);
                     }
+                    pw.print(s);
                 }
-                
-                pw.close();
+                if (j < columns - 1)
+                    pw.print(",");
+                else
+                    pw.println();
             }
-        } catch (IOException e) {
-            MessageBox.show("Export failed.", e);
         }
+
+        pw.close();
     }
 
     public synchronized void doImport(File file, int importMode,
@@ -922,15 +1669,20 @@ public class ResultSetTableModel extends AbstractTableModel
         return buf.toString();
     }
 
-    private static boolean rowEqual(Object[] a, Object[] b, int[] key) {
-        for (int i = 0; i < key.length; i++) {
-            int j = key[i];
-            Object A = a[j];
-            Object B = b[j];
-            if (A == null ? B != null : !A.equals(B))
-                return false;
+    /**
+     * Indexes the rows in the sequence by the values in the given key
+     * columns, for matching imported rows. Each key maps to the first row
+     * (in 'cells') that has it, in sequence order.
+     */
+    private HashMap<RowKey, Integer> indexRows(int[] key) {
+        int size = sequence.size();
+        HashMap<RowKey, Integer> index =
+                                new HashMap<RowKey, Integer>(size * 4 / 3 + 1);
+        for (int i = size - 1; i >= 0; i--) {
+            int row = sequence.get(i);
+            index.put(new RowKey(cells.get(row), key), row);
         }
-        return true;
+        return index;
     }
 
     private interface Edit {
@@ -965,12 +1717,12 @@ public class ResultSetTableModel extends AbstractTableModel
         }
 
         public void undo() {
-            cells.get(row)[column] = before;
+            editableRow(row)[column] = before;
             safelyFireTableCellUpdated(sequence.indexOf(row), column);
         }
 
         public void redo() {
-            cells.get(row)[column] = after;
+            editableRow(row)[column] = after;
             safelyFireTableCellUpdated(sequence.indexOf(row), column);
         }
     }
@@ -1001,10 +1753,10 @@ public class ResultSetTableModel extends AbstractTableModel
 
         public void undo() {
             for (int r = 0; r < rows.length; r++) {
-                int row = rows[r];
+                Object[] row = editableRow(rows[r]);
                 for (int c = 0; c < before[0].length; c++) {
                     int col = columns[c];
-                    cells.get(row)[col] = before[r][c];
+                    row[col] = before[r][c];
                 }
             }
             safelyFireTableDataChanged();
@@ -1012,10 +1764,10 @@ public class ResultSetTableModel extends AbstractTableModel
 
         public void redo() {
             for (int r = 0; r < rows.length; r++) {
-                int row = rows[r];
+                Object[] row = editableRow(rows[r]);
                 for (int c = 0; c < after[0].length; c++) {
                     int col = columns[c];
-                    cells.get(row)[col] = after[r][c];
+                    row[col] = after[r][c];
                 }
             }
             safelyFireTableDataChanged();
@@ -1042,6 +1794,7 @@ public class ResultSetTableModel extends AbstractTableModel
             int row = sequence.indexOf(index);
             sequence.remove(row);
             cells.remove(index);
+            dirtyRows.clear(index);
             safelyFireTableRowsDeleted(row, row);
         }
 
@@ -1086,20 +1839,40 @@ public class ResultSetTableModel extends AbstractTableModel
         }
 
         public void undo() {
-            for (int i = removed.length - 1; i >= 0; i--) {
-                int insertPos = precedes[i];
-                if (insertPos == -1)
-                    sequence.add(removed[i]);
-                else {
-                    insertPos = sequence.indexOf(insertPos);
-                    sequence.add(insertPos, removed[i]);
-                }
+            // Rather than inserting the rows one by one, which is quadratic
+            // when many rows were deleted, rebuild the sequence in one pass.
+            // Runs of adjacent deleted rows go back in front of the first
+            // row following them that wasn't deleted (-1 being the end).
+            int length = removed.length;
+            int[] anchor = new int[length];
+            HashMap<Integer, Integer> runStart = new HashMap<Integer, Integer>();
+            for (int i = length - 1; i >= 0; i--) {
+                if (i + 1 < length && precedes[i] == removed[i + 1])
+                    anchor[i] = anchor[i + 1];
+                else
+                    anchor[i] = precedes[i];
+                runStart.put(anchor[i], i);
+                deletedRows.clear(removed[i]);
             }
+            IntSequence seq = new IntSequence();
+            int size = sequence.size();
+            for (int j = 0; j <= size; j++) {
+                int row = j < size ? sequence.get(j) : -1;
+                Integer start = runStart.get(row);
+                if (start != null)
+                    for (int i = start; i < length && anchor[i] == row; i++)
+                        seq.add(removed[i]);
+                if (row != -1)
+                    seq.add(row);
+            }
+            sequence = seq;
             safelyFireTableDataChanged();
         }
 
         public void redo() {
-            sequence.removeAll(new ArrayCollection<Integer>(removed));
+            sequence.removeValues(removed);
+            for (int i = 0; i < removed.length; i++)
+                deletedRows.set(removed[i]);
             safelyFireTableDataChanged();
         }
     }
@@ -1119,11 +1892,12 @@ public class ResultSetTableModel extends AbstractTableModel
     }
 
     private class ViciousImportEdit implements Edit {
-        private ArrayList<Integer> seq;
+        private IntSequence seq;
+        private BitSet deleted;
         private ArrayList<Object[]> imports;
-        @SuppressWarnings("unchecked")
         public ViciousImportEdit(ArrayList<Object[]> imports) {
-            seq = (ArrayList<Integer>) sequence.clone();
+            seq = new IntSequence(sequence);
+            deleted = (BitSet) deletedRows.clone();
             this.imports = imports;
         }
         public String getUndoTitle() {
@@ -1132,17 +1906,19 @@ public class ResultSetTableModel extends AbstractTableModel
         public String getRedoTitle() {
             return "Redo Import";
         }
-        @SuppressWarnings("unchecked")
         public void undo() {
             int last = cells.size() - 1;
             int first = last - imports.size() + 1;
             for (int i = last; i >= first; i--)
                 cells.remove(i);
-            sequence = (ArrayList<Integer>) seq.clone();
+            dirtyRows.clear(first, last + 1);
+            sequence = new IntSequence(seq);
+            deletedRows = (BitSet) deleted.clone();
             safelyFireTableDataChanged();
         }
         public void redo() {
             sequence.clear();
+            deletedRows.set(0, cells.size());
             for (int i = 0; i < imports.size(); i++) {
                 sequence.add(cells.size());
                 cells.add(imports.get(i));
@@ -1158,20 +1934,17 @@ public class ResultSetTableModel extends AbstractTableModel
         ArrayList<Object[]> added = new ArrayList<Object[]>();
         public AssertiveImportEdit(ArrayList<Object[]> imports, int[] pkIndex,
                                                             boolean rude) {
-            int seqSize = sequence.size();
+            HashMap<RowKey, Integer> index =
+                                pkIndex == null ? null : indexRows(pkIndex);
             int impSize = imports.size();
             for (int i = 0; i < impSize; i++) {
                 Object[] impRow = imports.get(i);
                 int matchRow = -1;
-                if (pkIndex != null)
-                    for (int j = 0; j < seqSize; j++) {
-                        int cellIndex = sequence.get(j);
-                        Object[] seqRow = cells.get(cellIndex);
-                        if (rowEqual(impRow, seqRow, pkIndex)) {
-                            matchRow = cellIndex;
-                            break;
-                        }
-                    }
+                if (index != null) {
+                    Integer match = index.get(new RowKey(impRow, pkIndex));
+                    if (match != null)
+                        matchRow = match;
+                }
                 if (matchRow == -1) {
                     for (int j = 0; j < columns; j++)
                         if (impRow[j] == UNSET)
@@ -1201,24 +1974,28 @@ public class ResultSetTableModel extends AbstractTableModel
             }
             int last = cells.size() - 1;
             int first = last - added.size() + 1;
+            int[] rows = new int[last - first + 1];
             for (int i = last; i >= first; i--) {
                 cells.remove(i);
-                sequence.remove((Integer) i);
+                rows[i - first] = i;
             }
-            Collections.sort(sequence, rowComparator);
+            sequence.removeValues(rows);
+            dirtyRows.clear(first, last + 1);
+            sequence.sort(new KeyComparator());
             safelyFireTableDataChanged();
         }
         public void redo() {
             for (int src = 0; src < updated.size(); src++) {
                 int dst = updatedIndex.get(src);
                 cells.set(dst, updated.get(src));
+                dirtyRows.set(dst);
             }
             int first = cells.size();
             int last = first + added.size() - 1;
             cells.addAll(added);
             for (int i = first; i <= last; i++)
                 sequence.add(i);
-            Collections.sort(sequence, rowComparator);
+            sequence.sort(new KeyComparator());
             safelyFireTableDataChanged();
         }
     }
@@ -1226,20 +2003,13 @@ public class ResultSetTableModel extends AbstractTableModel
     private class GentleImportEdit implements Edit {
         ArrayList<Object[]> added = new ArrayList<Object[]>();
         public GentleImportEdit(ArrayList<Object[]> imports, int[] pkIndex) {
-            int seqSize = sequence.size();
+            HashMap<RowKey, Integer> index =
+                                pkIndex == null ? null : indexRows(pkIndex);
             int impSize = imports.size();
             for (int i = 0; i < impSize; i++) {
                 Object[] impRow = imports.get(i);
-                boolean matched = false;
-                if (pkIndex != null)
-                    for (int j = 0; j < seqSize; j++) {
-                        Object[] seqRow = cells.get(sequence.get(j));
-                        if (rowEqual(impRow, seqRow, pkIndex)) {
-                            matched = true;
-                            break;
-                        }
-                    }
-                if (!matched)
+                if (index == null
+                        || !index.containsKey(new RowKey(impRow, pkIndex)))
                     added.add(impRow);
             }
         }
@@ -1252,11 +2022,14 @@ public class ResultSetTableModel extends AbstractTableModel
         public void undo() {
             int last = cells.size() - 1;
             int first = last - added.size() + 1;
+            int[] rows = new int[last - first + 1];
             for (int i = last; i >= first; i--) {
                 cells.remove(i);
-                sequence.remove((Integer) i);
+                rows[i - first] = i;
             }
-            Collections.sort(sequence, rowComparator);
+            sequence.removeValues(rows);
+            dirtyRows.clear(first, last + 1);
+            sequence.sort(new KeyComparator());
             safelyFireTableDataChanged();
         }
         public void redo() {
@@ -1265,7 +2038,7 @@ public class ResultSetTableModel extends AbstractTableModel
             cells.addAll(added);
             for (int i = first; i <= last; i++)
                 sequence.add(i);
-            Collections.sort(sequence, rowComparator);
+            sequence.sort(new KeyComparator());
             safelyFireTableDataChanged();
         }
     }
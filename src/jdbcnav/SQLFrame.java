@@ -18,12 +18,20 @@
 
 package jdbcnav;
 
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
 
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Position;
 
 import jdbcnav.model.Data;
 import jdbcnav.model.Database;
@@ -35,16 +43,35 @@ public class SQLFrame extends TextEditorFrame {
     private BrowserFrame browser;
     private int outputSelectionStart = -1;
     private int outputSelectionEnd = -1;
+    private JMenuItem stopMI;
+    private JobScheduler.Job worker;
+    private volatile boolean stopped;
 
     public SQLFrame(BrowserFrame browser) {
         super(browser.getTitle() + "/sql", "", false, false);
         this.browser = browser;
+
+        JMenu m = new JMenu("Run");
+        stopMI = new JMenuItem("Stop");
+        stopMI.addActionListener(new ActionListener() {
+                                public void actionPerformed(ActionEvent e) {
+                                    stop();
+                                }
+                            });
+        stopMI.setEnabled(false);
+        m.add(stopMI);
+        getJMenuBar().add(m);
     }
 
     public void updateTitle() {
         setTitle(getParentTitle() + "/sql");
     }
 
+    public void dispose() {
+        stop();
+        super.dispose();
+    }
+
     protected boolean wantToHandleReturn() {
         return true;
     }
@@ -65,6 +92,12 @@ public class SQLFrame extends TextEditorFrame {
             return;
         }
 
+        if (worker != null) {
+            // Still busy with the previous batch of statements
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+
         boolean noSelection = start == end;
         if (noSelection) {
             // No selection; find the start and end of the current line,
@@ -82,10 +115,7 @@ public class SQLFrame extends TextEditorFrame {
         StringTokenizer tok = new StringTokenizer(cmd, "';", true);
         boolean quote = false;
         boolean notdone = true;
-        boolean firstresponse = true;
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        PrintWriter pw = new PrintWriter(bos);
+        ArrayList<String> commands = new ArrayList<String>();
 
         while (notdone) {
             notdone = tok.hasMoreTokens();
@@ -108,54 +138,143 @@ public class SQLFrame extends TextEditorFrame {
 
             cmd = cmdBuf.toString().trim();
             cmdBuf = new StringBuffer();
-            if (cmd.equals(""))
-                continue;
+            if (!cmd.equals(""))
+                commands.add(cmd);
+        }
+
+        while (end < text.length() && text.charAt(end) != '\r'
+                                   && text.charAt(end) != '\n')
+            end++;
+        boolean atEnd = end == text.length();
+        if (!atEnd)
+            end++;
+
+        // The statements are executed in a background thread, so that the
+        // user can stop them, and so that the UI stays responsive while they
+        // run. The output is inserted at a Position, which tracks any edits
+        // made in the meantime.
+        Position pos;
+        try {
+            pos = textA.getDocument().createPosition(end);
+        } catch (BadLocationException e) {
+            MessageBox.show(e);
+            return;
+        }
+        stopped = false;
+        stopMI.setEnabled(true);
+        worker = Main.submitJob("sql", JobScheduler.PRIORITY_HIGH, null, true,
+                                new Worker(commands, pos, atEnd));
+    }
+
+    private void stop() {
+        if (worker == null)
+            return;
+        // If the worker hasn't started yet, it will see this flag and skip
+        // all the statements; if it has, it will stop after the current one.
+        stopped = true;
+        final JobScheduler.Job job = worker;
+        final Thread w = job.getThread();
+        if (w == null)
+            return;
+        // Statement.cancel() may have to talk to the server, so don't do
+        // this on the AWT Event thread; and don't queue it behind the
+        // jobs it may have to stop, either.
+        Main.startDetachedJob("stop sql", JobScheduler.PRIORITY_HIGH,
+                    new Runnable() {
+                        public void run() {
+                            // Worker threads are shared, so make sure it's
+                            // still running our statements.
+                            if (job.getThread() == w)
+                                browser.getDatabase().cancelQuery(w);
+                        }
+                    });
+    }
+
+    private class Worker implements Runnable {
+        private ArrayList<String> commands;
+        private Position pos;
+        private boolean atEnd;
+
+        public Worker(ArrayList<String> commands, Position pos,
+                      boolean atEnd) {
+            this.commands = commands;
+            this.pos = pos;
+            this.atEnd = atEnd;
+        }
+
+        public void run() {
+            boolean firstresponse = true;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            PrintWriter pw = new PrintWriter(bos);
 
             try {
-                Main.backgroundJobStarted();
-                Database db = browser.getDatabase();
-                if (cmd.toLowerCase().startsWith("select")) {
-                    Object queryOutput = db.runQuery(cmd, true, true);
-                    if (queryOutput instanceof Data) {
-                        QueryResultFrame qrf = new QueryResultFrame(browser,
-                                                    cmd, (Data) queryOutput);
-                        qrf.setParent(browser);
-                        qrf.showStaggered();
+                for (String cmd : commands) {
+                    if (stopped)
+                        break;
+                    Database db = browser.getDatabase();
+                    if (cmd.toLowerCase().startsWith("select")) {
+                        final String query = cmd;
+                        final Object queryOutput = db.runQuery(cmd, true, true);
+                        SwingUtilities.invokeLater(new Runnable() {
+                                    public void run() {
+                                        showQueryOutput(query, queryOutput);
+                                    }
+                                });
                     } else {
-                        TableFrame tf = new TableFrame((Table) queryOutput,
-                                                       browser);
-                        tf.setParent(browser);
-                        tf.showStaggered();
+                        int count = db.runUpdate(cmd);
+                        if (firstresponse)
+                            firstresponse = false;
+                        else
+                            pw.println();
+                        pw.print("count = " + count);
                     }
-                } else {
-                    int count = db.runUpdate(cmd);
-                    if (firstresponse)
-                        firstresponse = false;
-                    else
-                        pw.println();
-                    pw.print("count = " + count);
                 }
             } catch (NavigatorException e) {
-                MessageBox.show(e);
-                break;
-            } finally {
-                Main.backgroundJobEnded();
+                if (stopped) {
+                    if (!firstresponse)
+                        pw.println();
+                    pw.print("stopped");
+                } else
+                    MessageBox.show(e);
             }
+
+            pw.flush();
+            String out = bos.toString();
+            pw.close();
+            if (atEnd)
+                out = "\n" + out;
+            if (!out.endsWith("\n"))
+                out += "\n";
+
+            final String output = out;
+            SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            finished(pos.getOffset(), output);
+                        }
+                    });
         }
+    }
 
-        pw.flush();
-        String out = bos.toString();
-        pw.close();
+    private void showQueryOutput(String query, Object queryOutput) {
+        try {
+            if (queryOutput instanceof Data) {
+                QueryResultFrame qrf = new QueryResultFrame(browser,
+                                                query, (Data) queryOutput);
+                qrf.setParent(browser);
+                qrf.showStaggered();
+            } else {
+                TableFrame tf = new TableFrame((Table) queryOutput, browser);
+                tf.setParent(browser);
+                tf.showStaggered();
+            }
+        } catch (NavigatorException e) {
+            MessageBox.show(e);
+        }
+    }
 
-        while (end < text.length() && text.charAt(end) != '\r'
-                                   && text.charAt(end) != '\n')
-            end++;
-        if (end == text.length())
-            out = "\n" + out;
-        else
-            end++;
-        if (!out.endsWith("\n"))
-            out += "\n";
+    private void finished(int end, String out) {
+        worker = null;
+        stopMI.setEnabled(false);
 
         Document doc = textA.getDocument();
         try {
@@ -471,8 +471,35 @@ public class ScriptGenerator {
      */
     public String diff(Collection<Table> oldtables, Collection<Table> newtables,
                                     boolean fqtn) throws NavigatorException {
+        return diff(oldtables, newtables, fqtn, false);
+    }
+
+    /**
+     * Like diff(), but optionally turns rows that were deleted and inserted
+     * again under a different primary key into updates of that key; see
+     * MultiTableDiff.diff().
+     */
+    public String diff(Collection<Table> oldtables, Collection<Table> newtables,
+                       boolean fqtn, boolean detectKeyUpdates)
+                                                throws NavigatorException {
+        DiffCallback dcb = new DiffCallback(fqtn);
+        MultiTableDiff.diff(dcb, oldtables, newtables, true, true,
+                            detectKeyUpdates);
+        return dcb.toString();
+    }
+
+    /**
+     * Like diff(), but compares the tables row by row, as they are read,
+     * instead of loading them first; see MultiTableDiff.streamingDiff(),
+     * which also explains 'notes'. The same caveat applies: do not call this
+     * from the AWT event thread.
+     */
+    public String streamingDiff(Collection<Table> oldtables,
+                                Collection<Table> newtables, boolean fqtn,
+                                Collection<String> notes)
+                                                throws NavigatorException {
         DiffCallback dcb = new DiffCallback(fqtn);
-        MultiTableDiff.diff(dcb, oldtables, newtables, true);
+        MultiTableDiff.streamingDiff(dcb, oldtables, newtables, true, notes);
         return dcb.toString();
     }
 
@@ -37,12 +37,12 @@ import jdbcnav.util.NavigatorException;
 public class SearchResultsFrame extends MyFrame {
     private Database db;
     private SearchParams params;
-    private SearchThread searchThread;
+    private JobScheduler.Job searchJob;
     private JEditorPane editor;
     
-    private class SearchThread extends Thread {
+    private class SearchJob implements Runnable {
         private Set<String> qualifiedNames;
-        public SearchThread(Set<String> qualifiedNames) {
+        public SearchJob(Set<String> qualifiedNames) {
             this.qualifiedNames = qualifiedNames;
         }
         public void run() {
@@ -73,7 +73,7 @@ public class SearchResultsFrame extends MyFrame {
             } catch (NavigatorException e) {
                 MessageBox.show(e);
             } finally {
-                SearchResultsFrame.this.searchThread = null;
+                SearchResultsFrame.this.searchJob = null;
             }
         }
     }
@@ -129,15 +129,15 @@ public class SearchResultsFrame extends MyFrame {
             d.width = ds.width;
         setSize(d);
         
-        searchThread = new SearchThread(qualifiedNames);
-        searchThread.start();
+        searchJob = Main.submitJob("search", JobScheduler.PRIORITY_LOW,
+                                   new SearchJob(qualifiedNames));
     }
 
     public void dispose() {
-        SearchThread th = searchThread;
-        if (th != null) {
-            th.interrupt();
-            searchThread = null;
+        JobScheduler.Job job = searchJob;
+        if (job != null) {
+            job.cancel();
+            searchJob = null;
         }
         super.dispose();
     }
@@ -22,6 +22,7 @@ import java.awt.Component;
 import java.awt.Font;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -167,7 +168,7 @@ public class TableFrame extends QueryResultFrame {
                             }
                         };
 
-            if (haveFks && dbTable.isEditable()) {
+            if (haveFks && model.isEditable()) {
                 JMenuItem jmi = new JMenuItem("Select FK Value...");
                 jmi.addActionListener(new ActionListener() {
                             public void actionPerformed(ActionEvent e) {
@@ -238,7 +239,7 @@ public class TableFrame extends QueryResultFrame {
         popupColumn = table.convertColumnIndexToModel(table.columnAtPoint(p));
         String columnName = model.getColumnName(popupColumn);
 
-        int id = haveFks && dbTable.isEditable() ? 1 : 0;
+        int id = haveFks && model.isEditable() ? 1 : 0;
         for (int m = 0; m < 6; m++) {
             if (m == 0 || m == 3) {
                 // "Partial Table" / "Whole Table" titles; skip
@@ -307,6 +308,11 @@ public class TableFrame extends QueryResultFrame {
         }
         Object[] val = new Object[n];
 
+        // The row may be windowed data that is still being fetched
+        if (!model.isRowLoaded(popupRow)) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
         int left = thisColumns.length;
         fetchvalue: {
             for (int i = 0; i < model.getColumnCount(); i++) {
@@ -476,6 +482,8 @@ public class TableFrame extends QueryResultFrame {
             return;
         }
 
+        if (!canSelectRows())
+            return;
         rowSelectionHandler = new RowSelectionHandlerForKey(keyIndex, value);
     }
     
@@ -494,9 +502,25 @@ public class TableFrame extends QueryResultFrame {
             // was easier. :-)
         }
 
+        if (!canSelectRows())
+            return;
         rowSelectionHandler = new RowSelectionHandlerForSearch(params);
     }
 
+    /**
+     * Finding the rows to select means looking at every row, which, for
+     * windowed data, would mean reading the whole table, on the AWT Event
+     * thread, no less; so we don't.
+     */
+    private boolean canSelectRows() {
+        if (!model.isWindowed())
+            return true;
+        MessageBox.show("This table is too large to be loaded entirely, "
+                    + "so the matching rows can't be selected.\n"
+                    + "Try opening a partial table instead.", null);
+        return false;
+    }
+
     private class RowSelectionHandlerForKey extends RowSelectionHandler {
         private int[] keyIndex;
         private Object[] keyValue;
@@ -790,6 +814,12 @@ public class TableFrame extends QueryResultFrame {
         public int getState() {
             return data.getState();
         }
+        public void cancel() {
+            data.cancel();
+        }
+        public void close() {
+            data.close();
+        }
         public void addStateListener(StateListener listener) {
             if (data.getState() == FINISHED)
                 listener.stateChanged(FINISHED, getRowCount());
@@ -33,6 +33,7 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.JavaScriptException;
 
+import jdbcnav.JobScheduler;
 import jdbcnav.Main;
 import jdbcnav.MessageBox;
 import jdbcnav.TextEditorFrame;
@@ -42,7 +43,8 @@ import jdbcnav.util.MiscUtils;
 public class JavaScriptFrame extends TextEditorFrame {
     private int outputSelectionStart = -1;
     private int outputSelectionEnd = -1;
-    private Thread jsThread;
+    private JobScheduler.Job jsJob;
+    private volatile boolean running;
 
     public JavaScriptFrame() {
         super("JavaScript", "", false, false);
@@ -53,9 +55,9 @@ public class JavaScriptFrame extends TextEditorFrame {
         am.put("javascript_interrupt",
                new AbstractAction() {
                     public void actionPerformed(ActionEvent e) {
-                        Thread thr = jsThread;
-                        if (thr != null)
-                            thr.interrupt();
+                        JobScheduler.Job job = jsJob;
+                        if (job != null)
+                            job.cancel();
                     }
                 });
     }
@@ -65,7 +67,7 @@ public class JavaScriptFrame extends TextEditorFrame {
     }
 
     protected void handleReturn() {
-        if (jsThread != null) {
+        if (running) {
             JOptionPane.showInternalMessageDialog(Main.getDesktop(),
                                 "You can't run two commands at once in one "
                               + "JavaScript window.\nYou can use Ctrl-. to "
@@ -100,18 +102,17 @@ public class JavaScriptFrame extends TextEditorFrame {
                 end++;
         }
 
-        jsThread = new JSThread(text.substring(start, end), end);
-        jsThread.start();
+        running = true;
+        jsJob = Main.submitJob("javascript", JobScheduler.PRIORITY_LOW,
+                               new JSJob(text.substring(start, end), end));
     }
     
-    private class JSThread extends Thread {
+    private class JSJob implements Runnable {
         private String cmd;
         private int pos;
-        public JSThread(String command, int outputPos) {
+        public JSJob(String command, int outputPos) {
             cmd = command;
             pos = outputPos;
-            setPriority(Thread.MIN_PRIORITY);
-            setDaemon(true);
         }
 
         public void run() {
@@ -172,7 +173,8 @@ public class JavaScriptFrame extends TextEditorFrame {
                 textA.setSelectionStart(start);
                 textA.setSelectionEnd(end);
             } finally {
-                jsThread = null;
+                running = false;
+                jsJob = null;
                 setTitle("JavaScript");
             }
         }
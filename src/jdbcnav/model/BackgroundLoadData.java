@@ -19,31 +19,49 @@
 package jdbcnav.model;
 
 import java.util.ArrayList;
-import java.util.Date;
+
+import jdbcnav.Main;
 
 
 public class BackgroundLoadData implements Data {
+    // Listeners are notified as soon as the first row arrives; after that,
+    // the interval between notifications grows with the time spent loading
+    // so far (so the number of notifications, and the per-batch overhead in
+    // the listeners, grows only logarithmically with the row count), but
+    // never exceeds MAX_INTERVAL, so that the UI keeps showing progress.
+    private static final long MIN_INTERVAL = 50000000L;     // 50 ms
+    private static final long MAX_INTERVAL = 5000000000L;   // 5 s
+
     private String[] columnNames;
     private TypeSpec[] typeSpecs;
-    private ArrayList<Object[]> data;
+    private ColumnStore data;
     private ArrayList<StateListener> listeners;
     private int state;
+    private Runnable canceller;
+    private long startTime;
+    private long firstRowTime;
     private long lastUpdateTime;
+    private long updateInterval;
+    private int notifications;
 
     public BackgroundLoadData(String[] columnNames, TypeSpec[] typeSpecs) {
         this.columnNames = columnNames;
         this.typeSpecs = typeSpecs;
-        data = new ArrayList<Object[]>();
+        data = new ColumnStore(typeSpecs);
         listeners = new ArrayList<StateListener>();
         state = LOADING;
-        lastUpdateTime = new Date().getTime();
+        startTime = System.nanoTime();
     }
 
     ////////////////
     ///// Data /////
     ////////////////
 
-    public synchronized int getRowCount() {
+    // getRowCount() and getValueAt() are deliberately not synchronized;
+    // ColumnStore allows reads concurrent with the loader's appends, so
+    // repainting a table never has to wait for the loader thread.
+
+    public int getRowCount() {
         return data.size();
     }
 
@@ -59,8 +77,8 @@ public class BackgroundLoadData implements Data {
         return typeSpecs[col];
     }
 
-    public synchronized Object getValueAt(int row, int col) {
-        return data.get(row)[col];
+    public Object getValueAt(int row, int col) {
+        return data.get(row, col);
     }
 
     //////////////////////////////////////
@@ -85,8 +103,10 @@ public class BackgroundLoadData implements Data {
         this.state = state;
         int rows = data.size();
         ArrayList<StateListener> l = listeners;
-        if (state == FINISHED)
+        if (state == FINISHED) {
             listeners = null;
+            logTiming(rows);
+        }
         for (StateListener listener : l)
             listener.stateChanged(state, rows);
     }
@@ -95,16 +115,60 @@ public class BackgroundLoadData implements Data {
         return state;
     }
 
+    /**
+     * Sets the action taken by cancel(), after setting the state to
+     * FINISHED; typically, cancelling the Statement whose ResultSet is being
+     * loaded. It is run without holding any locks, since Statement.cancel()
+     * may have to talk to the server.
+     */
+    public synchronized void setCanceller(Runnable canceller) {
+        this.canceller = canceller;
+    }
+
+    public void cancel() {
+        Runnable c;
+        synchronized (this) {
+            if (state == FINISHED)
+                return;
+            c = canceller;
+            canceller = null;
+        }
+        setState(FINISHED);
+        if (c != null)
+            c.run();
+    }
+
+    public void close() {
+        data.close();
+    }
+
     public synchronized void addRow(Object[] row) {
         if (state == FINISHED)
             return;
         data.add(row);
-        long now = new Date().getTime();
-        if (now - lastUpdateTime < 5000)
+        long now = System.nanoTime();
+        int newRows = data.size();
+        if (newRows == 1) {
+            firstRowTime = now;
+            updateInterval = MIN_INTERVAL;
+        } else if (now - lastUpdateTime < updateInterval)
             return;
+        else
+            updateInterval = Math.min(Math.max((now - startTime) / 2,
+                                               MIN_INTERVAL), MAX_INTERVAL);
         lastUpdateTime = now;
-        int newRows = data.size();
+        notifications++;
         for (StateListener listener : listeners)
             listener.stateChanged(state, newRows);
     }
+
+    private void logTiming(int rows) {
+        long total = System.nanoTime() - startTime;
+        long first = rows == 0 ? total : firstRowTime - startTime;
+        Main.log(3, "BackgroundLoadData: " + rows + " rows in "
+                    + total / 1000000 + " ms; first row after "
+                    + first / 1000000 + " ms; "
+                    + (total == 0 ? 0 : (long) (rows * 1e9 / total))
+                    + " rows/s; " + notifications + " notifications");
+    }
 }
@@ -114,6 +114,14 @@ public class BasicData implements Data {
         return FINISHED;
     }
 
+    public void cancel() {
+        // Nothing to do
+    }
+
+    public void close() {
+        // Nothing to do
+    }
+
     public void addStateListener(StateListener listener) {
         listener.stateChanged(FINISHED, data.size());
     }
@@ -96,10 +96,12 @@ public abstract class BasicTable implements Table, Scriptable {
     public Data getPKValues() throws NavigatorException {
         if (pk == null)
             return null;
-        if (model == null) {
+        if (model == null || model.isWindowed()) {
             // Get PK values using a separate query; we don't want
             // to force creating a model since that will load the entire
-            // table, which could be prohibitively expensive.
+            // table, which could be prohibitively expensive. Windowed
+            // models haven't loaded the table either, and their row count
+            // may only be an estimate.
             return getPKValues2();
         }
         // Get PK values from the in-memory model.
@@ -132,6 +134,26 @@ public abstract class BasicTable implements Table, Scriptable {
         return null;
     }
 
+    /**
+     * Returns the table's rows, sorted by primary key, one at a time, or
+     * null if the table can't provide them that way. Tables that have a
+     * model return null, since the model may have changes that haven't been
+     * committed yet; the caller should use the model instead. Windowed
+     * models can't be edited, so those don't count.
+     */
+    public RowCursor getRowsInPKOrder() throws NavigatorException {
+        if (pk == null || model != null && !model.isWindowed())
+            return null;
+        return getRowsInPKOrder2();
+    }
+
+    protected RowCursor getRowsInPKOrder2() throws NavigatorException {
+        // To be overridden by Table classes that can read their rows in
+        // primary key order without loading them all, e.g. by running a
+        // query
+        return null;
+    }
+
     public void updateDetails() throws NavigatorException {
         pkColumns = null;
         rkColumns = null;
@@ -188,24 +210,43 @@ public abstract class BasicTable implements Table, Scriptable {
                                                 throws NavigatorException {
         if (model == null)
             // From the UI, we load the table asynchronously.
-            model = new ResultSetTableModel(getData(true), this);
+            model = new ResultSetTableModel(getModelData(), this);
         return model;
     }
 
+    /**
+     * Returns the Data used to populate the model when the table is opened
+     * from the UI. By default, that is the whole table, loaded
+     * asynchronously; subclasses can override this to return a WindowedData
+     * for tables that are too large to be loaded in their entirety.
+     */
+    protected Data getModelData() throws NavigatorException {
+        return getData(true);
+    }
+
     public synchronized ResultSetTableModel getModel() {
         return model;
     }
 
-    public synchronized void unloadModel() {
-        model = null;
+    public void unloadModel() {
+        ResultSetTableModel m;
+        synchronized (this) {
+            m = model;
+            model = null;
+        }
+        if (m != null)
+            m.close();
     }
 
     public synchronized void reload() throws NavigatorException {
         // From the UI, we load the table asynchronously.
         if (model == null)
-            model = new ResultSetTableModel(getData(true), this);
-        else
+            model = new ResultSetTableModel(getModelData(), this);
+        else if (model.isEditable())
+            // Don't switch an editable model to windowed data
             model.load(getData(true));
+        else
+            model.load(getModelData());
     }
 
     private int[] pkColumns;
@@ -0,0 +1,819 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import jdbcnav.Main;
+import jdbcnav.Preferences;
+
+
+/**
+ * Column-oriented, append-only row storage. Keeping a large result set as
+ * an ArrayList of Object[] costs a row array plus a boxed object for every
+ * single cell; this class stores each column in fixed-size chunks of
+ * primitive arrays instead (int[], long[], double[], or dictionary codes for
+ * strings), with a null bitmap per chunk, and only boxes values when they are
+ * retrieved.
+ * <br>
+ * The storage for each column is chosen based on its TypeSpec. If a value
+ * shows up that doesn't fit the chosen storage (say, a driver that reports
+ * INTEGER columns as java.lang.Integer but returns a Long now and then), that
+ * column is quietly converted to plain Object storage.
+ * <br>
+ * The store supports one writer and any number of concurrent readers,
+ * without locking: everything belonging to a row is written before the
+ * volatile row count is bumped, and anything that gets reallocated along the
+ * way (chunk directories, dictionaries, a column that has to be converted)
+ * is copied and then published through a volatile reference, so a reader
+ * that has seen a row count always sees the data for all rows below it.
+ * <br>
+ * When the heap fills up beyond the threshold set in the Preferences, the
+ * writer spills older chunks to a temporary file, in a compact binary format;
+ * they are read back (through a memory mapping) when they are accessed, and a
+ * few recently used ones are cached. Chunks containing objects that can't be
+ * written in that format (LOB wrappers, mostly) stay in memory.
+ */
+public class ColumnStore {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Dictionary encoding only pays off if values repeat; if, after the first
+    // chunk, more than half the values are distinct, or if the dictionary
+    // grows beyond this size, we give up on it.
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    // Number of spilled chunks, per column, kept in memory after being read
+    // back from the spill file
+    private static final int SPILL_CACHE_SIZE = 8;
+
+    private volatile Column[] columns;
+    private volatile int rows;
+
+    // Spilling; only touched by the writer, except for the SpillFile itself,
+    // which synchronizes internally, and close(), which synchronizes with
+    // the creation of the SpillFile.
+    private SpillFile spillFile;
+    private int spilledChunks;
+    private boolean spillFailed;
+    private volatile boolean closed;
+
+    public ColumnStore(TypeSpec[] specs) {
+        columns = new Column[specs.length];
+        for (int i = 0; i < specs.length; i++)
+            columns[i] = createColumn(specs[i]);
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public Object get(int row, int col) {
+        // Read the row count first: this is what makes the column data
+        // written by the loader thread visible to us.
+        if (row < 0 || row >= rows)
+            throw new IndexOutOfBoundsException("row " + row
+                                            + ", size " + rows);
+        return columns[col].get(row);
+    }
+
+    /**
+     * Appends a row. Only one thread may call this method; it does not need
+     * to be synchronized with readers.
+     */
+    public void add(Object[] row) {
+        // A loader may still be delivering rows after close(); they have
+        // nowhere to go, and converting a column could need spilled chunks.
+        if (closed)
+            return;
+        int r = rows;
+        Column[] cols = columns;
+        if ((r & CHUNK_MASK) == 0) {
+            int chunk = r >> CHUNK_BITS;
+            if (chunk > 1)
+                maybeSpill(chunk - 1);
+            for (Column c : cols)
+                c.addChunk(chunk);
+        }
+        for (int i = 0; i < cols.length; i++) {
+            Column c = cols[i];
+            if (!c.set(r, row[i])) {
+                c = toObjectColumn(c, r);
+                c.set(r, row[i]);
+                // Readers may still be using the old column, which remains
+                // valid for all rows they can see, so don't touch it;
+                // publish a new column array instead.
+                cols = cols.clone();
+                cols[i] = c;
+                columns = cols;
+            }
+        }
+        rows = r + 1;
+    }
+
+    /**
+     * Releases the spill file, if any. Values in spilled chunks can not be
+     * retrieved after this, and rows added after this are ignored.
+     */
+    public void close() {
+        SpillFile f;
+        synchronized (this) {
+            closed = true;
+            f = spillFile;
+        }
+        if (f != null)
+            f.close();
+    }
+
+    private static Column createColumn(TypeSpec spec) {
+        Class<?> k = spec == null ? null : spec.jdbcJavaClass;
+        if (k == null)
+            return new ObjectColumn();
+        if (k == Integer.class || k == Short.class || k == Byte.class)
+            return new IntColumn(k);
+        if (k == Long.class)
+            return new LongColumn();
+        if (k == Double.class || k == Float.class)
+            return new DoubleColumn(k);
+        if (k == BigDecimal.class)
+            return new DecimalColumn();
+        if (k == String.class
+                && (spec.type == TypeSpec.CHAR
+                    || spec.type == TypeSpec.VARCHAR
+                    || spec.type == TypeSpec.NCHAR
+                    || spec.type == TypeSpec.VARNCHAR))
+            return new DictionaryColumn();
+        return new ObjectColumn();
+    }
+
+    private Column toObjectColumn(Column c, int rows) {
+        ObjectColumn oc = new ObjectColumn();
+        int chunks = (rows >> CHUNK_BITS) + 1;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            oc.addChunk(chunk);
+            int end = Math.min((chunk + 1) << CHUNK_BITS, rows);
+            for (int r = chunk << CHUNK_BITS; r < end; r++)
+                oc.set(r, c.get(r));
+            // Chunks that were spilled in the old column are spilled again
+            // right away, so converting doesn't pull them all onto the heap.
+            if (chunk < spilledChunks && !spillFailed) {
+                try {
+                    oc.spill(chunk, spillFile);
+                } catch (IOException e) {
+                    Main.log(1, "ColumnStore: spilling failed: " + e);
+                    spillFailed = true;
+                }
+            }
+        }
+        return oc;
+    }
+
+
+    ////////////////////
+    ///// Spilling /////
+    ////////////////////
+
+    /**
+     * Called by the writer whenever a chunk fills up. If heap usage is above
+     * the threshold, writes all full chunks to the spill file, except for
+     * the most recent one, 'keep', which is likely to still be read soon.
+     */
+    private void maybeSpill(int keep) {
+        if (spillFailed || spilledChunks >= keep)
+            return;
+        int threshold = Preferences.getPreferences().getSpillThreshold();
+        if (threshold == 0)
+            return;
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        if (used < rt.maxMemory() / 100 * threshold)
+            return;
+        try {
+            synchronized (this) {
+                if (closed)
+                    return;
+                if (spillFile == null)
+                    spillFile = new SpillFile(columns.length
+                                                * SPILL_CACHE_SIZE);
+            }
+            Column[] cols = columns;
+            for (int chunk = spilledChunks; chunk < keep; chunk++)
+                for (Column c : cols)
+                    c.spill(chunk, spillFile);
+            Main.log(3, "ColumnStore: spilled chunks " + spilledChunks
+                        + " through " + (keep - 1) + " to disk");
+            spilledChunks = keep;
+        } catch (IOException e) {
+            // Not fatal; we just keep everything in memory from now on,
+            // and hope for the best.
+            Main.log(1, "ColumnStore: spilling failed: " + e);
+            spillFailed = true;
+        }
+    }
+
+    private static class SpillFile {
+        private FileChannel channel;
+        private long length;
+        private int cacheSize;
+        private Map<SpilledChunk, Chunk> cache;
+
+        public SpillFile(int cacheSize) throws IOException {
+            this.cacheSize = cacheSize;
+            File file = File.createTempFile("jdbcnav", ".spill");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            // On Unix, the file will go away once it's closed (or when we
+            // exit); elsewhere, we'll have to settle for deleteOnExit().
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+
+        public synchronized SpilledChunk write(Column column, byte[] bytes)
+                                                        throws IOException {
+            if (channel == null)
+                throw new IOException("Spill file closed");
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            long offset = length;
+            while (buf.hasRemaining())
+                length += channel.write(buf, length);
+            return new SpilledChunk(this, column, offset, bytes.length);
+        }
+
+        public synchronized Chunk read(SpilledChunk sc) {
+            if (cache == null)
+                cache = new LinkedHashMap<SpilledChunk, Chunk>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                                            Map.Entry<SpilledChunk, Chunk> e) {
+                        return size() > cacheSize;
+                    }
+                };
+            if (channel == null)
+                throw new IllegalStateException("Spill file closed");
+            Chunk chunk = cache.get(sc);
+            if (chunk == null) {
+                try {
+                    ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                 sc.offset, sc.length);
+                    chunk = sc.column.readChunk(buf);
+                } catch (IOException e) {
+                    // The spill file is gone or unreadable; there's no way
+                    // to get the data back, so this is fatal.
+                    throw new RuntimeException("Could not read spill file", e);
+                }
+                cache.put(sc, chunk);
+            }
+            return chunk;
+        }
+
+        public synchronized void close() {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Main.log(1, "ColumnStore: closing spill file failed: " + e);
+            }
+            channel = null;
+            cache = null;
+        }
+    }
+
+
+    /////////////////////////////////
+    ///// Column and chunk data /////
+    /////////////////////////////////
+
+    // Note that the chunk directories are replaced, not resized in place,
+    // when they fill up, and are volatile so that readers never see a
+    // directory whose contents haven't been copied yet. Spilling replaces
+    // a directory entry in place, but the replaced chunk remains valid, and
+    // SpilledChunk's fields are final, so readers see either one or the
+    // other, and both work.
+
+    private static abstract class Chunk {
+        /**
+         * Stores a value; returns false if the value doesn't fit this
+         * chunk's representation, in which case nothing has been stored.
+         */
+        public abstract boolean set(int index, Object value);
+        public abstract Object get(int index);
+        /**
+         * Writes this chunk in spill file format; returns false if that's not
+         * possible.
+         */
+        public abstract boolean write(DataOutputStream out) throws IOException;
+    }
+
+    private static abstract class NullableChunk extends Chunk {
+        protected long[] nulls = new long[CHUNK_SIZE >> 6];
+        public boolean set(int index, Object value) {
+            if (value != null)
+                return setValue(index, value);
+            nulls[index >> 6] |= 1L << (index & 63);
+            return true;
+        }
+        public Object get(int index) {
+            if ((nulls[index >> 6] & (1L << (index & 63))) != 0)
+                return null;
+            else
+                return getValue(index);
+        }
+        public boolean write(DataOutputStream out) throws IOException {
+            for (long n : nulls)
+                out.writeLong(n);
+            writeValues(out);
+            return true;
+        }
+        protected void readNulls(ByteBuffer buf) {
+            for (int i = 0; i < nulls.length; i++)
+                nulls[i] = buf.getLong();
+        }
+        protected abstract boolean setValue(int index, Object value);
+        protected abstract Object getValue(int index);
+        protected abstract void writeValues(DataOutputStream out)
+                                                        throws IOException;
+    }
+
+    private static class SpilledChunk extends Chunk {
+        private final SpillFile file;
+        private final Column column;
+        private final long offset;
+        private final int length;
+        public SpilledChunk(SpillFile file, Column column,
+                            long offset, int length) {
+            this.file = file;
+            this.column = column;
+            this.offset = offset;
+            this.length = length;
+        }
+        public boolean set(int index, Object value) {
+            // Only full chunks are spilled
+            throw new IllegalStateException();
+        }
+        public Object get(int index) {
+            return file.read(this).get(index);
+        }
+        public boolean write(DataOutputStream out) {
+            return false;
+        }
+    }
+
+    private static abstract class Column {
+        protected volatile Chunk[] chunks = new Chunk[16];
+
+        /**
+         * Allocates storage for the given chunk; chunks are always added in
+         * order.
+         */
+        public void addChunk(int chunk) {
+            Chunk[] c = chunks;
+            if (chunk == c.length)
+                c = Arrays.copyOf(c, chunk * 2);
+            c[chunk] = newChunk();
+            chunks = c;
+        }
+
+        public boolean set(int row, Object value) {
+            return chunks[row >> CHUNK_BITS].set(row & CHUNK_MASK, value);
+        }
+
+        public Object get(int row) {
+            return chunks[row >> CHUNK_BITS].get(row & CHUNK_MASK);
+        }
+
+        public void spill(int chunk, SpillFile file) throws IOException {
+            Chunk c = chunks[chunk];
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            if (c.write(out)) {
+                out.flush();
+                chunks[chunk] = file.write(this, bos.toByteArray());
+            }
+        }
+
+        protected abstract Chunk newChunk();
+        protected abstract Chunk readChunk(ByteBuffer buf);
+    }
+
+    private static class IntColumn extends Column {
+        private Class<?> klass;
+        public IntColumn(Class<?> klass) {
+            this.klass = klass;
+        }
+        protected Chunk newChunk() {
+            return new IntChunk();
+        }
+        protected Chunk readChunk(ByteBuffer buf) {
+            IntChunk c = new IntChunk();
+            c.readNulls(buf);
+            buf.asIntBuffer().get(c.values);
+            return c;
+        }
+        private class IntChunk extends NullableChunk {
+            private int[] values = new int[CHUNK_SIZE];
+            protected boolean setValue(int index, Object value) {
+                if (value.getClass() != klass)
+                    return false;
+                values[index] = ((Number) value).intValue();
+                return true;
+            }
+            protected Object getValue(int index) {
+                int v = values[index];
+                if (klass == Integer.class)
+                    return Integer.valueOf(v);
+                else if (klass == Short.class)
+                    return Short.valueOf((short) v);
+                else
+                    return Byte.valueOf((byte) v);
+            }
+            protected void writeValues(DataOutputStream out)
+                                                        throws IOException {
+                for (int v : values)
+                    out.writeInt(v);
+            }
+        }
+    }
+
+    private static class LongColumn extends Column {
+        protected Chunk newChunk() {
+            return new LongChunk();
+        }
+        protected Chunk readChunk(ByteBuffer buf) {
+            LongChunk c = new LongChunk();
+            c.readNulls(buf);
+            buf.asLongBuffer().get(c.values);
+            return c;
+        }
+        private static class LongChunk extends NullableChunk {
+            private long[] values = new long[CHUNK_SIZE];
+            protected boolean setValue(int index, Object value) {
+                if (value.getClass() != Long.class)
+                    return false;
+                values[index] = (Long) value;
+                return true;
+            }
+            protected Object getValue(int index) {
+                return Long.valueOf(values[index]);
+            }
+            protected void writeValues(DataOutputStream out)
+                                                        throws IOException {
+                for (long v : values)
+                    out.writeLong(v);
+            }
+        }
+    }
+
+    private static class DoubleColumn extends Column {
+        private Class<?> klass;
+        public DoubleColumn(Class<?> klass) {
+            this.klass = klass;
+        }
+        protected Chunk newChunk() {
+            return new DoubleChunk();
+        }
+        protected Chunk readChunk(ByteBuffer buf) {
+            DoubleChunk c = new DoubleChunk();
+            c.readNulls(buf);
+            buf.asDoubleBuffer().get(c.values);
+            return c;
+        }
+        private class DoubleChunk extends NullableChunk {
+            private double[] values = new double[CHUNK_SIZE];
+            protected boolean setValue(int index, Object value) {
+                if (value.getClass() != klass)
+                    return false;
+                values[index] = ((Number) value).doubleValue();
+                return true;
+            }
+            protected Object getValue(int index) {
+                double v = values[index];
+                if (klass == Double.class)
+                    return Double.valueOf(v);
+                else
+                    return Float.valueOf((float) v);
+            }
+            protected void writeValues(DataOutputStream out)
+                                                        throws IOException {
+                for (double v : values)
+                    out.writeDouble(v);
+            }
+        }
+    }
+
+    /**
+     * Stores BigDecimals as an unscaled long plus a scale. This covers
+     * just about every NUMBER column in practice, and Oracle reports all of
+     * those as BigDecimal.
+     */
+    private static class DecimalColumn extends Column {
+        protected Chunk newChunk() {
+            return new DecimalChunk();
+        }
+        protected Chunk readChunk(ByteBuffer buf) {
+            DecimalChunk c = new DecimalChunk();
+            c.readNulls(buf);
+            for (int i = 0; i < CHUNK_SIZE; i++)
+                c.values[i] = buf.getLong();
+            buf.get(c.scales);
+            return c;
+        }
+        private static class DecimalChunk extends NullableChunk {
+            private long[] values = new long[CHUNK_SIZE];
+            private byte[] scales = new byte[CHUNK_SIZE];
+            protected boolean setValue(int index, Object value) {
+                if (value.getClass() != BigDecimal.class)
+                    return false;
+                BigDecimal d = (BigDecimal) value;
+                int scale = d.scale();
+                if (scale < Byte.MIN_VALUE || scale > Byte.MAX_VALUE)
+                    return false;
+                BigInteger unscaled = d.unscaledValue();
+                if (unscaled.bitLength() > 63)
+                    return false;
+                values[index] = unscaled.longValue();
+                scales[index] = (byte) scale;
+                return true;
+            }
+            protected Object getValue(int index) {
+                return BigDecimal.valueOf(values[index], scales[index]);
+            }
+            protected void writeValues(DataOutputStream out)
+                                                        throws IOException {
+                for (long v : values)
+                    out.writeLong(v);
+                out.write(scales);
+            }
+        }
+    }
+
+    private static class DictionaryColumn extends Column {
+        private volatile String[] values = new String[256];
+        private int nvalues;
+        // Only used by the writer
+        private HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        protected Chunk newChunk() {
+            return new DictionaryChunk();
+        }
+        protected Chunk readChunk(ByteBuffer buf) {
+            DictionaryChunk c = new DictionaryChunk();
+            c.readNulls(buf);
+            buf.asIntBuffer().get(c.refs);
+            return c;
+        }
+        public boolean set(int row, Object value) {
+            if (value != null && value.getClass() == String.class
+                    && !codes.containsKey(value)) {
+                int n = nvalues;
+                if (n >= MAX_DICTIONARY_SIZE
+                        || row >= CHUNK_SIZE && n > row / 2)
+                    return false;
+                String[] v = values;
+                if (n == v.length)
+                    v = Arrays.copyOf(v, n * 2);
+                v[n] = (String) value;
+                values = v;
+                nvalues = n + 1;
+                codes.put((String) value, n);
+            }
+            return super.set(row, value);
+        }
+        private class DictionaryChunk extends NullableChunk {
+            private int[] refs = new int[CHUNK_SIZE];
+            protected boolean setValue(int index, Object value) {
+                if (value.getClass() != String.class)
+                    return false;
+                refs[index] = codes.get(value);
+                return true;
+            }
+            protected Object getValue(int index) {
+                return values[refs[index]];
+            }
+            protected void writeValues(DataOutputStream out)
+                                                        throws IOException {
+                for (int r : refs)
+                    out.writeInt(r);
+            }
+        }
+    }
+
+    private static class ObjectColumn extends Column {
+        private static final byte NULL = 0;
+        private static final byte STRING = 1;
+        private static final byte INTEGER = 2;
+        private static final byte LONG = 3;
+        private static final byte DOUBLE = 4;
+        private static final byte FLOAT = 5;
+        private static final byte SHORT = 6;
+        private static final byte BYTE = 7;
+        private static final byte BOOLEAN = 8;
+        private static final byte DECIMAL = 9;
+        private static final byte BYTES = 10;
+        private static final byte DATETIME = 11;
+        private static final byte INTERVAL = 12;
+
+        protected Chunk newChunk() {
+            return new ObjectChunk();
+        }
+
+        protected Chunk readChunk(ByteBuffer buf) {
+            ObjectChunk c = new ObjectChunk();
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                Object o;
+                switch (buf.get()) {
+                    case STRING:
+                        o = new String(readBytes(buf), StandardCharsets.UTF_8);
+                        break;
+                    case INTEGER:
+                        o = buf.getInt();
+                        break;
+                    case LONG:
+                        o = buf.getLong();
+                        break;
+                    case DOUBLE:
+                        o = buf.getDouble();
+                        break;
+                    case FLOAT:
+                        o = buf.getFloat();
+                        break;
+                    case SHORT:
+                        o = buf.getShort();
+                        break;
+                    case BYTE:
+                        o = buf.get();
+                        break;
+                    case BOOLEAN:
+                        o = buf.get() != 0;
+                        break;
+                    case DECIMAL: {
+                        int scale = buf.getInt();
+                        o = new BigDecimal(new BigInteger(readBytes(buf)),
+                                           scale);
+                        break;
+                    }
+                    case BYTES:
+                        o = readBytes(buf);
+                        break;
+                    case DATETIME: {
+                        long time = buf.getLong();
+                        int nanos = buf.getInt();
+                        TimeZone tz = null;
+                        if (buf.get() != 0)
+                            tz = TimeZone.getTimeZone(new String(
+                                    readBytes(buf), StandardCharsets.UTF_8));
+                        o = new DateTime(time, nanos, tz);
+                        break;
+                    }
+                    case INTERVAL: {
+                        int months = buf.getInt();
+                        o = new Interval(months, buf.getLong());
+                        break;
+                    }
+                    default:
+                        o = null;
+                        break;
+                }
+                c.values[i] = o;
+            }
+            return c;
+        }
+
+        private static byte[] readBytes(ByteBuffer buf) {
+            byte[] b = new byte[buf.getInt()];
+            buf.get(b);
+            return b;
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] b)
+                                                        throws IOException {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private static class ObjectChunk extends Chunk {
+            private Object[] values = new Object[CHUNK_SIZE];
+            public boolean set(int index, Object value) {
+                values[index] = value;
+                return true;
+            }
+            public Object get(int index) {
+                return values[index];
+            }
+            public boolean write(DataOutputStream out) throws IOException {
+                // Check first, so we don't waste time serializing a chunk
+                // we can't use
+                for (Object o : values)
+                    if (!canWrite(o))
+                        return false;
+                for (Object o : values) {
+                    if (o == null) {
+                        out.writeByte(NULL);
+                    } else if (o instanceof String) {
+                        out.writeByte(STRING);
+                        writeBytes(out, ((String) o).getBytes(
+                                                    StandardCharsets.UTF_8));
+                    } else if (o instanceof Integer) {
+                        out.writeByte(INTEGER);
+                        out.writeInt((Integer) o);
+                    } else if (o instanceof Long) {
+                        out.writeByte(LONG);
+                        out.writeLong((Long) o);
+                    } else if (o instanceof Double) {
+                        out.writeByte(DOUBLE);
+                        out.writeDouble((Double) o);
+                    } else if (o instanceof Float) {
+                        out.writeByte(FLOAT);
+                        out.writeFloat((Float) o);
+                    } else if (o instanceof Short) {
+                        out.writeByte(SHORT);
+                        out.writeShort((Short) o);
+                    } else if (o instanceof Byte) {
+                        out.writeByte(BYTE);
+                        out.writeByte((Byte) o);
+                    } else if (o instanceof Boolean) {
+                        out.writeByte(BOOLEAN);
+                        out.writeByte(((Boolean) o) ? 1 : 0);
+                    } else if (o instanceof BigDecimal) {
+                        BigDecimal d = (BigDecimal) o;
+                        out.writeByte(DECIMAL);
+                        out.writeInt(d.scale());
+                        writeBytes(out, d.unscaledValue().toByteArray());
+                    } else if (o instanceof byte[]) {
+                        out.writeByte(BYTES);
+                        writeBytes(out, (byte[]) o);
+                    } else if (o instanceof DateTime) {
+                        DateTime dt = (DateTime) o;
+                        out.writeByte(DATETIME);
+                        out.writeLong(dt.time);
+                        out.writeInt(dt.nanos);
+                        if (dt.tz == null)
+                            out.writeByte(0);
+                        else {
+                            out.writeByte(1);
+                            writeBytes(out, dt.tz.getID().getBytes(
+                                                    StandardCharsets.UTF_8));
+                        }
+                    } else {
+                        Interval iv = (Interval) o;
+                        out.writeByte(INTERVAL);
+                        out.writeInt(iv.months);
+                        out.writeLong(iv.nanos);
+                    }
+                }
+                return true;
+            }
+            private static boolean canWrite(Object o) {
+                if (o == null)
+                    return true;
+                Class<?> k = o.getClass();
+                if (k == DateTime.class) {
+                    // Only time zones that can be reconstructed from their
+                    // IDs, please
+                    TimeZone tz = ((DateTime) o).tz;
+                    return tz == null
+                            || tz.equals(TimeZone.getTimeZone(tz.getID()));
+                }
+                return k == String.class || k == Integer.class
+                    || k == Long.class || k == Double.class
+                    || k == Float.class || k == Short.class
+                    || k == Byte.class || k == Boolean.class
+                    || k == BigDecimal.class || k == byte[].class
+                    || k == Interval.class;
+            }
+        }
+    }
+}
@@ -31,6 +31,14 @@ public interface Data {
     static final int FINISHED = 2;
     void setState(int state);
     int getState();
+    // Stops loading as soon as possible; unlike setState(FINISHED), which
+    // only takes effect when the next row arrives, this also aborts the
+    // underlying query, if any, using Statement.cancel().
+    void cancel();
+    // Releases whatever resources the data holds outside the heap, like a
+    // temporary file; the data can not be used anymore after this. Call
+    // cancel() first if it may still be loading.
+    void close();
     void addStateListener(StateListener listener);
     void removeStateListener(StateListener listener);
     interface StateListener {
@@ -85,7 +85,16 @@ public interface Database {
     // Specify allowTable = false if you specifically want a Data object.
     Object runQuery(String query, boolean asynchronous, boolean allowTable)
                                                     throws NavigatorException;
+    // Same as above, but with a JDBC fetch size for this query only; 0 means
+    // use the connection's fetch size.
+    Object runQuery(String query, boolean asynchronous, boolean allowTable,
+                    int fetchSize) throws NavigatorException;
     Object runQuery(String query, Object[] values) throws NavigatorException;
+    // Aborts the query or update the given thread is currently executing in
+    // runQuery() or runUpdate(), if any; this causes that call to throw a
+    // NavigatorException. Queries that have moved on to loading their
+    // results in the background are cancelled using Data.cancel().
+    void cancelQuery(Thread thread);
 
     int runUpdate(String query) throws NavigatorException;
     Scriptable createStatement() throws NavigatorException;
@@ -0,0 +1,34 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav.model;
+
+import jdbcnav.util.NavigatorException;
+
+
+/**
+ * Reads the rows of a table one at a time, in primary key order, without
+ * keeping them in memory; see Table.getRowsInPKOrder().
+ */
+public interface RowCursor {
+    /**
+     * Returns the next row, or null if there are no more rows.
+     */
+    Object[] next() throws NavigatorException;
+    void close();
+}
@@ -43,6 +43,7 @@ public interface Table extends Comparable<Table> {
     Index[] getIndexes();
     Data getData(boolean async) throws NavigatorException;
     Data getPKValues() throws NavigatorException;
+    RowCursor getRowsInPKOrder() throws NavigatorException;
 
 
     void updateDetails() throws NavigatorException;
@@ -0,0 +1,69 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav.model;
+
+
+/**
+ * A Data object that does not keep all of its rows in memory, but fetches
+ * them from the database as they are needed. Such Data objects are always in
+ * the FINISHED state. ResultSetTableModel reads them directly, instead of
+ * copying all the rows as it does for other Data, and does not allow them
+ * to be edited or re-sorted.
+ * <br>
+ * getRowCount() returns right away, but the count may be an estimate at
+ * first; listeners are told when it changes. getValueAt() always returns
+ * the real value, fetching the rows it needs, so code that reads many rows
+ * should not do so on the AWT Event thread. For painting, there is
+ * getLoadedValueAt(), which never waits for the database: rows that haven't
+ * been fetched yet read as PENDING, and listeners are told when they arrive.
+ */
+public interface WindowedData extends Data {
+    /**
+     * Placeholder for values that are still being fetched.
+     */
+    static final Object PENDING = new Object() {
+                public String toString() {
+                    return "...";
+                }
+            };
+
+    /**
+     * Like getValueAt(), but returns PENDING, and has the row fetched in the
+     * background, if it hasn't been fetched yet.
+     */
+    Object getLoadedValueAt(int row, int col);
+
+    /**
+     * Returns true if getValueAt() can return the given row without going
+     * to the database.
+     */
+    boolean isRowLoaded(int row);
+
+    void addWindowListener(WindowListener listener);
+    void removeWindowListener(WindowListener listener);
+
+    /**
+     * Notified when the row count changes, or when rows that were PENDING
+     * have arrived; these may be called on any thread.
+     */
+    interface WindowListener {
+        void rowCountChanged(int rows);
+        void rowsArrived(int first, int last);
+    }
+}
@@ -0,0 +1,233 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav.util;
+
+import java.util.Arrays;
+
+
+/**
+ * A list of distinct, non-negative ints, stored in a plain int array; used
+ * by ResultSetTableModel to map view rows to model rows.
+ * <br>
+ * Besides the list itself, this maintains its inverse (value -> position),
+ * so that indexOf() takes constant time. Appending and replacing values
+ * keep the inverse up to date; operations that move many values around
+ * (inserting, removing, sorting) simply discard it, and it is rebuilt, in
+ * a single pass, the next time it is needed.
+ */
+public class IntSequence {
+    private int[] items;
+    private int size;
+    private int[] inverse;
+    private boolean inverseValid;
+    private int modCount;
+
+    public IntSequence() {
+        items = new int[16];
+    }
+
+    public IntSequence(IntSequence that) {
+        items = Arrays.copyOf(that.items, Math.max(that.size, 16));
+        size = that.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of times the list has been changed, other than by
+     * appending values; a list whose mod count hasn't changed still starts
+     * with the same values as before.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        return items[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        int old = items[index];
+        items[index] = value;
+        modCount++;
+        if (inverseValid) {
+            if (inverse[old] == index)
+                inverse[old] = -1;
+            setInverse(value, index);
+        }
+    }
+
+    public void add(int value) {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+        items[size] = value;
+        if (inverseValid)
+            setInverse(value, size);
+        size++;
+    }
+
+    public void add(int index, int value) {
+        if (index > size)
+            throw new IndexOutOfBoundsException(index + " > " + size);
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+        System.arraycopy(items, index, items, index + 1, size - index);
+        items[index] = value;
+        size++;
+        modCount++;
+        inverseValid = false;
+    }
+
+    /**
+     * Removes the value at the given position, and returns it.
+     */
+    public int remove(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        int value = items[index];
+        System.arraycopy(items, index + 1, items, index, size - index - 1);
+        size--;
+        modCount++;
+        inverseValid = false;
+        return value;
+    }
+
+    /**
+     * Removes the values at the given positions, which must be sorted in
+     * ascending order, in a single pass.
+     */
+    public void removeIndexes(int[] indexes) {
+        if (indexes.length == 0)
+            return;
+        int dst = indexes[0];
+        int next = 1;
+        for (int src = dst + 1; src < size; src++) {
+            if (next < indexes.length && indexes[next] == src)
+                next++;
+            else
+                items[dst++] = items[src];
+        }
+        size = dst;
+        modCount++;
+        inverseValid = false;
+    }
+
+    /**
+     * Removes the given values, in any order, in a single pass. Values that
+     * are not in the list are ignored.
+     */
+    public void removeValues(int[] values) {
+        int[] indexes = new int[values.length];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            int index = indexOf(values[i]);
+            if (index != -1)
+                indexes[n++] = index;
+        }
+        indexes = Arrays.copyOf(indexes, n);
+        Arrays.sort(indexes);
+        removeIndexes(indexes);
+    }
+
+    /**
+     * Returns the position of the given value, or -1 if it is not in the
+     * list.
+     */
+    public int indexOf(int value) {
+        if (!inverseValid)
+            buildInverse();
+        return value < inverse.length ? inverse[value] : -1;
+    }
+
+    public void clear() {
+        size = 0;
+        modCount++;
+        inverseValid = false;
+    }
+
+    public void sort(IntSort.Comparator c) {
+        IntSort.sort(items, 0, size, c);
+        modCount++;
+        inverseValid = false;
+    }
+
+    /**
+     * Sorts the values from position 'from' onward, leaving the ones before
+     * it alone.
+     */
+    public void sort(int from, IntSort.Comparator c) {
+        IntSort.sort(items, from, size, c);
+        modCount++;
+        inverseValid = false;
+    }
+
+    public void parallelSort(IntSort.Comparator c) {
+        parallelSort(0, c);
+    }
+
+    public void parallelSort(int from, IntSort.Comparator c) {
+        IntSort.parallelSort(items, from, size, c);
+        modCount++;
+        inverseValid = false;
+    }
+
+    /**
+     * Merges the values from position 'mid' onward into the ones before it;
+     * both parts must already be sorted. See IntSort.merge() and
+     * IntSort.mergeShortRun().
+     */
+    public void merge(int mid, IntSort.Comparator c, boolean shortRun) {
+        if (shortRun)
+            IntSort.mergeShortRun(items, 0, mid, size, c);
+        else
+            IntSort.merge(items, 0, mid, size, c);
+        modCount++;
+        inverseValid = false;
+    }
+
+    private void setInverse(int value, int index) {
+        if (value >= inverse.length) {
+            int n = Math.max(value + 1, inverse.length * 2);
+            int oldLength = inverse.length;
+            inverse = Arrays.copyOf(inverse, n);
+            Arrays.fill(inverse, oldLength, n, -1);
+        }
+        inverse[value] = index;
+    }
+
+    private void buildInverse() {
+        int max = -1;
+        for (int i = 0; i < size; i++)
+            if (items[i] > max)
+                max = items[i];
+        if (inverse == null || inverse.length <= max
+                            || inverse.length > 2 * (max + 16))
+            inverse = new int[max + 16];
+        Arrays.fill(inverse, -1);
+        for (int i = 0; i < size; i++)
+            inverse[items[i]] = i;
+        inverseValid = true;
+    }
+}
@@ -0,0 +1,181 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Sorts arrays of ints (typically, row indexes) using a comparator, without
+ * boxing them. The sort is stable, like Collections.sort(), so that sorting
+ * by one column keeps the previous order among rows that compare equal.
+ */
+public class IntSort {
+    public interface Comparator {
+        int compare(int a, int b);
+    }
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int PARALLEL_SORT_GRANULARITY = 8192;
+
+    private IntSort() {
+        // Not to be instantiated
+    }
+
+    public static void sort(int[] a, int from, int to, Comparator c) {
+        if (to - from < 2)
+            return;
+        int[] tmp = new int[to - from];
+        mergeSort(a, tmp, from, from, to, c);
+    }
+
+    /**
+     * Like sort(), but sorts large arrays on the common fork/join pool,
+     * sorting the two halves (and their halves, and so on) in parallel
+     * before merging them. The comparator must be safe to call from several
+     * threads at once.
+     */
+    public static void parallelSort(int[] a, int from, int to, Comparator c) {
+        if (to - from <= PARALLEL_SORT_GRANULARITY
+                || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            sort(a, from, to, c);
+            return;
+        }
+        int[] tmp = new int[to - from];
+        ForkJoinPool.commonPool().invoke(new SortTask(a, tmp, from, from, to, c));
+    }
+
+    /**
+     * Merges the sorted runs a[from:mid] and a[mid:to]. Where elements of
+     * the two runs compare equal, the ones from the first run go first.
+     */
+    public static void merge(int[] a, int from, int mid, int to,
+                             Comparator c) {
+        if (mid == from || mid == to)
+            return;
+        merge(a, new int[mid - from], from, from, mid, to, c);
+    }
+
+    /**
+     * Like merge(), but places each element of the second run using a
+     * binary search in the first run, and moves the elements of the first
+     * run in bulk. This takes O(m log n) comparisons instead of O(n + m),
+     * which is better when the second run is much shorter than the first,
+     * or when comparisons are expensive.
+     */
+    public static void mergeShortRun(int[] a, int from, int mid, int to,
+                                     Comparator c) {
+        if (mid == from || mid == to)
+            return;
+        int[] run = new int[to - mid];
+        System.arraycopy(a, mid, run, 0, to - mid);
+        // Working from the end, so that the elements of the first run only
+        // ever move towards the end of the array
+        int hi = mid;
+        int k = to;
+        for (int j = run.length - 1; j >= 0; j--) {
+            int x = run[j];
+            // Find the first element of a[from:hi] that is greater than x
+            int lo = from;
+            int h = hi;
+            while (lo < h) {
+                int m = (lo + h) >>> 1;
+                if (c.compare(a[m], x) <= 0)
+                    lo = m + 1;
+                else
+                    h = m;
+            }
+            int n = hi - lo;
+            k -= n;
+            System.arraycopy(a, lo, a, k, n);
+            a[--k] = x;
+            hi = lo;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class SortTask extends RecursiveAction {
+        private int[] a, tmp;
+        private int base, from, to;
+        private Comparator c;
+
+        public SortTask(int[] a, int[] tmp, int base, int from, int to,
+                        Comparator c) {
+            this.a = a;
+            this.tmp = tmp;
+            this.base = base;
+            this.from = from;
+            this.to = to;
+            this.c = c;
+        }
+
+        protected void compute() {
+            if (to - from <= PARALLEL_SORT_GRANULARITY) {
+                mergeSort(a, tmp, base, from, to, c);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(a, tmp, base, from, mid, c),
+                      new SortTask(a, tmp, base, mid, to, c));
+            merge(a, tmp, base, from, mid, to, c);
+        }
+    }
+
+    /**
+     * Sorts a[from:to], using tmp[from - base:] as scratch space.
+     */
+    private static void mergeSort(int[] a, int[] tmp, int base, int from,
+                                  int to, Comparator c) {
+        int n = to - from;
+        if (n <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int x = a[i];
+                int j = i - 1;
+                while (j >= from && c.compare(a[j], x) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = x;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, base, from, mid, c);
+        mergeSort(a, tmp, base, mid, to, c);
+        merge(a, tmp, base, from, mid, to, c);
+    }
+
+    /**
+     * Merges the sorted runs a[from:mid] and a[mid:to].
+     */
+    private static void merge(int[] a, int[] tmp, int base, int from, int mid,
+                              int to, Comparator c) {
+        if (c.compare(a[mid - 1], a[mid]) <= 0)
+            // Already in order
+            return;
+        int t = from - base;
+        System.arraycopy(a, from, tmp, t, mid - from);
+        int i = t, iend = t + mid - from, j = mid, k = from;
+        while (i < iend && j < to)
+            a[k++] = c.compare(a[j], tmp[i]) < 0 ? a[j++] : tmp[i++];
+        while (i < iend)
+            a[k++] = tmp[i++];
+    }
+}
@@ -0,0 +1,249 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav.util;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+
+
+/**
+ * A key made up of some of the values in a table row, typically its primary
+ * key or one of its foreign keys, for use in HashMaps and HashSets.
+ * <br>
+ * Keys are compared the way the database would compare them, rather than
+ * using plain equals(): numbers are compared by value, so that 1, 1L, 1.0,
+ * and 1.00 (as a BigDecimal) are all equal, and arrays (RAW and BINARY
+ * values) are compared element by element. Keys are ordered the same way,
+ * which matches the way the database sorts them for numbers, dates, and
+ * binary values; strings are ordered by code point, which is what a binary
+ * collation does. Values that can't be ordered relative to each other
+ * (say, a string and a number) make compareTo() throw a ClassCastException,
+ * rather than treating them as equal.
+ */
+public class RowKey implements Comparable<RowKey> {
+    private Object[] values;
+    private int hash;
+
+    public RowKey(Object[] values) {
+        this.values = new Object[values.length];
+        for (int i = 0; i < values.length; i++)
+            this.values[i] = normalize(values[i]);
+        computeHash();
+    }
+
+    /**
+     * Creates a key consisting of the given columns of a row.
+     */
+    public RowKey(Object[] row, int[] columns) {
+        values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            values[i] = normalize(row[columns[i]]);
+        computeHash();
+    }
+
+    /**
+     * Returns true if any of the key's values is null. Foreign keys with
+     * null components are not checked by the database.
+     */
+    public boolean hasNull() {
+        for (int i = 0; i < values.length; i++)
+            if (values[i] == null)
+                return true;
+        return false;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof RowKey))
+            return false;
+        RowKey that = (RowKey) o;
+        if (hash != that.hash || values.length != that.values.length)
+            return false;
+        for (int i = 0; i < values.length; i++)
+            if (!valueEquals(values[i], that.values[i]))
+                return false;
+        return true;
+    }
+
+    public int compareTo(RowKey that) {
+        int n = Math.min(values.length, that.values.length);
+        for (int i = 0; i < n; i++) {
+            int res = valueCompare(values[i], that.values[i]);
+            if (res != 0)
+                return res;
+        }
+        return values.length - that.values.length;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("(");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(values[i]);
+        }
+        buf.append(")");
+        return buf.toString();
+    }
+
+    private void computeHash() {
+        int h = 1;
+        for (int i = 0; i < values.length; i++)
+            h = 31 * h + valueHash(values[i]);
+        hash = h;
+    }
+
+    private static Object normalize(Object o) {
+        if (o instanceof Integer || o instanceof Short || o instanceof Long
+                || o instanceof Byte)
+            return Long.valueOf(((Number) o).longValue());
+        if (o instanceof Double || o instanceof Float) {
+            double d = ((Number) o).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                return o;
+            // Going through the shortest decimal representation, so that
+            // 0.1f becomes 0.1, not 0.100000001490116...
+            o = new BigDecimal(o.toString());
+        }
+        if (o instanceof BigInteger) {
+            BigInteger bi = (BigInteger) o;
+            if (bi.bitLength() < 64)
+                return Long.valueOf(bi.longValue());
+            return new BigDecimal(bi);
+        }
+        if (o instanceof BigDecimal) {
+            BigDecimal bd = (BigDecimal) o;
+            try {
+                return Long.valueOf(bd.longValueExact());
+            } catch (ArithmeticException e) {
+                return bd.stripTrailingZeros();
+            }
+        }
+        return o;
+    }
+
+    private static int valueHash(Object o) {
+        if (o == null)
+            return 0;
+        if (o.getClass().isArray()) {
+            int h = 1;
+            int n = Array.getLength(o);
+            for (int i = 0; i < n; i++)
+                h = 31 * h + valueHash(Array.get(o, i));
+            return h;
+        }
+        return o.hashCode();
+    }
+
+    private static boolean valueEquals(Object a, Object b) {
+        if (a == null || b == null)
+            return a == b;
+        if (a.getClass().isArray() && b.getClass().isArray()) {
+            int n = Array.getLength(a);
+            if (n != Array.getLength(b))
+                return false;
+            for (int i = 0; i < n; i++)
+                if (!valueEquals(Array.get(a, i), Array.get(b, i)))
+                    return false;
+            return true;
+        }
+        // Date.equals() accepts Timestamps, but Timestamp.equals() only
+        // accepts Timestamps; compare them the way compareTo() does, so
+        // that it doesn't matter which side is which.
+        if (a instanceof java.util.Date && b instanceof java.util.Date
+                && (a instanceof Timestamp || b instanceof Timestamp))
+            return valueCompare(a, b) == 0;
+        return a.equals(b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int valueCompare(Object a, Object b) {
+        // Nulls go last, as in MiscUtils.compareObjects()
+        if (a == null)
+            return b == null ? 0 : 1;
+        if (b == null)
+            return -1;
+        // Numbers are normalized to Longs or BigDecimals (or Doubles, for
+        // NaN and infinity, which only compare with each other)
+        if (a instanceof BigDecimal && b instanceof Long)
+            return ((BigDecimal) a).compareTo(
+                                BigDecimal.valueOf(((Long) b).longValue()));
+        if (a instanceof Long && b instanceof BigDecimal)
+            return BigDecimal.valueOf(((Long) a).longValue()).compareTo(
+                                                            (BigDecimal) b);
+        if (a instanceof String && b instanceof String)
+            return compareCodePoints((String) a, (String) b);
+        if (a.getClass().isArray() && b.getClass().isArray()) {
+            // Shorter arrays first, and bytes are unsigned, like memcmp()
+            int alen = Array.getLength(a);
+            int blen = Array.getLength(b);
+            for (int i = 0; i < alen && i < blen; i++) {
+                Object ea = Array.get(a, i);
+                Object eb = Array.get(b, i);
+                int res;
+                if (ea instanceof Byte && eb instanceof Byte)
+                    res = (((Byte) ea).byteValue() & 255)
+                            - (((Byte) eb).byteValue() & 255);
+                else
+                    res = valueCompare(normalize(ea), normalize(eb));
+                if (res != 0)
+                    return res;
+            }
+            return alen - blen;
+        }
+        // Timestamps and Dates compare with each other; Timestamp knows how
+        // to do that without losing its nanoseconds.
+        if (a instanceof Timestamp && b instanceof java.util.Date)
+            return ((Timestamp) a).compareTo((java.util.Date) b);
+        if (a instanceof java.util.Date && b instanceof Timestamp)
+            return -((Timestamp) b).compareTo((java.util.Date) a);
+        if (a instanceof java.util.Date && b instanceof java.util.Date)
+            return Long.compare(((java.util.Date) a).getTime(),
+                                ((java.util.Date) b).getTime());
+        if (a.getClass() == b.getClass() && a instanceof Comparable)
+            return ((Comparable<Object>) a).compareTo(b);
+        throw new ClassCastException("Can't compare "
+                                    + a.getClass().getName() + " with "
+                                    + b.getClass().getName());
+    }
+
+    private static int compareCodePoints(String a, String b) {
+        int alen = a.length();
+        int blen = b.length();
+        int i = 0;
+        while (i < alen && i < blen) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(i);
+            if (ca != cb)
+                return ca < cb ? -1 : 1;
+            i += Character.charCount(ca);
+        }
+        // Both have had the same code points so far, so the shorter one
+        // ran out first
+        return Integer.compare(alen, blen);
+    }
+}
@@ -0,0 +1,448 @@
+///////////////////////////////////////////////////////////////////////////////
+// JDBC Navigator - A Free Database Browser and Editor
+// Copyright (C) 2001-2024  Thomas Okken
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License, version 2,
+// as published by the Free Software Foundation.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+///////////////////////////////////////////////////////////////////////////////
+
+package jdbcnav;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import jdbcnav.model.BasicData;
+import jdbcnav.model.BasicForeignKey;
+import jdbcnav.model.BasicPrimaryKey;
+import jdbcnav.model.BasicTable;
+import jdbcnav.model.Data;
+import jdbcnav.model.Database;
+import jdbcnav.model.ForeignKey;
+import jdbcnav.model.Table;
+import jdbcnav.model.TypeSpec;
+import jdbcnav.util.NavigatorException;
+
+
+/**
+ * Checks that MultiTableDiff.diff() produces the same changes, in the same
+ * order, as ReferenceDiff, the binary search implementation it replaced.
+ * <br>
+ * The first part generates random sets of four tables: P, C, which refers
+ * to P and to itself, G, which refers to C, and N, which has no primary
+ * key; it changes some rows of each, and compares the two diffs of the old
+ * and new versions. Many of those need the postmortem fallback, since
+ * nothing stops C from referring to a row that was deleted.
+ * <br>
+ * The second part runs the cases where the two are meant to differ,
+ * because MultiTableDiff matches keys using RowKey, and ReferenceDiff using
+ * MiscUtils.compareObjects(); these only come up when the two tables have
+ * different Java classes for the same column, e.g. when comparing a file
+ * snapshot with the live database, or tables from two different drivers.
+ * For those, MultiTableDiff's output is checked against what is expected,
+ * and ReferenceDiff's is printed for comparison.
+ * <br>
+ * Usage: DiffCheck [iterations]; "ant diff-check" runs it with the default
+ * of 2000. The exit status is nonzero if anything didn't match.
+ */
+public class DiffCheck {
+    private static final int MAX_CHANGES = 1000;
+
+    private static Random random;
+    private static boolean failed;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        randomCheck(iterations);
+        keyCheck();
+        if (failed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+
+    //////////////////////////
+    ///// Random schemas /////
+    //////////////////////////
+
+    private static void randomCheck(int iterations) throws Exception {
+        int postmortems = 0;
+        int changes = 0;
+        for (int it = 0; it < iterations; it++) {
+            // One seed per iteration, so a mismatch can be reproduced by
+            // itself
+            random = new Random(it);
+            int n = 1 + random.nextInt(30);
+            ArrayList<Object[]> p = new ArrayList<Object[]>();
+            ArrayList<Object[]> c = new ArrayList<Object[]>();
+            ArrayList<Object[]> g = new ArrayList<Object[]>();
+            ArrayList<Object[]> nopk = new ArrayList<Object[]>();
+            for (int i = 0; i < n; i++)
+                p.add(new Object[] { 2 * i, random.nextInt(3) });
+            for (int i = 0; i < n; i++) {
+                Object self = i > 0 && random.nextBoolean()
+                                ? c.get(random.nextInt(i))[0] : null;
+                c.add(new Object[] { 2 * i, pick(p, 20), self });
+            }
+            for (int i = 0; i < n; i++)
+                g.add(new Object[] { 2 * i, pick(c, 20) });
+            for (int i = 0; i < n; i++)
+                nopk.add(new Object[] { i, random.nextInt(2) });
+
+            ArrayList<Object[]> p2 = mutate(p, n, null, null);
+            ArrayList<Object[]> c2 = mutate(c, n, p2, c);
+            if (random.nextBoolean()) {
+                // Half the time, keep C's references to itself valid, so
+                // that not every case ends in a postmortem
+                Set<Object> ids = new HashSet<Object>();
+                for (Object[] row : c2)
+                    ids.add(row[0]);
+                for (Object[] row : c2)
+                    if (!ids.contains(row[2]))
+                        row[2] = null;
+            }
+            ArrayList<Object[]> g2 = mutate(g, n, c2, null);
+            ArrayList<Object[]> nopk2 = new ArrayList<Object[]>(nopk);
+            nopk2.remove(0);
+            nopk2.add(new Object[] { n + 1, 1 });
+            if (nopk2.size() > 2)
+                nopk2.set(1, new Object[] { nopk2.get(1)[0], 5 });
+
+            String ref = run(true, schema(p, c, g, nopk),
+                                   schema(p2, c2, g2, nopk2));
+            String res = run(false, schema(p, c, g, nopk),
+                                    schema(p2, c2, g2, nopk2));
+            if (ref.indexOf("postmortem") != -1)
+                postmortems++;
+            changes += ref.split("\n").length;
+            if (!ref.equals(res)) {
+                System.out.println("Mismatch in iteration " + it
+                        + ":\n--- ReferenceDiff\n" + ref
+                        + "--- MultiTableDiff\n" + res);
+                failed = true;
+                return;
+            }
+        }
+        System.out.println("Random schemas: " + iterations + " iterations, "
+                + changes + " changes, " + postmortems + " postmortems; "
+                + "identical");
+    }
+
+    private static Collection<Table> schema(ArrayList<Object[]> p,
+                                            ArrayList<Object[]> c,
+                                            ArrayList<Object[]> g,
+                                            ArrayList<Object[]> nopk) {
+        ArrayList<Table> tables = new ArrayList<Table>();
+        tables.add(new MemTable("P", new String[] { "ID", "X" },
+                new String[] { "ID" },
+                new ForeignKey[0],
+                new ForeignKey[] { fk("ID", "C", "PID") },
+                p));
+        tables.add(new MemTable("C", new String[] { "ID", "PID", "CID" },
+                new String[] { "ID" },
+                new ForeignKey[] { fk("PID", "P", "ID"),
+                                   fk("CID", "C", "ID") },
+                new ForeignKey[] { fk("ID", "C", "CID"),
+                                   fk("ID", "G", "CID") },
+                c));
+        tables.add(new MemTable("G", new String[] { "ID", "CID" },
+                new String[] { "ID" },
+                new ForeignKey[] { fk("CID", "C", "ID") },
+                new ForeignKey[0],
+                g));
+        tables.add(new MemTable("N", new String[] { "A", "B" },
+                null,
+                new ForeignKey[0],
+                new ForeignKey[0],
+                nopk));
+        return tables;
+    }
+
+    /**
+     * Returns the key of a random row of 'rows', or, nullPercent percent
+     * of the time, null.
+     */
+    private static Object pick(ArrayList<Object[]> rows, int nullPercent) {
+        if (rows.isEmpty() || random.nextInt(100) < nullPercent)
+            return null;
+        return rows.get(random.nextInt(rows.size()))[0];
+    }
+
+    /**
+     * Deletes and changes about one in ten rows each, and adds n / 5 rows,
+     * some of them with the keys of deleted ones. Column 1 refers to
+     * 'ref1', if it isn't null, and column 2 to 'ref2'.
+     */
+    private static ArrayList<Object[]> mutate(ArrayList<Object[]> rows, int n,
+                                              ArrayList<Object[]> ref1,
+                                              ArrayList<Object[]> ref2) {
+        ArrayList<Object[]> res = new ArrayList<Object[]>();
+        for (Object[] row : rows) {
+            int x = random.nextInt(10);
+            if (x == 0)
+                continue;
+            row = row.clone();
+            if (x == 1)
+                row[1] = ref1 == null ? (Object) random.nextInt(3)
+                                      : pick(ref1, 20);
+            if (x == 2 && row.length > 2)
+                row[2] = pick(ref2, 50);
+            res.add(row);
+        }
+        int columns = rows.get(0).length;
+        for (int i = 0; i < n / 5; i++) {
+            Object[] row = new Object[columns];
+            row[0] = 2 * random.nextInt(2 * n)
+                        + (random.nextInt(3) == 0 ? 0 : 1);
+            boolean duplicate = false;
+            for (Object[] r : res)
+                if (r[0].equals(row[0]))
+                    duplicate = true;
+            if (duplicate)
+                continue;
+            row[1] = ref1 == null ? (Object) random.nextInt(3)
+                                  : pick(ref1, 20);
+            if (columns > 2)
+                row[2] = pick(ref2, 50);
+            res.add(row);
+        }
+        return res;
+    }
+
+
+    /////////////////////
+    ///// Key cases /////
+    /////////////////////
+
+    private static void keyCheck() throws Exception {
+        // Numbers are compared by value, whatever their class. Rows are
+        // compared using Arrays.equals(), by both diffs, so a row whose
+        // values changed class is reported as updated. compareObjects()
+        // treats values of different classes as equal, so ReferenceDiff
+        // pairs up whichever rows its binary search lands on, and its
+        // changes don't bring the old table any closer to the new one; it
+        // repeats them until it is stopped.
+        keyCase("Integer keys vs. Long keys",
+                rows(row(1, "a"), row(2, "b")),
+                rows(row(1L, "a"), row(3L, "c")),
+                "delete K[2]\n"
+                + "update K[1, a] -> [1, a]\n"
+                + "insert K[3, c]\n");
+        keyCase("Integer keys vs. BigDecimal keys with a scale",
+                rows(row(1, "a"), row(2, "b")),
+                rows(row(new BigDecimal("1.00"), "a"),
+                     row(new BigDecimal("2.00"), "c")),
+                "update K[1, a] -> [1.00, a]\n"
+                + "update K[2, b] -> [2.00, c]\n");
+        keyCase("Double keys vs. BigDecimal keys",
+                rows(row(0.1, "a"), row(2.5, "b")),
+                rows(row(new BigDecimal("0.1"), "a"),
+                     row(new BigDecimal("2.5"), "b")),
+                "update K[0.1, a] -> [0.1, a]\n"
+                + "update K[2.5, b] -> [2.5, b]\n");
+
+        // Unchanged: arrays (RAW and BINARY keys) were compared element by
+        // element before, too. The rows are reported as updated, since
+        // rows are compared using Arrays.equals(), by both.
+        keyCase("Equal byte[] keys",
+                rows(row(new byte[] { 1, (byte) 200 }, "a")),
+                rows(row(new byte[] { 1, (byte) 200 }, "a")),
+                "update K[[1, -56], a] -> [[1, -56], a]\n");
+
+        // A Timestamp and a Date for the same moment are the same key,
+        // whichever side each is on; compareObjects() treated them that
+        // way, too. Whether the row counts as updated depends on the side,
+        // since Date.equals() accepts a Timestamp, but not the other way
+        // around; that is the same in both diffs.
+        long t = 1000000000000L;
+        keyCase("Timestamp keys vs. Date keys",
+                rows(row(new Timestamp(t), "a"),
+                     row(new Timestamp(t + 1000), "b")),
+                rows(row(new java.util.Date(t), "a"),
+                     row(new java.util.Date(t + 2000), "c")),
+                "delete K[" + new Timestamp(t + 1000) + "]\n"
+                + "update K[" + new Timestamp(t) + ", a] -> ["
+                    + new java.util.Date(t) + ", a]\n"
+                + "insert K[" + new java.util.Date(t + 2000) + ", c]\n");
+        keyCase("Date keys vs. Timestamp keys",
+                rows(row(new java.util.Date(t), "a")),
+                rows(row(new Timestamp(t), "a")),
+                "");
+    }
+
+    private static void keyCase(String name, ArrayList<Object[]> oldRows,
+                                ArrayList<Object[]> newRows, String expected)
+                                                            throws Exception {
+        String ref = run(true, keyTable(oldRows), keyTable(newRows));
+        String res = run(false, keyTable(oldRows), keyTable(newRows));
+        boolean ok = res.equals(expected);
+        System.out.println((ok ? "ok: " : "FAILED: ") + name);
+        if (!ok) {
+            System.out.println("--- expected\n" + expected
+                                + "--- MultiTableDiff\n" + res);
+            failed = true;
+        }
+        if (!ref.equals(res))
+            System.out.print("--- ReferenceDiff\n" + abbreviate(ref));
+    }
+
+    /**
+     * Returns the first ten lines of 's', followed by the number of lines
+     * left out, if any.
+     */
+    private static String abbreviate(String s) {
+        int pos = 0;
+        for (int i = 0; i < 10 && pos != -1; i++) {
+            pos = s.indexOf('\n', pos);
+            if (pos != -1)
+                pos++;
+        }
+        if (pos == -1 || pos == s.length())
+            return s;
+        int more = s.substring(pos).split("\n").length;
+        return s.substring(0, pos) + "(" + more + " more lines)\n";
+    }
+
+    private static Collection<Table> keyTable(ArrayList<Object[]> rows) {
+        ArrayList<Table> tables = new ArrayList<Table>();
+        tables.add(new MemTable("K", new String[] { "ID", "V" },
+                                new String[] { "ID" },
+                                new ForeignKey[0], new ForeignKey[0], rows));
+        return tables;
+    }
+
+    private static Object[] row(Object id, Object v) {
+        return new Object[] { id, v };
+    }
+
+    private static ArrayList<Object[]> rows(Object[]... rows) {
+        return new ArrayList<Object[]>(Arrays.asList(rows));
+    }
+
+
+    /////////////////
+    ///// Utils /////
+    /////////////////
+
+    /**
+     * Runs one of the two diffs, and returns the changes it reports, one
+     * per line. Given keys it can't compare, ReferenceDiff can go on
+     * forever, so the diff is stopped after MAX_CHANGES changes.
+     */
+    private static String run(boolean reference, Collection<Table> oldTables,
+                              Collection<Table> newTables) throws Exception {
+        final StringBuffer buf = new StringBuffer();
+        TableChangeHandler tch = new TableChangeHandler() {
+            private int changes;
+            public void insertRow(Table table, Object[] row)
+                                                throws NavigatorException {
+                add("insert " + table.getName() + toString(row));
+            }
+            public void deleteRow(Table table, Object[] key)
+                                                throws NavigatorException {
+                add("delete " + table.getName() + toString(key));
+            }
+            public void updateRow(Table table, Object[] oldRow,
+                                  Object[] newRow) throws NavigatorException {
+                add("update " + table.getName() + toString(oldRow)
+                            + " -> " + toString(newRow));
+            }
+            public boolean continueAfterError() {
+                buf.append("postmortem\n");
+                return true;
+            }
+            private void add(String change) throws NavigatorException {
+                if (++changes > MAX_CHANGES)
+                    throw new NavigatorException("stopped after "
+                                                + MAX_CHANGES + " changes");
+                buf.append(change);
+                buf.append("\n");
+            }
+            private String toString(Object[] row) {
+                return Arrays.deepToString(row);
+            }
+        };
+        try {
+            if (reference)
+                ReferenceDiff.diff(tch, oldTables, newTables, false);
+            else
+                MultiTableDiff.diff(tch, oldTables, newTables, false);
+        } catch (NavigatorException e) {
+            buf.append(e.getMessage());
+            buf.append("\n");
+        }
+        return buf.toString();
+    }
+
+    private static ForeignKey fk(String thisColumn, String thatTable,
+                                 String thatColumn) {
+        BasicForeignKey fk = new BasicForeignKey();
+        fk.setThisColumns(new String[] { thisColumn });
+        fk.setThatName(thatTable);
+        fk.setThatColumns(new String[] { thatColumn });
+        return fk;
+    }
+
+    private static class MemTable extends BasicTable {
+        private BasicData data;
+
+        public MemTable(String name, String[] columns, String[] pkColumns,
+                        ForeignKey[] fks, ForeignKey[] rks,
+                        ArrayList<Object[]> rows) {
+            this.name = name;
+            qualifiedName = name;
+            columnNames = columns;
+            typeSpecs = new TypeSpec[columns.length];
+            isGenerated = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                typeSpecs[i] = new TypeSpec(null);
+                typeSpecs[i].type = TypeSpec.UNKNOWN;
+                typeSpecs[i].jdbcJavaClass = Object.class;
+            }
+            if (pkColumns != null) {
+                BasicPrimaryKey pk = new BasicPrimaryKey();
+                pk.setColumns(pkColumns);
+                this.pk = pk;
+            }
+            this.fks = fks;
+            this.rks = rks;
+            data = new BasicData();
+            data.setColumnNames(columns);
+            data.setTypeSpecs(typeSpecs);
+            data.setData(new ArrayList<Object[]>(rows));
+        }
+
+        public Database getDatabase() {
+            return null;
+        }
+
+        public Data getData(boolean async) {
+            return data;
+        }
+
+        public boolean isEditable() {
+            return false;
+        }
+
+        public void updateDetails() {
+            //
+        }
+    }
+}